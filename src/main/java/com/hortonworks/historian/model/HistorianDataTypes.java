@@ -30,6 +30,8 @@ public enum HistorianDataTypes {
     HISTORIAN_ASSET,
     HISTORIAN_TAG,
     HISTORIAN_TAG_ATTRIBUTE,
+    HISTORIAN_FLOW,
+    HISTORIAN_ENDPOINT,
     //Traits
   	TAG_DIMENSION
     ;
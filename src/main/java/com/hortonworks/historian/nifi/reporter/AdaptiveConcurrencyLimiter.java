@@ -0,0 +1,212 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hortonworks.historian.nifi.reporter;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.atlas.AtlasServiceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Limits the number of concurrent requests to Atlas, and the rate at which they start, adapting both to what Atlas
+ * can absorb.
+ *
+ * The limit follows additive-increase/multiplicative-decrease: every request that completes normally while the
+ * limit is in use raises it by 1/limit, i.e. by about one per round of requests, and a sign of overload cuts it by
+ * {@link #BACKOFF_RATIO}. Overload is an error response (429 or 5xx), a timeout or refused connection, or a response
+ * that took more than {@link #LATENCY_TOLERANCE} times the smoothed latency. Latency is measured per unit of work,
+ * such as an entity, so that a large batch does not read as overload. Only requests that started after the last
+ * decrease can cause another one, so a burst of slow responses counts as a single overload.
+ *
+ * A single caller, such as the spool publisher, never has more than one request in flight, so when overload is seen
+ * while the limit is not in use, or already at its minimum, the start of requests is spaced apart instead: the delay
+ * starts at the smoothed duration of a request and doubles up to {@link #MAX_DELAY_NANOS}, and every normal response shrinks it by
+ * {@link #DELAY_RECOVERY_RATIO}.
+ */
+public class AdaptiveConcurrencyLimiter {
+
+    static final Logger LOGGER = LoggerFactory.getLogger(AdaptiveConcurrencyLimiter.class);
+
+    static final double BACKOFF_RATIO = 0.5;
+    static final double LATENCY_TOLERANCE = 2.0;
+    static final double LATENCY_SMOOTHING = 0.1;
+    static final long MAX_DELAY_NANOS = TimeUnit.SECONDS.toNanos(30);
+    static final double DELAY_RECOVERY_RATIO = 0.75;
+    static final long MIN_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * A request to run under the limiter.
+     */
+    public interface Request<T> {
+        T call() throws Exception;
+    }
+
+    /**
+     * Thrown by raw HTTP calls for a response code the caller does not accept, so that the limiter can tell
+     * overload responses from other failures.
+     */
+    public static class HttpResponseException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final int responseCode;
+
+        public HttpResponseException(final int responseCode, final String message) {
+            super("Failed : HTTP error code : " + responseCode + " : " + message);
+            this.responseCode = responseCode;
+        }
+
+        public int getResponseCode() {
+            return responseCode;
+        }
+    }
+
+    private final int minLimit;
+    private final int maxLimit;
+
+    private double limit;
+    private int inFlight;
+    private double smoothedLatencyNanos = -1;
+    private double smoothedDurationNanos = -1;
+    private long lastDecreaseNanos = Long.MIN_VALUE;
+    private long delayNanos;
+    private long nextStartNanos = Long.MIN_VALUE;
+
+    public AdaptiveConcurrencyLimiter(final int minLimit, final int maxLimit) {
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = Math.max(minLimit, maxLimit / 4);
+    }
+
+    /**
+     * Runs the request once a slot is available, and adjusts the limit from its outcome.
+     */
+    public <T> T execute(final Request<T> request) throws Exception {
+        return execute(request, 1);
+    }
+
+    /**
+     * Runs the request once a slot is available, and adjusts the limit from its outcome.
+     *
+     * @param units the amount of work the request carries, such as the number of entities, which its latency is divided by
+     */
+    public <T> T execute(final Request<T> request, final int units) throws Exception {
+        final boolean saturated = acquire();
+        final long start = System.nanoTime();
+        boolean overloaded = false;
+        try {
+            return request.call();
+        } catch (Exception e) {
+            overloaded = isOverload(e);
+            throw e;
+        } finally {
+            release(start, System.nanoTime() - start, Math.max(1, units), overloaded, saturated);
+        }
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * @return whether this request uses the last available slot, i.e. whether the current limit is being exercised
+     */
+    private synchronized boolean acquire() throws InterruptedException {
+        while (true) {
+            if (inFlight >= (int) limit) {
+                wait();
+                continue;
+            }
+            final long waitNanos = nextStartNanos == Long.MIN_VALUE ? 0 : nextStartNanos - System.nanoTime();
+            if (waitNanos <= 0) {
+                break;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, waitNanos);
+        }
+        inFlight++;
+        if (delayNanos > 0) {
+            nextStartNanos = System.nanoTime() + delayNanos;
+        }
+        return inFlight >= (int) limit;
+    }
+
+    public synchronized long getDelayMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(delayNanos);
+    }
+
+    private synchronized void release(final long start, final long durationNanos, final int units, final boolean overloaded,
+            final boolean saturated) {
+        inFlight--;
+
+        final long latencyNanos = durationNanos / units;
+        final boolean slow = smoothedLatencyNanos > 0 && latencyNanos > LATENCY_TOLERANCE * smoothedLatencyNanos;
+        if (!overloaded) {
+            smoothedLatencyNanos = smoothedLatencyNanos < 0 ? latencyNanos
+                    : (1 - LATENCY_SMOOTHING) * smoothedLatencyNanos + LATENCY_SMOOTHING * latencyNanos;
+            smoothedDurationNanos = smoothedDurationNanos < 0 ? durationNanos
+                    : (1 - LATENCY_SMOOTHING) * smoothedDurationNanos + LATENCY_SMOOTHING * durationNanos;
+        }
+
+        if (overloaded || slow) {
+            if (start > lastDecreaseNanos) {
+                final String reason = overloaded ? "reported overload" : "responded in " + TimeUnit.NANOSECONDS.toMillis(latencyNanos) + " ms per unit";
+                lastDecreaseNanos = System.nanoTime();
+                if (saturated && (int) limit > minLimit) {
+                    final double previous = limit;
+                    limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+                    LOGGER.info("Atlas {}, reducing concurrent requests from {} to {}", new Object[] {reason, (int) previous, (int) limit});
+                } else {
+                    delayNanos = delayNanos == 0 ? Math.max(MIN_DELAY_NANOS, (long) Math.max(durationNanos, smoothedDurationNanos))
+                            : Math.min(MAX_DELAY_NANOS, delayNanos * 2);
+                    LOGGER.info("Atlas {}, spacing requests {} ms apart", new Object[] {reason, TimeUnit.NANOSECONDS.toMillis(delayNanos)});
+                }
+            }
+        } else if (delayNanos > 0) {
+            delayNanos = (long) (delayNanos * DELAY_RECOVERY_RATIO);
+            if (delayNanos < MIN_DELAY_NANOS) {
+                delayNanos = 0;
+                nextStartNanos = Long.MIN_VALUE;
+            }
+        } else if (saturated && limit < maxLimit) {
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+        notifyAll();
+    }
+
+    static boolean isOverload(final Throwable t) {
+        for (Throwable cause = t; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SocketTimeoutException || cause instanceof ConnectException) {
+                return true;
+            }
+            if (cause instanceof HttpResponseException) {
+                return isOverloadStatus(((HttpResponseException) cause).getResponseCode());
+            }
+            if (cause instanceof AtlasServiceException && ((AtlasServiceException) cause).getStatus() != null) {
+                return isOverloadStatus(((AtlasServiceException) cause).getStatus().getStatusCode());
+            }
+        }
+        return false;
+    }
+
+    static boolean isOverloadStatus(final int responseCode) {
+        return responseCode == 429 || responseCode >= 500;
+    }
+}
@@ -0,0 +1,254 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hortonworks.historian.nifi.reporter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.atlas.AtlasClient;
+import org.apache.atlas.typesystem.Referenceable;
+import org.apache.atlas.typesystem.persistence.Id;
+import org.apache.htrace.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hortonworks.historian.model.HistorianDataTypes;
+
+/**
+ * Loads a hierarchy of historian_asset entities into Atlas in bulk.
+ *
+ * The hierarchy file uses the same layout as the business taxonomy: a JSON array of nodes with a name and
+ * childNodes. A node may also list the names of the tags measured on that asset in tags. Assets are written in
+ * breadth-first order so that every parent is written no later than its children. Assets in the same request
+ * reference each other through temporary ids; references to assets written by an earlier request use the GUIDs
+ * resolved once per request. A parent whose children spill over into a later request is sent again with that request
+ * so that its child_assets ends up complete.
+ */
+public class AssetHierarchyLoader {
+
+    static final Logger LOGGER = LoggerFactory.getLogger(AssetHierarchyLoader.class);
+
+    static final String QUALIFIED_NAME_PREFIX = HistorianDataTypes.HISTORIAN_ASSET.getName() + ".";
+
+    private final AtlasClient atlasClient;
+    private final int batchSize;
+    private final AdaptiveConcurrencyLimiter limiter;
+
+    /**
+     * A single asset of the hierarchy.
+     */
+    public static class AssetNode {
+        private final String name;
+        private final String qualifiedName;
+        private final AssetNode parent;
+        private final List<AssetNode> children = new ArrayList<>();
+        private final List<String> tags = new ArrayList<>();
+        private int batch;
+        private int lastChildBatch = -1;
+
+        AssetNode(String name, AssetNode parent) {
+            this.name = name;
+            this.parent = parent;
+            this.qualifiedName = parent == null ? QUALIFIED_NAME_PREFIX + name : parent.qualifiedName + "." + name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getQualifiedName() {
+            return qualifiedName;
+        }
+
+        public AssetNode getParent() {
+            return parent;
+        }
+
+        public List<AssetNode> getChildren() {
+            return children;
+        }
+
+        public List<String> getTags() {
+            return tags;
+        }
+    }
+
+    private static class PendingNode {
+        private final Map<String, Object> json;
+        private final AssetNode parent;
+
+        PendingNode(Map<String, Object> json, AssetNode parent) {
+            this.json = json;
+            this.parent = parent;
+        }
+    }
+
+    public AssetHierarchyLoader(final AtlasClient atlasClient, final int batchSize, final AdaptiveConcurrencyLimiter limiter) {
+        this.atlasClient = atlasClient;
+        this.batchSize = batchSize;
+        this.limiter = limiter;
+    }
+
+    /**
+     * Reads a hierarchy file and returns its assets in breadth-first order.
+     */
+    @SuppressWarnings("unchecked")
+    public static List<AssetNode> readHierarchy(final File hierarchyFile) throws IOException {
+        final List<Map<String, Object>> roots = new ObjectMapper().readValue(hierarchyFile, List.class);
+
+        final List<AssetNode> ordered = new ArrayList<>();
+        final Deque<PendingNode> pending = new ArrayDeque<>();
+        for (Map<String, Object> root : roots) {
+            pending.add(new PendingNode(root, null));
+        }
+
+        while (!pending.isEmpty()) {
+            final PendingNode next = pending.poll();
+            final Map<String, Object> json = next.json;
+            final AssetNode parent = next.parent;
+
+            final AssetNode node = new AssetNode(json.get("name").toString(), parent);
+            if (parent != null) {
+                parent.children.add(node);
+            }
+            ordered.add(node);
+
+            final List<Object> tags = (List<Object>) json.get("tags");
+            if (tags != null) {
+                for (Object tag : tags) {
+                    node.tags.add(tag.toString());
+                }
+            }
+
+            final List<Map<String, Object>> childNodes = (List<Map<String, Object>>) json.get("childNodes");
+            if (childNodes != null) {
+                for (Map<String, Object> child : childNodes) {
+                    pending.add(new PendingNode(child, node));
+                }
+            }
+        }
+        return ordered;
+    }
+
+    /**
+     * Creates or updates every asset of the hierarchy file.
+     *
+     * @return the GUIDs of the assets, keyed by qualified name, for the assets that may be referenced later on
+     */
+    public Map<String, String> load(final File hierarchyFile) throws Exception {
+        return load(readHierarchy(hierarchyFile));
+    }
+
+    /**
+     * Creates or updates the assets of a hierarchy read by {@link #readHierarchy(File)}.
+     */
+    public Map<String, String> load(final List<AssetNode> ordered) throws Exception {
+        LOGGER.info("Loading {} historian assets in batches of {}", new Object[] {ordered.size(), batchSize});
+
+        for (int i = 0; i < ordered.size(); i++) {
+            final AssetNode node = ordered.get(i);
+            node.batch = i / batchSize;
+            if (node.parent != null) {
+                node.parent.lastChildBatch = Math.max(node.parent.lastChildBatch, node.batch);
+            }
+        }
+
+        final Map<String, String> guids = new HashMap<>();
+        for (int start = 0, batch = 0; start < ordered.size(); start += batchSize, batch++) {
+            final List<AssetNode> batchNodes = ordered.subList(start, Math.min(start + batchSize, ordered.size()));
+            publishBatch(batch, batchNodes, guids);
+        }
+        return guids;
+    }
+
+    private void publishBatch(final int batch, final List<AssetNode> batchNodes, final Map<String, String> guids) throws Exception {
+        final Map<AssetNode, Referenceable> members = new LinkedHashMap<>();
+        for (AssetNode node : batchNodes) {
+            members.put(node, new Referenceable(HistorianDataTypes.HISTORIAN_ASSET.getName()));
+        }
+        // parents written by an earlier batch are sent again so that they pick up the children written now
+        for (AssetNode node : batchNodes) {
+            if (node.parent != null && !members.containsKey(node.parent)) {
+                members.put(node.parent, new Referenceable(HistorianDataTypes.HISTORIAN_ASSET.getName()));
+            }
+        }
+
+        for (Map.Entry<AssetNode, Referenceable> member : members.entrySet()) {
+            final AssetNode node = member.getKey();
+            final Referenceable asset = member.getValue();
+            asset.set(AtlasClient.NAME, node.name);
+            asset.set(AtlasClient.REFERENCEABLE_ATTRIBUTE_NAME, node.qualifiedName);
+
+            final List<Id> parentAssets = new ArrayList<>();
+            if (node.parent != null) {
+                parentAssets.add(getId(node.parent, members, guids));
+            }
+            final List<Id> childAssets = new ArrayList<>();
+            for (AssetNode child : node.children) {
+                if (child.batch <= batch) {
+                    childAssets.add(getId(child, members, guids));
+                }
+            }
+            asset.set("parent_assets", parentAssets);
+            asset.set("child_assets", childAssets);
+        }
+
+        LOGGER.debug("Writing batch {} with {} historian assets", new Object[] {batch, members.size()});
+        final List<Referenceable> entities = new ArrayList<>(members.values());
+        limiter.execute(new AdaptiveConcurrencyLimiter.Request<Void>() {
+            @Override
+            public Void call() throws Exception {
+                atlasClient.updateEntities(entities);
+                return null;
+            }
+        }, entities.size());
+
+        final List<String> referencedLater = new ArrayList<>();
+        for (AssetNode node : members.keySet()) {
+            final boolean isParent = !node.children.isEmpty();
+            final boolean hasLateSiblings = node.parent != null && node.parent.lastChildBatch > batch;
+            if ((isParent || hasLateSiblings) && !guids.containsKey(node.qualifiedName)) {
+                referencedLater.add(node.qualifiedName);
+            }
+        }
+        final Map<String, Referenceable> references = ReferenceableUtil.getEntityReferencesFromDSL(atlasClient,
+                HistorianDataTypes.HISTORIAN_ASSET.getName(), AtlasClient.REFERENCEABLE_ATTRIBUTE_NAME, referencedLater);
+        for (Map.Entry<String, Referenceable> reference : references.entrySet()) {
+            guids.put(reference.getKey(), reference.getValue().getId()._getId());
+        }
+    }
+
+    private Id getId(final AssetNode node, final Map<AssetNode, Referenceable> members, final Map<String, String> guids) {
+        final Referenceable member = members.get(node);
+        if (member != null) {
+            return member.getId();
+        }
+        final String guid = guids.get(node.qualifiedName);
+        if (guid == null) {
+            throw new IllegalStateException("No GUID resolved for historian asset " + node.qualifiedName);
+        }
+        return new Id(guid, 0, HistorianDataTypes.HISTORIAN_ASSET.getName());
+    }
+}
@@ -0,0 +1,38 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hortonworks.historian.nifi.reporter;
+
+import java.util.List;
+
+import org.apache.atlas.AtlasClient.EntityResult;
+import org.apache.atlas.typesystem.Referenceable;
+
+/**
+ * Sends a batch of entity creates and updates to Atlas.
+ */
+public interface AtlasEntityPublisher {
+
+    /**
+     * Publishes the entities as one request.
+     *
+     * @return the Atlas response, or null when the publication path does not report created GUIDs
+     */
+    EntityResult publish(List<Referenceable> entities) throws Exception;
+
+    void close();
+}
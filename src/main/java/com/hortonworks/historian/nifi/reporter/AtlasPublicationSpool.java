@@ -0,0 +1,336 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hortonworks.historian.nifi.reporter;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.atlas.typesystem.Referenceable;
+import org.apache.atlas.typesystem.json.InstanceSerialization;
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Durable, append-only spool of entity changes waiting to be published to Atlas.
+ *
+ * Each line of the spool file holds one unit of change: a JSON array of Referenceables that must reach Atlas in the
+ * same request because they reference each other through temporary ids. A separate offset file records how far the
+ * publisher has drained the spool, so units survive a NiFi restart or an Atlas outage. Units that can never be
+ * published, because they are corrupt or Atlas rejects them, are moved to a dead-letter file so that they do not
+ * block the units behind them.
+ */
+public class AtlasPublicationSpool {
+
+    static final Logger LOGGER = LoggerFactory.getLogger(AtlasPublicationSpool.class);
+
+    static final String SPOOL_FILE_NAME = "atlas-publication.spool";
+    static final String OFFSET_FILE_NAME = "atlas-publication.offset";
+    static final String DEAD_LETTER_FILE_NAME = "atlas-publication.dead";
+    static final int READ_BUFFER_SIZE = 65536;
+
+    private final File spoolFile;
+    private final File offsetFile;
+    private final File deadLetterFile;
+    private final long maxPendingBytes;
+
+    private FileOutputStream spoolOut;
+    private long committedOffset;
+    private long spoolLength;
+
+    /**
+     * A unit read back from the spool together with the offset just past it.
+     */
+    public static class SpoolRecord {
+        private final List<Referenceable> entities;
+        private final long endOffset;
+
+        SpoolRecord(List<Referenceable> entities, long endOffset) {
+            this.entities = entities;
+            this.endOffset = endOffset;
+        }
+
+        public List<Referenceable> getEntities() {
+            return entities;
+        }
+
+        public long getEndOffset() {
+            return endOffset;
+        }
+    }
+
+    /**
+     * Thrown when the next unit of the spool cannot be parsed.
+     */
+    public static class CorruptUnitException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final long endOffset;
+
+        CorruptUnitException(final String message, final long endOffset, final Throwable cause) {
+            super(message, cause);
+            this.endOffset = endOffset;
+        }
+
+        /**
+         * @return the offset just past the corrupt unit
+         */
+        public long getEndOffset() {
+            return endOffset;
+        }
+    }
+
+    public AtlasPublicationSpool(final File directory, final long maxPendingBytes) throws IOException {
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Unable to create spool directory " + directory.getAbsolutePath());
+        }
+        this.spoolFile = new File(directory, SPOOL_FILE_NAME);
+        this.offsetFile = new File(directory, OFFSET_FILE_NAME);
+        this.deadLetterFile = new File(directory, DEAD_LETTER_FILE_NAME);
+        this.maxPendingBytes = maxPendingBytes;
+
+        committedOffset = readOffset();
+        spoolLength = recoverSpoolFile();
+        if (committedOffset > spoolLength) {
+            LOGGER.warn("Spool offset {} is past the end of {}, resetting", new Object[] {committedOffset, spoolFile});
+            committedOffset = spoolLength;
+        }
+        spoolOut = new FileOutputStream(spoolFile, true);
+    }
+
+    /**
+     * Appends a unit of change to the spool. Blocks while the spool holds more than the configured number of
+     * unpublished bytes.
+     *
+     * @param entities entities to be published together
+     * @param timeoutMillis how long to wait for the publisher to make room
+     * @return false if the spool stayed full for the whole timeout and nothing was written
+     */
+    public synchronized boolean append(final List<Referenceable> entities, final long timeoutMillis) throws IOException, InterruptedException {
+        if (entities == null || entities.isEmpty()) {
+            return true;
+        }
+
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (getPendingBytes() > maxPendingBytes) {
+            final long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+
+        final StringBuilder line = new StringBuilder("[");
+        for (int i = 0; i < entities.size(); i++) {
+            if (i > 0) {
+                line.append(',');
+            }
+            line.append(InstanceSerialization.toJson(entities.get(i), true));
+        }
+        line.append("]\n");
+
+        final byte[] bytes = line.toString().getBytes(StandardCharsets.UTF_8);
+        spoolOut.write(bytes);
+        spoolOut.flush();
+        spoolOut.getFD().sync();
+        spoolLength += bytes.length;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Reads whole units from the committed offset until at least one unit is returned and adding the next unit would
+     * exceed the given number of entities. Nothing is consumed until {@link #commit(long)} is called.
+     *
+     * @throws CorruptUnitException if the first unit cannot be parsed; a corrupt unit after it ends the read instead
+     */
+    public synchronized List<SpoolRecord> read(final int maxEntities) throws IOException {
+        final List<SpoolRecord> records = new ArrayList<>();
+        if (committedOffset >= spoolLength) {
+            return records;
+        }
+
+        int entityCount = 0;
+        long offset = committedOffset;
+        try (FileInputStream file = new FileInputStream(spoolFile)) {
+            file.getChannel().position(committedOffset);
+            final InputStream in = new BufferedInputStream(file, READ_BUFFER_SIZE);
+            final ByteArrayOutputStream line = new ByteArrayOutputStream();
+            while (offset < spoolLength) {
+                line.reset();
+                if (!readLine(in, line)) {
+                    break;
+                }
+                final long endOffset = offset + line.size() + 1;
+                final List<Referenceable> entities;
+                try {
+                    entities = parseUnit(new String(line.toByteArray(), StandardCharsets.UTF_8));
+                } catch (IOException e) {
+                    if (!records.isEmpty()) {
+                        break;
+                    }
+                    throw new CorruptUnitException(e.getMessage(), endOffset, e);
+                }
+                if (!records.isEmpty() && entityCount + entities.size() > maxEntities) {
+                    break;
+                }
+                records.add(new SpoolRecord(entities, endOffset));
+                entityCount += entities.size();
+                offset = endOffset;
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Marks everything before the given offset as published. Once the spool is fully drained it is truncated so that
+     * the file does not grow without bound.
+     */
+    public synchronized void commit(final long offset) throws IOException {
+        committedOffset = offset;
+        if (committedOffset >= spoolLength) {
+            spoolOut.close();
+            spoolOut = new FileOutputStream(spoolFile, false);
+            committedOffset = 0;
+            spoolLength = 0;
+        }
+        writeOffset(committedOffset);
+        notifyAll();
+    }
+
+    /**
+     * Moves the units between the committed offset and the given offset to the dead-letter file and commits past them.
+     */
+    public synchronized void deadLetter(final long endOffset) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(spoolFile, "r");
+                FileOutputStream out = new FileOutputStream(deadLetterFile, true)) {
+            in.seek(committedOffset);
+            final byte[] buffer = new byte[8192];
+            long remaining = endOffset - committedOffset;
+            while (remaining > 0) {
+                final int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0) {
+                    break;
+                }
+                out.write(buffer, 0, read);
+                remaining -= read;
+            }
+            out.flush();
+            out.getFD().sync();
+        }
+        LOGGER.warn("Moved {} bytes of unpublishable units from {} to {}", new Object[] {endOffset - committedOffset, spoolFile, deadLetterFile});
+        commit(endOffset);
+    }
+
+    /**
+     * Waits until there is something to publish or the timeout elapses.
+     */
+    public synchronized boolean awaitPending(final long timeoutMillis) throws InterruptedException {
+        if (getPendingBytes() == 0) {
+            wait(timeoutMillis);
+        }
+        return getPendingBytes() > 0;
+    }
+
+    public synchronized long getPendingBytes() {
+        return spoolLength - committedOffset;
+    }
+
+    public synchronized void close() throws IOException {
+        spoolOut.close();
+    }
+
+    private List<Referenceable> parseUnit(final String line) throws IOException {
+        final List<Referenceable> entities = new ArrayList<>();
+        try {
+            final JSONArray unit = new JSONArray(line);
+            for (int i = 0; i < unit.length(); i++) {
+                entities.add(InstanceSerialization.fromJsonReferenceable(unit.getJSONObject(i).toString(), true));
+            }
+        } catch (JSONException e) {
+            throw new IOException("Corrupt unit in " + spoolFile + ": " + e.getMessage(), e);
+        }
+        return entities;
+    }
+
+    /**
+     * Reads the bytes of a unit up to its line break into the line.
+     *
+     * @return false if the stream ended before a line break
+     */
+    private static boolean readLine(final InputStream in, final ByteArrayOutputStream line) throws IOException {
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                return true;
+            }
+            line.write(b);
+        }
+        return false;
+    }
+
+    /**
+     * Drops a partially written trailing unit left behind by a crash in the middle of an append.
+     */
+    private long recoverSpoolFile() throws IOException {
+        if (!spoolFile.exists()) {
+            return 0;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(spoolFile, "rw")) {
+            long length = raf.length();
+            while (length > 0) {
+                raf.seek(length - 1);
+                if (raf.read() == '\n') {
+                    break;
+                }
+                length--;
+            }
+            if (length != raf.length()) {
+                LOGGER.warn("Discarding {} bytes of incomplete unit at the end of {}", new Object[] {raf.length() - length, spoolFile});
+                raf.setLength(length);
+            }
+            return length;
+        }
+    }
+
+    private long readOffset() throws IOException {
+        if (!offsetFile.exists()) {
+            return 0;
+        }
+        final String value = new String(Files.readAllBytes(offsetFile.toPath()), StandardCharsets.UTF_8).trim();
+        return value.isEmpty() ? 0 : Long.parseLong(value);
+    }
+
+    private void writeOffset(final long offset) throws IOException {
+        final File tmp = new File(offsetFile.getParentFile(), OFFSET_FILE_NAME + ".tmp");
+        Files.write(tmp.toPath(), String.valueOf(offset).getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp.toPath(), offsetFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
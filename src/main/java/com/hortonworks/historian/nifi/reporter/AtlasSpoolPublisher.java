@@ -0,0 +1,254 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hortonworks.historian.nifi.reporter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.atlas.AtlasClient;
+import org.apache.atlas.AtlasClient.EntityResult;
+import org.apache.atlas.AtlasServiceException;
+import org.apache.atlas.typesystem.Referenceable;
+import org.apache.atlas.typesystem.persistence.Id;
+import org.codehaus.jettison.json.JSONException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hortonworks.historian.nifi.reporter.AdaptiveConcurrencyLimiter.HttpResponseException;
+import com.hortonworks.historian.nifi.reporter.AtlasPublicationSpool.SpoolRecord;
+
+/**
+ * Background task that drains the {@link AtlasPublicationSpool} into Atlas in batches.
+ *
+ * Within a batch, later changes to an entity are merged over earlier ones, so each entity is sent once in the position
+ * of its latest change, with the attributes of every change. A failed batch stays in the spool and is retried with an increasing delay.
+ *
+ * A batch that Atlas rejects with a client error is retried one unit at a time, to find the units it rejects. A unit
+ * rejected {@link #MAX_REJECTED_ATTEMPTS} times in a row, or a unit that cannot be read back from the spool, is moved
+ * to the dead-letter file of the spool so that the units behind it are published. Other failures, such as Atlas being
+ * unreachable, are retried until they succeed.
+ */
+public class AtlasSpoolPublisher implements Runnable {
+
+    static final Logger LOGGER = LoggerFactory.getLogger(AtlasSpoolPublisher.class);
+
+    static final long IDLE_WAIT_MILLIS = 1000L;
+    static final long MIN_RETRY_MILLIS = 1000L;
+    static final long MAX_RETRY_MILLIS = 60000L;
+    static final int MAX_REJECTED_ATTEMPTS = 3;
+
+    /**
+     * Notified with the Atlas response for every batch that was accepted. Publication paths that do not report the
+     * created GUIDs are not notified.
+     */
+    public interface PublicationListener {
+        /**
+         * @param entities the entities of the batch, as they were sent
+         */
+        void onPublished(List<Referenceable> entities, EntityResult result);
+    }
+
+    private final AtlasPublicationSpool spool;
+    private final AtlasEntityPublisher entityPublisher;
+    private final int batchSize;
+    private final PublicationListener listener;
+
+    private volatile boolean running = true;
+    private long isolateUntilOffset = -1;
+    private int rejectedAttempts;
+
+    public AtlasSpoolPublisher(final AtlasPublicationSpool spool, final AtlasEntityPublisher entityPublisher, final int batchSize,
+            final PublicationListener listener) {
+        this.spool = spool;
+        this.entityPublisher = entityPublisher;
+        this.batchSize = batchSize;
+        this.listener = listener;
+    }
+
+    public void stop() {
+        running = false;
+    }
+
+    @Override
+    public void run() {
+        long retryMillis = MIN_RETRY_MILLIS;
+        while (running && !Thread.currentThread().isInterrupted()) {
+            List<SpoolRecord> records = null;
+            try {
+                if (!spool.awaitPending(IDLE_WAIT_MILLIS)) {
+                    continue;
+                }
+                records = spool.read(isolateUntilOffset >= 0 ? 1 : batchSize);
+                if (records.isEmpty()) {
+                    continue;
+                }
+
+                final List<Referenceable> entities = new ArrayList<>();
+                for (SpoolRecord record : records) {
+                    entities.addAll(record.getEntities());
+                }
+                final List<Referenceable> batch = compact(entities);
+                LOGGER.debug("Publishing {} entities ({} before compaction) to Atlas", new Object[] {batch.size(), entities.size()});
+
+                final EntityResult result = entityPublisher.publish(batch);
+                final long endOffset = records.get(records.size() - 1).getEndOffset();
+                if (endOffset >= isolateUntilOffset) {
+                    isolateUntilOffset = -1;
+                }
+                spool.commit(endOffset);
+                retryMillis = MIN_RETRY_MILLIS;
+                rejectedAttempts = 0;
+
+                if (listener != null && result != null) {
+                    listener.onPublished(batch, result);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (AtlasPublicationSpool.CorruptUnitException e) {
+                LOGGER.error("Unable to read the next unit of the spool", e);
+                deadLetter(e.getEndOffset());
+            } catch (Exception e) {
+                if (records != null && !records.isEmpty() && isRejected(e)) {
+                    final long endOffset = records.get(records.size() - 1).getEndOffset();
+                    if (records.size() > 1) {
+                        LOGGER.warn("Atlas rejected a batch of {} units, publishing them one at a time", new Object[] {records.size(), e});
+                        isolateUntilOffset = endOffset;
+                        rejectedAttempts = 0;
+                        continue;
+                    }
+                    if (++rejectedAttempts >= MAX_REJECTED_ATTEMPTS) {
+                        LOGGER.error("Atlas rejected a unit {} times, giving up on it", new Object[] {rejectedAttempts, e});
+                        rejectedAttempts = 0;
+                        deadLetter(endOffset);
+                        continue;
+                    }
+                }
+                LOGGER.error("Failed to publish spooled entities to Atlas, retrying in {} ms", new Object[] {retryMillis, e});
+                try {
+                    Thread.sleep(retryMillis);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+                retryMillis = Math.min(retryMillis * 2, MAX_RETRY_MILLIS);
+            }
+        }
+    }
+
+    private void deadLetter(final long endOffset) {
+        try {
+            spool.deadLetter(endOffset);
+            if (endOffset >= isolateUntilOffset) {
+                isolateUntilOffset = -1;
+            }
+        } catch (IOException e) {
+            LOGGER.error("Failed to move an unpublishable unit to the dead-letter file", e);
+        }
+    }
+
+    /**
+     * @return whether Atlas refused the request itself, as opposed to being unreachable or overloaded, so that sending
+     * the same entities again cannot succeed
+     */
+    static boolean isRejected(final Throwable t) {
+        for (Throwable cause = t; cause != null; cause = cause.getCause()) {
+            if (cause instanceof JSONException) {
+                return true;
+            }
+            if (cause instanceof HttpResponseException) {
+                return isRejectedStatus(((HttpResponseException) cause).getResponseCode());
+            }
+            if (cause instanceof AtlasServiceException && ((AtlasServiceException) cause).getStatus() != null) {
+                return isRejectedStatus(((AtlasServiceException) cause).getStatus().getStatusCode());
+            }
+        }
+        return false;
+    }
+
+    static boolean isRejectedStatus(final int responseCode) {
+        return responseCode >= 400 && responseCode < 500 && !AdaptiveConcurrencyLimiter.isOverloadStatus(responseCode);
+    }
+
+    /**
+     * Keeps only the latest change for each entity, in the order of those latest changes. Attributes that only an
+     * earlier change set are carried over to the latest one. References to the temporary id of a superseded change are
+     * pointed at the id of the change that replaced it.
+     */
+    static List<Referenceable> compact(final List<Referenceable> entities) {
+        final LinkedHashMap<String, Referenceable> latest = new LinkedHashMap<>();
+        final Map<String, Id> replacedIds = new HashMap<>();
+
+        for (Referenceable entity : entities) {
+            final String key = getEntityKey(entity);
+            final Referenceable superseded = latest.remove(key);
+            if (superseded != null) {
+                for (Map.Entry<String, Object> attribute : superseded.getValuesMap().entrySet()) {
+                    if (!entity.getValuesMap().containsKey(attribute.getKey())) {
+                        entity.set(attribute.getKey(), attribute.getValue());
+                    }
+                }
+                if (superseded.getId() != null && entity.getId() != null) {
+                    replacedIds.put(superseded.getId()._getId(), entity.getId());
+                }
+            }
+            latest.put(key, entity);
+        }
+
+        if (!replacedIds.isEmpty()) {
+            for (Referenceable entity : latest.values()) {
+                remapReferences(entity, replacedIds);
+            }
+        }
+        return new ArrayList<>(latest.values());
+    }
+
+    static String getEntityKey(final Referenceable entity) {
+        final Object qualifiedName = entity.get(AtlasClient.REFERENCEABLE_ATTRIBUTE_NAME);
+        if (qualifiedName != null) {
+            return entity.getTypeName() + "|" + qualifiedName;
+        }
+        return entity.getTypeName() + "#" + entity.getId()._getId();
+    }
+
+    private static void remapReferences(final Referenceable entity, final Map<String, Id> replacedIds) {
+        for (Map.Entry<String, Object> attribute : new ArrayList<>(entity.getValuesMap().entrySet())) {
+            final Object value = attribute.getValue();
+            if (value instanceof Id) {
+                final Id replacement = replacedIds.get(((Id) value)._getId());
+                if (replacement != null) {
+                    entity.set(attribute.getKey(), replacement);
+                }
+            } else if (value instanceof Collection) {
+                boolean changed = false;
+                final List<Object> remapped = new ArrayList<>();
+                for (Object element : (Collection<?>) value) {
+                    final Id replacement = element instanceof Id ? replacedIds.get(((Id) element)._getId()) : null;
+                    remapped.add(replacement != null ? replacement : element);
+                    changed |= replacement != null;
+                }
+                if (changed) {
+                    entity.set(attribute.getKey(), remapped);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,301 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hortonworks.historian.nifi.reporter;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.htrace.fasterxml.jackson.databind.ObjectMapper;
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Brings the business taxonomy in Atlas in line with a desired term tree.
+ *
+ * The existing terms are read one parent at a time, descending only into the terms that have desired children, and
+ * only the missing terms are created. Terms are created one
+ * level of the tree at a time, so that every parent exists before its children, and the terms of a level are created
+ * in parallel within the limits of an {@link AdaptiveConcurrencyLimiter}.
+ */
+public class BusinessTaxonomySynchronizer {
+
+    static final Logger LOGGER = LoggerFactory.getLogger(BusinessTaxonomySynchronizer.class);
+
+    public static final String TAXONOMY_NAME = "Catalog";
+    public static final String UNASSIGNED_TERM = "Unassigned";
+
+    private final String atlasUrl;
+    private final String authorization;
+    private final int threads;
+    private final AdaptiveConcurrencyLimiter limiter;
+
+    /**
+     * A term of the desired taxonomy, identified by its path below the taxonomy.
+     */
+    public static class Term {
+        private final List<String> path;
+        private final String description;
+        private final List<String> tags;
+
+        Term(List<String> path, String description, List<String> tags) {
+            this.path = path;
+            this.description = description;
+            this.tags = tags;
+        }
+
+        public String getName() {
+            return path.get(path.size() - 1);
+        }
+
+        /**
+         * @return the historian tags the term stands for, which become searchable by the term name
+         */
+        public List<String> getTags() {
+            return tags;
+        }
+
+        String getQualifiedName() {
+            final StringBuilder name = new StringBuilder(TAXONOMY_NAME);
+            for (String element : path) {
+                name.append('.').append(element);
+            }
+            return name.toString();
+        }
+    }
+
+    public BusinessTaxonomySynchronizer(final String atlasUrl, final String authorization, final int threads,
+            final AdaptiveConcurrencyLimiter limiter) {
+        this.atlasUrl = atlasUrl;
+        this.authorization = authorization;
+        this.threads = threads;
+        this.limiter = limiter;
+    }
+
+    /**
+     * Reads the desired term tree from a taxonomy file. The Unassigned term is always part of the desired taxonomy.
+     */
+    @SuppressWarnings("unchecked")
+    public static List<Term> readTaxonomy(final File taxonomyFile) throws IOException {
+        final List<Term> terms = new ArrayList<>();
+        terms.add(new Term(Collections.singletonList(UNASSIGNED_TERM), "", Collections.<String>emptyList()));
+        if (taxonomyFile != null) {
+            final List<Map<String, Object>> roots = new ObjectMapper().readValue(taxonomyFile, List.class);
+            for (Map<String, Object> root : roots) {
+                collectTerms(root, new ArrayList<String>(), terms);
+            }
+        }
+        return terms;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void collectTerms(final Map<String, Object> node, final List<String> parentPath, final List<Term> terms) {
+        final List<String> path = new ArrayList<>(parentPath);
+        path.add(node.get("name").toString());
+        final Object description = node.get("description");
+        final List<String> tags = (List<String>) node.get("tags");
+        terms.add(new Term(path, description == null ? "" : description.toString(),
+                tags == null ? Collections.<String>emptyList() : tags));
+
+        final List<Map<String, Object>> childNodes = (List<Map<String, Object>>) node.get("childNodes");
+        if (childNodes != null) {
+            for (Map<String, Object> child : childNodes) {
+                collectTerms(child, path, terms);
+            }
+        }
+    }
+
+    /**
+     * Creates the terms of the desired taxonomy that do not exist in Atlas yet.
+     *
+     * @return the number of terms created
+     */
+    public int synchronize(final List<Term> desiredTerms) throws Exception {
+        final Set<String> existingTerms = getExistingTerms(desiredTerms);
+
+        final TreeMap<Integer, List<Term>> missingByLevel = new TreeMap<>();
+        final Set<String> seen = new HashSet<>();
+        for (Term term : desiredTerms) {
+            final String qualifiedName = term.getQualifiedName();
+            if (!existingTerms.contains(qualifiedName) && seen.add(qualifiedName)) {
+                List<Term> level = missingByLevel.get(term.path.size());
+                if (level == null) {
+                    level = new ArrayList<>();
+                    missingByLevel.put(term.path.size(), level);
+                }
+                level.add(term);
+            }
+        }
+        if (missingByLevel.isEmpty()) {
+            LOGGER.debug("Business taxonomy is up to date ({} terms)", new Object[] {existingTerms.size()});
+            return 0;
+        }
+
+        int created = 0;
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (Map.Entry<Integer, List<Term>> level : missingByLevel.entrySet()) {
+                LOGGER.info("Creating {} business terms at level {}", new Object[] {level.getValue().size(), level.getKey()});
+                final Map<Term, Future<Boolean>> results = new LinkedHashMap<>();
+                for (final Term term : level.getValue()) {
+                    results.put(term, executor.submit(new Callable<Boolean>() {
+                        @Override
+                        public Boolean call() throws Exception {
+                            return limiter.execute(new AdaptiveConcurrencyLimiter.Request<Boolean>() {
+                                @Override
+                                public Boolean call() throws Exception {
+                                    return createTerm(term);
+                                }
+                            });
+                        }
+                    }));
+                }
+                for (Map.Entry<Term, Future<Boolean>> result : results.entrySet()) {
+                    try {
+                        if (result.getValue().get()) {
+                            created++;
+                        }
+                    } catch (ExecutionException e) {
+                        throw new IOException("Unable to create business term " + result.getKey().getQualifiedName(), e.getCause());
+                    }
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return created;
+    }
+
+    /**
+     * Lists the existing terms level by level. Atlas only lists the direct children of a term, so the children of
+     * every existing term that is the parent of a desired term are listed as well.
+     */
+    private Set<String> getExistingTerms(final List<Term> desiredTerms) throws IOException, JSONException {
+        final Map<String, List<String>> desiredParents = new HashMap<>();
+        for (Term term : desiredTerms) {
+            for (int length = 1; length < term.path.size(); length++) {
+                final Term parent = new Term(term.path.subList(0, length), "", Collections.<String>emptyList());
+                desiredParents.put(parent.getQualifiedName(), parent.path);
+            }
+        }
+
+        final Set<String> names = new HashSet<>();
+        final Deque<List<String>> pending = new ArrayDeque<>();
+        pending.add(Collections.<String>emptyList());
+        while (!pending.isEmpty()) {
+            final List<String> parentPath = pending.poll();
+            final HttpURLConnection connection = openConnection(getTermUrl(parentPath) + "/terms", "GET");
+            final int responseCode = connection.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_NOT_FOUND) {
+                continue;
+            }
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                throw new AdaptiveConcurrencyLimiter.HttpResponseException(responseCode, connection.getResponseMessage());
+            }
+
+            final JSONArray terms = new JSONArray(readResponse(connection));
+            for (int i = 0; i < terms.length(); i++) {
+                final String name = terms.getJSONObject(i).getString("name");
+                final List<String> path = desiredParents.get(name);
+                if (names.add(name) && path != null) {
+                    pending.add(path);
+                }
+            }
+        }
+        return names;
+    }
+
+    private String getTermUrl(final List<String> path) throws IOException {
+        final StringBuilder termUrl = new StringBuilder(atlasUrl).append("/api/atlas/v1/taxonomies/").append(TAXONOMY_NAME);
+        for (String element : path) {
+            termUrl.append("/terms/").append(URLEncoder.encode(element, "UTF-8").replace("+", "%20"));
+        }
+        return termUrl.toString();
+    }
+
+    /**
+     * @return false if the term was created concurrently by someone else
+     */
+    private boolean createTerm(final Term term) throws IOException, JSONException {
+        final JSONObject definition = new JSONObject();
+        definition.put("description", term.description);
+
+        final HttpURLConnection connection = openConnection(getTermUrl(term.path), "POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "application/json");
+        try (OutputStream os = connection.getOutputStream()) {
+            os.write(definition.toString().getBytes(StandardCharsets.UTF_8));
+        }
+
+        final int responseCode = connection.getResponseCode();
+        if (responseCode == HttpURLConnection.HTTP_CONFLICT) {
+            return false;
+        }
+        if (responseCode != HttpURLConnection.HTTP_OK && responseCode != HttpURLConnection.HTTP_CREATED) {
+            throw new AdaptiveConcurrencyLimiter.HttpResponseException(responseCode, connection.getResponseMessage());
+        }
+        readResponse(connection);
+        LOGGER.debug("Created business term {}", new Object[] {term.getQualifiedName()});
+        return true;
+    }
+
+    private HttpURLConnection openConnection(final String urlString, final String method) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(urlString).openConnection();
+        connection.setRequestMethod(method);
+        connection.setRequestProperty("Authorization", authorization);
+        connection.setRequestProperty("X-XSRF-HEADER", "User");
+        return connection;
+    }
+
+    private String readResponse(final HttpURLConnection connection) throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        try (BufferedReader rd = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
+            final char[] buffer = new char[4096];
+            int read;
+            while ((read = rd.read(buffer)) != -1) {
+                sb.append(buffer, 0, read);
+            }
+        }
+        return sb.toString();
+    }
+}
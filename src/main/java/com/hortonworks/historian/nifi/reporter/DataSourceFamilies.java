@@ -0,0 +1,172 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hortonworks.historian.nifi.reporter;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.atlas.typesystem.persistence.Id;
+
+/**
+ * Groups Druid datasources that hold the same tags, so that tags are discovered once per group.
+ *
+ * Datasources are siblings when their names map to the same family name through the family pattern, and they have
+ * the tag dimension and the same set of string dimensions, as the raw and rolled-up datasources fed by the same
+ * Tranquility flow do. Each family has a leader that tags are discovered from: the member without query granularity,
+ * which holds every row, or else the first member by name. A group with more than one member without query
+ * granularity is not merged, since no member is known to hold the rows of the others.
+ */
+public class DataSourceFamilies {
+
+    /**
+     * The tag column of a family member, which discovered tags are linked to.
+     */
+    public static class TagColumn {
+        private final String table;
+        private final String column;
+        private final Id columnId;
+        private final String granularity;
+
+        public TagColumn(final String table, final String column, final Id columnId, final String granularity) {
+            this.table = table;
+            this.column = column;
+            this.columnId = columnId;
+            this.granularity = granularity;
+        }
+
+        public String getTable() {
+            return table;
+        }
+
+        public String getColumn() {
+            return column;
+        }
+
+        public Id getColumnId() {
+            return columnId;
+        }
+
+        public String getGranularity() {
+            return granularity;
+        }
+    }
+
+    private final Map<String, String> leaders = new HashMap<>();
+    private final Map<String, List<String>> families = new TreeMap<>();
+
+    /**
+     * @param dataSourceDetails the merged segmentMetadata of every datasource
+     * @param familyPattern matches the names of datasources that may belong to a family, capturing the family name in
+     *        its first group; datasources it does not match are not merged with any other
+     */
+    @SuppressWarnings("unchecked")
+    public DataSourceFamilies(final Map<String, Map<String, Object>> dataSourceDetails, final String tagDimension, final Pattern familyPattern) {
+        final Map<String, List<String>> byDimensions = new TreeMap<>();
+        for (String dataSource : new TreeSet<>(dataSourceDetails.keySet())) {
+            final Matcher familyName = familyPattern.matcher(dataSource);
+            if (!familyName.matches()) {
+                continue;
+            }
+            final Map<String, Object> details = dataSourceDetails.get(dataSource);
+            final Object columns = details == null ? null : details.get("columns");
+            if (!(columns instanceof Map)) {
+                continue;
+            }
+            final TreeSet<String> dimensions = new TreeSet<>();
+            for (Map.Entry<String, Object> column : ((Map<String, Object>) columns).entrySet()) {
+                if (column.getValue() instanceof Map
+                        && "STRING".equalsIgnoreCase(String.valueOf(((Map<String, Object>) column.getValue()).get("type")))) {
+                    dimensions.add(column.getKey().toLowerCase());
+                }
+            }
+            if (!dimensions.contains(tagDimension.toLowerCase())) {
+                continue;
+            }
+            final String key = (familyName.groupCount() > 0 && familyName.group(1) != null ? familyName.group(1) : dataSource)
+                    + dimensions.toString();
+            List<String> members = byDimensions.get(key);
+            if (members == null) {
+                members = new ArrayList<>();
+                byDimensions.put(key, members);
+            }
+            members.add(dataSource);
+        }
+
+        for (List<String> members : byDimensions.values()) {
+            String leader = members.get(0);
+            int ungranular = 0;
+            for (String member : members) {
+                if (isUngranular(dataSourceDetails.get(member))) {
+                    leader = member;
+                    ungranular++;
+                }
+            }
+            if (ungranular > 1) {
+                continue;
+            }
+            for (String member : members) {
+                leaders.put(member, leader);
+            }
+            families.put(leader, Collections.unmodifiableList(members));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static boolean isUngranular(final Map<String, Object> details) {
+        final Object queryGranularity = details.get("queryGranularity");
+        final Object type = queryGranularity instanceof Map ? ((Map<String, Object>) queryGranularity).get("type") : queryGranularity;
+        return "none".equalsIgnoreCase(String.valueOf(type));
+    }
+
+    /**
+     * @return whether tags of the datasource are discovered from it, which is also the case for datasources without the tag dimension
+     */
+    public boolean isLeader(final String dataSource) {
+        final String leader = leaders.get(dataSource);
+        return leader == null || leader.equals(dataSource);
+    }
+
+    /**
+     * @return the members of the family led by the datasource, including itself
+     */
+    public List<String> getMembers(final String leader) {
+        final List<String> members = families.get(leader);
+        return members == null ? Collections.singletonList(leader) : members;
+    }
+
+    /**
+     * Orders datasources so that the other members of a family come before its leader, and the leader can link the
+     * tags it discovers to their tag columns.
+     */
+    public List<String> order(final Collection<String> dataSources) {
+        final List<String> ordered = new ArrayList<>();
+        final List<String> leadersLast = new ArrayList<>();
+        for (String dataSource : dataSources) {
+            (isLeader(dataSource) ? leadersLast : ordered).add(dataSource);
+        }
+        ordered.addAll(leadersLast);
+        return ordered;
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hortonworks.historian.nifi.reporter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.htrace.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registers historian mappings, such as tag to alias or tag to asset, as Druid query-time lookups on the coordinator.
+ *
+ * Each mapping becomes a map lookup. A lookup is only sent when its content differs from the last version published,
+ * which is recognized by a digest of its sorted entries, and every version sent is numbered by the time it was
+ * published so that the Druid nodes replace the older version.
+ */
+public class DruidLookupPublisher {
+
+    static final Logger LOGGER = LoggerFactory.getLogger(DruidLookupPublisher.class);
+
+    public static final String TAG_ALIAS_LOOKUP = "historian_tag_alias";
+    public static final String TAG_ASSET_LOOKUP = "historian_tag_asset";
+    /** Joins the values of a tag mapped to several aliases or assets, which are sorted so the lookup is deterministic. */
+    public static final String MULTI_VALUE_SEPARATOR = "|";
+
+    private final String lookupConfigUrl;
+    private final String tier;
+    private final String authorization;
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    public DruidLookupPublisher(final String druidCoordinatorUrl, final String tier, final String authorization) {
+        this.lookupConfigUrl = druidCoordinatorUrl + "/druid/coordinator/v1/lookups/config";
+        this.tier = tier;
+        this.authorization = authorization;
+    }
+
+    /**
+     * Publishes a new version of the lookup if its content changed.
+     *
+     * @param publishedDigest the digest returned when the lookup was last published, or null
+     * @return the digest of the published content, or null if the content had not changed
+     */
+    public String publish(final String lookupName, final Map<String, String> entries, final String publishedDigest) throws IOException {
+        final Map<String, String> sortedEntries = new TreeMap<>(entries);
+        final String digest = digest(sortedEntries);
+        if (digest.equals(publishedDigest)) {
+            return null;
+        }
+
+        final Map<String, Object> extractorFactory = new LinkedHashMap<>();
+        extractorFactory.put("type", "map");
+        extractorFactory.put("map", sortedEntries);
+        final Map<String, Object> lookup = new LinkedHashMap<>();
+        lookup.put("version", String.format("%020d", System.currentTimeMillis()));
+        lookup.put("lookupExtractorFactory", extractorFactory);
+        final Map<String, Object> tierLookups = Collections.<String, Object>singletonMap(lookupName, lookup);
+
+        // the coordinator merges a bulk update into the existing configuration, leaving other lookups untouched
+        post(mapper.writeValueAsString(Collections.singletonMap(tier, tierLookups)));
+        LOGGER.info("Published version {} of Druid lookup {} with {} entries", new Object[] {lookup.get("version"), lookupName, sortedEntries.size()});
+        return digest;
+    }
+
+    static String digest(final Map<String, String> sortedEntries) {
+        try {
+            final MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+            for (Map.Entry<String, String> entry : sortedEntries.entrySet()) {
+                messageDigest.update(entry.getKey().getBytes(StandardCharsets.UTF_8));
+                messageDigest.update((byte) 0);
+                messageDigest.update(entry.getValue().getBytes(StandardCharsets.UTF_8));
+                messageDigest.update((byte) 0);
+            }
+            final StringBuilder hex = new StringBuilder();
+            for (byte b : messageDigest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void post(final String payload) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(lookupConfigUrl).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Authorization", authorization);
+        connection.setRequestProperty("Content-Type", "application/json");
+        try (OutputStream os = connection.getOutputStream()) {
+            os.write(payload.getBytes(StandardCharsets.UTF_8));
+        }
+        final int responseCode = connection.getResponseCode();
+        if (responseCode != HttpURLConnection.HTTP_OK && responseCode != HttpURLConnection.HTTP_ACCEPTED) {
+            throw new IOException("Failed : HTTP error code : " + responseCode + " : " + connection.getResponseMessage());
+        }
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hortonworks.historian.nifi.reporter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+import org.apache.htrace.fasterxml.jackson.core.JsonFactory;
+import org.apache.htrace.fasterxml.jackson.core.JsonParser;
+import org.apache.htrace.fasterxml.jackson.core.JsonToken;
+import org.apache.htrace.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Enumerates the distinct values of a Druid dimension in lexicographic order, page by page, with native queries sent
+ * straight to the broker.
+ *
+ * The strategy follows the cardinality of the dimension over the interval: up to {@link #TOPN_MAX_CARDINALITY} values
+ * are paged with topN queries ordered by the dimension, which continue after the last value of the previous page;
+ * above that, search queries with a bound filter after the last value page through the dimension dictionaries
+ * without touching the rows. Responses are decoded as a stream, so only one page of values is held in memory.
+ */
+public class DruidTagEnumerator {
+
+    static final Logger LOGGER = LoggerFactory.getLogger(DruidTagEnumerator.class);
+
+    static final long TOPN_MAX_CARDINALITY = 100000L;
+    static final String ALL_TIME_INTERVAL = "1000-01-01T00:00:00.000Z/3000-01-01T00:00:00.000Z";
+
+    enum Strategy {
+        TOP_N, SEARCH
+    }
+
+    private final String druidQueryUrl;
+    private final String authorization;
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final JsonFactory jsonFactory = new JsonFactory();
+
+    public DruidTagEnumerator(final String druidBrokerUrl, final String authorization) {
+        this.druidQueryUrl = druidBrokerUrl + "/druid/v2";
+        this.authorization = authorization;
+    }
+
+    /**
+     * @return the interval from the given time, or all time if it is negative, in the ISO format of Druid
+     */
+    public static String intervalFrom(final long fromMillis) {
+        if (fromMillis < 0) {
+            return ALL_TIME_INTERVAL;
+        }
+        final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(fromMillis)) + "/3000-01-01T00:00:00.000Z";
+    }
+
+    /**
+     * Starts enumerating the values of the dimension that come after the given value.
+     *
+     * @param afterValue the value to continue after, or null to start with the first value
+     */
+    public Cursor open(final String dataSource, final String dimension, final String interval, final String afterValue, final int pageSize) {
+        final long cardinality = getCardinality(dataSource, dimension, interval);
+        final Strategy strategy = cardinality >= 0 && cardinality <= TOPN_MAX_CARDINALITY ? Strategy.TOP_N : Strategy.SEARCH;
+        LOGGER.debug("Enumerating {}.{} with {} (cardinality {})", new Object[] {dataSource, dimension, strategy, cardinality});
+        return new Cursor(dataSource, dimension, interval, afterValue, pageSize, strategy);
+    }
+
+    /**
+     * @return the cardinality of the dimension over the interval, or -1 if it could not be determined
+     */
+    @SuppressWarnings("unchecked")
+    long getCardinality(final String dataSource, final String dimension, final String interval) {
+        final Map<String, Object> toInclude = new LinkedHashMap<>();
+        toInclude.put("type", "list");
+        toInclude.put("columns", Collections.singletonList(dimension));
+        final Map<String, Object> query = new LinkedHashMap<>();
+        query.put("queryType", "segmentMetadata");
+        query.put("dataSource", dataSource);
+        query.put("intervals", Collections.singletonList(interval));
+        query.put("toInclude", toInclude);
+        query.put("analysisTypes", Collections.singletonList("cardinality"));
+        query.put("merge", true);
+        try (InputStream in = post(mapper.writeValueAsString(query))) {
+            final List<Map<String, Object>> result = mapper.readValue(in, List.class);
+            if (result.isEmpty()) {
+                return 0L;
+            }
+            final Map<String, Object> columns = (Map<String, Object>) result.get(0).get("columns");
+            final Map<String, Object> column = columns == null ? null : (Map<String, Object>) columns.get(dimension);
+            final Object cardinality = column == null ? null : column.get("cardinality");
+            return cardinality instanceof Number ? ((Number) cardinality).longValue() : -1L;
+        } catch (IOException e) {
+            LOGGER.warn("Unable to determine the cardinality of {}.{}", new Object[] {dataSource, dimension, e});
+            return -1L;
+        }
+    }
+
+    /**
+     * The values of a dimension, fetched a page at a time.
+     */
+    public class Cursor {
+        private final String dataSource;
+        private final String dimension;
+        private final String interval;
+        private final int pageSize;
+        private final Strategy strategy;
+        private String lastValue;
+        private Iterator<String> page = Collections.<String>emptyList().iterator();
+        private boolean exhausted;
+
+        Cursor(final String dataSource, final String dimension, final String interval, final String afterValue, final int pageSize,
+                final Strategy strategy) {
+            this.dataSource = dataSource;
+            this.dimension = dimension;
+            this.interval = interval;
+            this.lastValue = afterValue;
+            this.pageSize = pageSize;
+            this.strategy = strategy;
+        }
+
+        Strategy getStrategy() {
+            return strategy;
+        }
+
+        /**
+         * @return the next value, or null once all values have been returned
+         */
+        public String next() throws IOException {
+            while (true) {
+                if (!page.hasNext()) {
+                    if (exhausted) {
+                        return null;
+                    }
+                    final List<String> values = fetchPage();
+                    exhausted = values.size() < pageSize;
+                    page = values.iterator();
+                    continue;
+                }
+                final String value = page.next();
+                // rows without the dimension come back as a null value, which sorts first and is not a tag
+                if (value != null) {
+                    lastValue = value;
+                    return value;
+                }
+            }
+        }
+
+        private List<String> fetchPage() throws IOException {
+            final Map<String, Object> query = new LinkedHashMap<>();
+            query.put("dataSource", dataSource);
+            query.put("granularity", "all");
+            query.put("intervals", Collections.singletonList(interval));
+            final String valueField;
+            if (strategy == Strategy.TOP_N) {
+                final Map<String, Object> metric = new LinkedHashMap<>();
+                metric.put("type", "dimension");
+                metric.put("ordering", "lexicographic");
+                if (lastValue != null) {
+                    metric.put("previousStop", lastValue);
+                }
+                final Map<String, Object> count = new LinkedHashMap<>();
+                count.put("type", "count");
+                count.put("name", "__rows");
+                query.put("queryType", "topN");
+                query.put("dimension", dimension);
+                query.put("metric", metric);
+                query.put("threshold", pageSize);
+                query.put("aggregations", Collections.singletonList(count));
+                valueField = dimension;
+            } else {
+                final Map<String, Object> contains = new LinkedHashMap<>();
+                contains.put("type", "contains");
+                contains.put("value", "");
+                query.put("queryType", "search");
+                query.put("searchDimensions", Collections.singletonList(dimension));
+                query.put("query", contains);
+                query.put("sort", Collections.singletonMap("type", "lexicographic"));
+                query.put("limit", pageSize);
+                if (lastValue != null) {
+                    final Map<String, Object> bound = new LinkedHashMap<>();
+                    bound.put("type", "bound");
+                    bound.put("dimension", dimension);
+                    bound.put("lower", lastValue);
+                    bound.put("lowerStrict", true);
+                    bound.put("ordering", "lexicographic");
+                    query.put("filter", bound);
+                }
+                valueField = "value";
+            }
+            try (InputStream in = post(mapper.writeValueAsString(query))) {
+                return readValues(in, valueField);
+            }
+        }
+    }
+
+    /**
+     * Reads the given field of every entry of the result arrays of a topN or search response:
+     * [{"timestamp": ..., "result": [{field: value, ...}, ...]}]. An entry with a null value yields null.
+     */
+    List<String> readValues(final InputStream in, final String valueField) throws IOException {
+        final List<String> values = new ArrayList<>();
+        try (JsonParser parser = jsonFactory.createParser(in)) {
+            int depth = 0;
+            JsonToken token;
+            while ((token = parser.nextToken()) != null) {
+                if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+                    depth++;
+                } else if (token == JsonToken.END_OBJECT || token == JsonToken.END_ARRAY) {
+                    depth--;
+                } else if (token == JsonToken.FIELD_NAME && depth == 4 && valueField.equals(parser.getCurrentName())) {
+                    values.add(parser.nextToken() == JsonToken.VALUE_NULL ? null : parser.getText());
+                }
+            }
+        }
+        return values;
+    }
+
+    private InputStream post(final String payload) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(druidQueryUrl).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Authorization", authorization);
+        connection.setRequestProperty("Content-Type", "application/json");
+        try (OutputStream os = connection.getOutputStream()) {
+            os.write(payload.getBytes(StandardCharsets.UTF_8));
+        }
+        if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+            throw new IOException("Failed : HTTP error code : " + connection.getResponseCode() + " : " + connection.getResponseMessage());
+        }
+        return connection.getInputStream();
+    }
+}
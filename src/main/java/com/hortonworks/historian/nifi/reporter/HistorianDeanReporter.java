@@ -39,12 +39,23 @@ import org.apache.htrace.fasterxml.jackson.core.JsonParseException;
 import org.apache.htrace.fasterxml.jackson.databind.JsonMappingException;
 import org.apache.htrace.fasterxml.jackson.databind.ObjectMapper;
 
+import org.apache.nifi.annotation.behavior.Stateful;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.components.AllowableValue;
 import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.state.Scope;
+import org.apache.nifi.components.state.StateManager;
 import org.apache.nifi.controller.ConfigurationContext;
+import org.apache.nifi.controller.status.ProcessGroupStatus;
+import org.apache.nifi.controller.status.ProcessorStatus;
+import org.apache.nifi.processor.DataUnit;
 import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.provenance.ProvenanceEventRecord;
 import org.apache.nifi.reporting.AbstractReportingTask;
+import org.apache.nifi.reporting.EventAccess;
 import org.apache.nifi.reporting.ReportingContext;
 import org.codehaus.jettison.json.JSONArray;
 import org.codehaus.jettison.json.JSONException;
@@ -53,8 +64,10 @@ import org.codehaus.jettison.json.JSONObject;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.hortonworks.historian.model.HistorianDataTypes;
+import com.hortonworks.nifi.controller.HistorianMetadataIndexService;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -63,22 +76,34 @@ import java.io.Reader;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.nio.charset.Charset;
-import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 
 @Tags({"reporting", "atlas", "historian", "orchestration"})
 @CapabilityDescription("Publishes Historian Tags from Druid to Apache Atlas, Exposes Druid Datasources as Hive Tables, Initiates Druid re-Indexing Jobs on Late Arriving Data.")
+@Stateful(scopes = Scope.LOCAL, description = "Keeps the id of the last provenance event reported, and the last tag value published by an "
+		+ "unfinished tag discovery, so that both resume from there on the next run, the time watermark of tag discovery per datasource, and a digest of each Druid lookup published.")
 public class HistorianDeanReporter extends AbstractReportingTask {
 
 	static final PropertyDescriptor HISTORIAN_TAG_DIMENSION = new PropertyDescriptor.Builder()
@@ -113,6 +138,39 @@ public class HistorianDeanReporter extends AbstractReportingTask {
             .defaultValue("jdbc:hive2://localhost:10500/default")
             .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
             .build();
+    static final PropertyDescriptor HIVE_MAX_CONNECTIONS = new PropertyDescriptor.Builder()
+            .name("Hive Max Connections")
+            .description("The maximum number of connections to Hive Server in use at once. Idle connections are validated before they are "
+            		+ "reused, and a connection whose session was lost is replaced. Tag discovery runs on its own threads, one fewer than this "
+            		+ "but at least one, so that several datasources are discovered at once while the tables and statistics of the others "
+            		+ "are updated on the remaining connection.")
+            .required(true)
+            .defaultValue("4")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+    static final PropertyDescriptor HIVE_FETCH_SIZE = new PropertyDescriptor.Builder()
+            .name("Hive Fetch Size")
+            .description("The number of rows fetched from Hive Server at a time. Tag discovery fetches a Tag Discovery Chunk Size at a time instead.")
+            .required(true)
+            .defaultValue("1000")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+    static final PropertyDescriptor HIVE_QUERY_TIMEOUT = new PropertyDescriptor.Builder()
+            .name("Hive Query Timeout")
+            .description("The time a Hive query may run, and the time to wait for a free Hive connection. Query timeouts are only applied "
+            		+ "if the Hive driver supports them.")
+            .required(true)
+            .defaultValue("10 min")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+    static final PropertyDescriptor PUBLISH_HIVE_STATISTICS = new PropertyDescriptor.Builder()
+            .name("Publish Hive Statistics")
+            .description("Whether to publish the row count, size and column cardinalities from the segment metadata of each Druid datasource "
+            		+ "as table and column statistics of its Hive table. Statistics are published again once they moved by more than 5%.")
+            .required(true)
+            .allowableValues("true", "false")
+            .defaultValue("false")
+            .build();
     static final PropertyDescriptor DRUID_BROKER_HTTP_ENDPOINT = new PropertyDescriptor.Builder()
     		.name("Druid Broker HTTP endpoint")
     		.description("Druid Broker HTTP endpoint")
@@ -129,6 +187,204 @@ public class HistorianDeanReporter extends AbstractReportingTask {
             .defaultValue("jdbc:mysql://localhost:3306/druid_meta")
             .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
             .build();
+    static final PropertyDescriptor LOCAL_STATE_DIRECTORY = new PropertyDescriptor.Builder()
+            .name("Local State Directory")
+            .description("The directory where the reporter keeps its durable Atlas publication spool and other local state.")
+            .required(true)
+            .expressionLanguageSupported(true)
+            .defaultValue("./state/historian-reporter")
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+    static final PropertyDescriptor ATLAS_PUBLICATION_BATCH_SIZE = new PropertyDescriptor.Builder()
+            .name("Atlas Publication Batch Size")
+            .description("The maximum number of entities sent to Atlas in a single request by the background publisher.")
+            .required(true)
+            .defaultValue("500")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+    static final PropertyDescriptor ATLAS_SPOOL_MAX_SIZE = new PropertyDescriptor.Builder()
+            .name("Atlas Spool Max Size")
+            .description("The amount of unpublished entity changes the spool may hold. When the spool is full the reporter waits for "
+            		+ "the publisher to catch up and defers the rest of its Atlas work to the next run.")
+            .required(true)
+            .defaultValue("100 MB")
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .build();
+    
+    static final PropertyDescriptor ASSET_HIERARCHY_FILE = new PropertyDescriptor.Builder()
+            .name("Asset Hierarchy File")
+            .description("A JSON file describing the plant hierarchy (name, childNodes and optionally the tags measured on each asset). "
+            		+ "When set, the historian_asset entities are created in bulk from this file, and again whenever the file changes.")
+            .required(false)
+            .expressionLanguageSupported(true)
+            .addValidator(StandardValidators.FILE_EXISTS_VALIDATOR)
+            .build();
+    
+    static final PropertyDescriptor BUSINESS_TAXONOMY_FILE = new PropertyDescriptor.Builder()
+            .name("Business Taxonomy File")
+            .description("A JSON file describing the business taxonomy (name, description, childNodes and optionally the tags the term "
+            		+ "stands for, for each term). When set, the terms missing from the Atlas Catalog taxonomy are created, and again whenever "
+            		+ "the file changes. Tags listed under a term can be searched by the term name in the Historian Metadata Index.")
+            .required(false)
+            .expressionLanguageSupported(true)
+            .addValidator(StandardValidators.FILE_EXISTS_VALIDATOR)
+            .build();
+    static final PropertyDescriptor TAXONOMY_SYNC_THREADS = new PropertyDescriptor.Builder()
+            .name("Taxonomy Sync Threads")
+            .description("The number of business terms created in parallel while synchronizing the business taxonomy.")
+            .required(true)
+            .defaultValue("8")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+    
+    static final PropertyDescriptor TAG_DISCOVERY_CHUNK_SIZE = new PropertyDescriptor.Builder()
+            .name("Tag Discovery Chunk Size")
+            .description("The number of discovered tags published to Atlas together. Only one chunk of tags is held in memory at a time.")
+            .required(true)
+            .defaultValue("1000")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+    static final AllowableValue TAG_DISCOVERY_MODE_HIVE = new AllowableValue("Hive", "Hive",
+    		"Tag values are read with a GROUP BY query on the Hive table over the datasource.");
+    static final AllowableValue TAG_DISCOVERY_MODE_DRUID = new AllowableValue("Druid Native", "Druid Native",
+    		"Tag values are read from the Druid broker with native topN or search queries, depending on the cardinality of the tag dimension.");
+    static final PropertyDescriptor TAG_DISCOVERY_MODE = new PropertyDescriptor.Builder()
+            .name("Tag Discovery Mode")
+            .description("How the distinct tag values of a datasource are enumerated.")
+            .required(true)
+            .allowableValues(TAG_DISCOVERY_MODE_HIVE, TAG_DISCOVERY_MODE_DRUID)
+            .defaultValue(TAG_DISCOVERY_MODE_HIVE.getValue())
+            .build();
+    static final PropertyDescriptor TAG_DISCOVERY_OVERLAP = new PropertyDescriptor.Builder()
+            .name("Tag Discovery Overlap")
+            .description("Tag discovery only scans the rows since the start of the previous complete scan of a datasource, reaching back by this "
+            		+ "much further to catch late arriving data. Rows that arrive later than this behind their timestamp are not scanned.")
+            .required(true)
+            .defaultValue("15 min")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+    static final PropertyDescriptor DATA_SOURCE_FAMILY_PATTERN = new PropertyDescriptor.Builder()
+            .name("Data Source Family Pattern")
+            .description("A regular expression matching the names of the Druid datasources fed by the same flow at different granularities, "
+            		+ "whose first group captures the name they share. Datasources with the same shared name and the same dimensions have their "
+            		+ "Tags discovered once, from the member without query granularity. Datasources the expression does not match are never merged.")
+            .required(true)
+            .defaultValue("(?i)(.+?)(?:[_-](?:raw|rollup|second|minute|hour|day|\\d+(?:s|sec|m|min|h|hr|d)))?")
+            .addValidator(StandardValidators.REGULAR_EXPRESSION_VALIDATOR)
+            .build();
+    static final PropertyDescriptor SEGMENT_METADATA_FULL_REFRESH = new PropertyDescriptor.Builder()
+            .name("Segment Metadata Full Refresh Interval")
+            .description("Each run only analyzes the Druid segments published since the previous run and merges them into a snapshot kept in the "
+            		+ "local state directory. All segments of a datasource are analyzed again this often, or as soon as a new segment changes its schema.")
+            .required(true)
+            .defaultValue("1 day")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+    static final PropertyDescriptor SEGMENT_SETTLE_TIME = new PropertyDescriptor.Builder()
+            .name("Segment Settle Time")
+            .description("Segments whose interval ended less than this long ago may still be served by the realtime tasks and are analyzed again "
+            		+ "on every run instead of being merged into the snapshot. Tag statistics likewise only cover rows older than this. Must "
+            		+ "be at least the Tranquility window period plus the time its tasks take to hand segments off.")
+            .required(true)
+            .defaultValue("1 hour")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+    static final PropertyDescriptor COLLECT_TAG_STATISTICS = new PropertyDescriptor.Builder()
+            .name("Collect Tag Statistics")
+            .description("Whether to maintain count, sum, min, max and first/last seen of every tag in a historian_tag_attribute, and its last "
+            		+ "value when the datasource has a last aggregator such as doubleLast. Statistics are updated from the rows ingested since the "
+            		+ "previous run.")
+            .required(true)
+            .allowableValues("true", "false")
+            .defaultValue("true")
+            .build();
+    static final PropertyDescriptor REPORT_PROVENANCE_LINEAGE = new PropertyDescriptor.Builder()
+            .name("Report Provenance Lineage")
+            .description("Whether to publish the lineage of the data NiFi sends out, derived from provenance events, as historian_flow processes.")
+            .required(true)
+            .allowableValues("true", "false")
+            .defaultValue("true")
+            .build();
+    static final PropertyDescriptor PROVENANCE_PAGE_SIZE = new PropertyDescriptor.Builder()
+            .name("Provenance Page Size")
+            .description("The number of provenance events read at a time. The lineage of each page is published before the next page is read.")
+            .required(true)
+            .defaultValue("1000")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+    static final PropertyDescriptor HISTORIAN_METADATA_INDEX = new PropertyDescriptor.Builder()
+            .name("Historian Metadata Index Service")
+            .description("If set, the columns and tags published to Atlas are also added to this index, which serves metadata lookups on the query path.")
+            .required(false)
+            .identifiesControllerService(HistorianMetadataIndexService.class)
+            .build();
+    static final PropertyDescriptor DRUID_COORDINATOR_HTTP_ENDPOINT = new PropertyDescriptor.Builder()
+    		.name("Druid Coordinator HTTP endpoint")
+    		.description("If set, the tag to alias mapping of the Business Taxonomy File and the tag to asset mapping of the Asset Hierarchy File "
+    				+ "are registered as the Druid lookups " + DruidLookupPublisher.TAG_ALIAS_LOOKUP + " and " + DruidLookupPublisher.TAG_ASSET_LOOKUP
+    				+ ", so that queries can filter and group by alias or asset. A tag listed under several terms or assets maps to all of them, "
+    				+ "sorted and joined with '" + DruidLookupPublisher.MULTI_VALUE_SEPARATOR + "', so such tags are matched with a like or regex filter "
+    				+ "rather than by equality; the number of these tags is logged whenever the lookups are published.")
+            .required(false)
+            .expressionLanguageSupported(true)
+            .addValidator(StandardValidators.URL_VALIDATOR)
+            .build();
+    static final PropertyDescriptor DRUID_LOOKUP_TIER = new PropertyDescriptor.Builder()
+    		.name("Druid Lookup Tier")
+    		.description("The Druid tier the lookups are registered for.")
+            .required(true)
+            .defaultValue("__default")
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+    static final PropertyDescriptor ATLAS_MAX_CONCURRENT_REQUESTS = new PropertyDescriptor.Builder()
+            .name("Atlas Max Concurrent Requests")
+            .description("The upper bound for concurrent write requests to Atlas, such as those of the business taxonomy synchronization. "
+            		+ "The number of requests actually in flight adapts between 1 and this bound to the latency per entity and error "
+            		+ "responses observed from Atlas. The spool publisher sends one batch at a time, and is slowed down by spacing its "
+            		+ "batches apart when Atlas shows overload.")
+            .required(true)
+            .defaultValue("16")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+    
+    static final AllowableValue PUBLICATION_MODE_REST = new AllowableValue("REST", "REST",
+    		"Entity changes are sent with the Atlas REST API and newly created tags are assigned the Unassigned term.");
+    static final AllowableValue PUBLICATION_MODE_HOOK = new AllowableValue("Hook Topic", "Hook Topic",
+    		"Entity changes are sent as hook notifications to the Atlas hook topic in Kafka. Atlas does not report created GUIDs on this "
+    		+ "path, so newly created tags are not assigned the Unassigned term.");
+    static final PropertyDescriptor ATLAS_PUBLICATION_MODE = new PropertyDescriptor.Builder()
+            .name("Atlas Publication Mode")
+            .description("How entity changes are sent to Atlas. Type management and reads always use the REST API.")
+            .required(true)
+            .allowableValues(PUBLICATION_MODE_REST, PUBLICATION_MODE_HOOK)
+            .defaultValue(PUBLICATION_MODE_REST.getValue())
+            .build();
+    static final PropertyDescriptor KAFKA_BOOTSTRAP_SERVERS = new PropertyDescriptor.Builder()
+            .name("Kafka Bootstrap Servers")
+            .description("Comma-separated list of Kafka brokers used by the Hook Topic publication mode.")
+            .required(false)
+            .expressionLanguageSupported(true)
+            .defaultValue("localhost:6667")
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+    static final PropertyDescriptor ATLAS_HOOK_TOPIC = new PropertyDescriptor.Builder()
+            .name("Atlas Hook Topic")
+            .description("The Kafka topic Atlas consumes hook notifications from, used by the Hook Topic publication mode.")
+            .required(false)
+            .expressionLanguageSupported(true)
+            .defaultValue(KafkaHookMessageTransport.DEFAULT_TOPIC)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+    
+    static final long SPOOL_APPEND_TIMEOUT_MILLIS = 30000L;
+    static final String TAG_DISCOVERY_CURSOR_PREFIX = "tagDiscovery.";
+    static final String TAG_DISCOVERY_WATERMARK_PREFIX = "tagDiscovery.watermark.";
+    static final String TAG_DISCOVERY_SCAN_START_PREFIX = "tagDiscovery.scanStart.";
+    static final String TAG_STATISTICS_ATTRIBUTE_NAME = "statistics";
+    static final String PROVENANCE_CURSOR_KEY = "provenance.lastEventId";
+    static final int MAX_TRACKED_FLOWFILES = 100000;
+    static final String DRUID_LOOKUP_DIGEST_PREFIX = "druidLookup.";
+    static final String DRUID_STORAGE_HANDLER = "org.apache.hadoop.hive.druid.DruidStorageHandler";
     
     private int timesTriggered = 0;
     private AtlasClient atlasClient;
@@ -144,13 +400,28 @@ public class HistorianDeanReporter extends AbstractReportingTask {
     private String[] basicAuth = {DEFAULT_ADMIN_USER, DEFAULT_ADMIN_PASS};
     
     private DataTypes.MapType STRING_MAP_TYPE = new DataTypes.MapType(DataTypes.STRING_TYPE, DataTypes.STRING_TYPE);
-    private Map<String,Object> entityMap = new HashMap<String,Object>();
+    private long assetHierarchyLastModified = 0L;
+    private long assetHierarchyIndexedModified = 0L;
+    private Map<String,List<String>> indexedAssets = new HashMap<String,List<String>>();
+    private Long businessTaxonomyLastModified = null;
+    private Long businessTaxonomyIndexedModified = null;
     
     private String NAME = "name";
     private String SOURCE = "source";
     private String DESTINATION = "destination";
     private String PROPERTIES = "parameters";
     private String TAG_DIMENSION_NAME = "tag_dimension";
+    private int tagDiscoveryChunkSize = 1000;
+    private long tagDiscoveryOverlapMillis = 0L;
+    private DruidTagEnumerator druidTagEnumerator;
+    private StateManager stateManager;
+    private TagStatisticsCollector tagStatisticsCollector;
+    private SegmentMetadataSnapshots segmentMetadataSnapshots;
+    private ProvenanceLineageCollector provenanceLineageCollector;
+    private HistorianMetadataIndexService metadataIndex;
+    private DruidLookupPublisher druidLookupPublisher;
+    private Long druidLookupsTaxonomyModified = null;
+    private long druidLookupsHierarchyModified = 0L;
     
     private Map<String,Map<String, Object>> dataSourceDetails = new HashMap<String,Map<String,Object>>();
     private Map<String, EnumTypeDefinition> enumTypeDefinitionMap = new HashMap<String, EnumTypeDefinition>();
@@ -159,7 +430,21 @@ public class HistorianDeanReporter extends AbstractReportingTask {
 	private List<Referenceable> inputs;
 	private List<Referenceable> outputs;
 	
-	Connection hiveConnection;
+	private HiveConnectionPool hiveConnectionPool;
+	private HiveStatisticsPublisher hiveStatisticsPublisher;
+	private Map<String, Set<String>> hiveTableColumns;
+	private final Set<String> foreignHiveTables = new HashSet<String>();
+	private DataSourceFamilies dataSourceFamilies;
+	private Pattern dataSourceFamilyPattern;
+	private Map<String, DataSourceFamilies.TagColumn> familyTagColumns = new HashMap<String, DataSourceFamilies.TagColumn>();
+	private ExecutorService tagDiscoveryExecutor;
+	private final List<Future<?>> tagDiscoveries = new ArrayList<Future<?>>();
+	
+	private AtlasPublicationSpool atlasSpool;
+	private AtlasSpoolPublisher atlasPublisher;
+	private AtlasEntityPublisher atlasEntityPublisher;
+	private AdaptiveConcurrencyLimiter atlasLimiter;
+	private Thread atlasPublisherThread;
 	
     @Override
     protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
@@ -168,13 +453,89 @@ public class HistorianDeanReporter extends AbstractReportingTask {
         properties.add(ATLAS_URL);
         properties.add(NIFI_URL);
         properties.add(HIVE_SERVER_CONNECTION_STRING);
+        properties.add(HIVE_MAX_CONNECTIONS);
+        properties.add(HIVE_FETCH_SIZE);
+        properties.add(HIVE_QUERY_TIMEOUT);
+        properties.add(PUBLISH_HIVE_STATISTICS);
         properties.add(DRUID_BROKER_HTTP_ENDPOINT);
         //properties.add(DRUID_METASTORE_CONNECTION_STRING);
+        properties.add(LOCAL_STATE_DIRECTORY);
+        properties.add(ATLAS_PUBLICATION_BATCH_SIZE);
+        properties.add(ATLAS_SPOOL_MAX_SIZE);
+        properties.add(ATLAS_PUBLICATION_MODE);
+        properties.add(KAFKA_BOOTSTRAP_SERVERS);
+        properties.add(ATLAS_HOOK_TOPIC);
+        properties.add(ASSET_HIERARCHY_FILE);
+        properties.add(BUSINESS_TAXONOMY_FILE);
+        properties.add(TAXONOMY_SYNC_THREADS);
+        properties.add(ATLAS_MAX_CONCURRENT_REQUESTS);
+        properties.add(TAG_DISCOVERY_MODE);
+        properties.add(TAG_DISCOVERY_CHUNK_SIZE);
+        properties.add(TAG_DISCOVERY_OVERLAP);
+        properties.add(DATA_SOURCE_FAMILY_PATTERN);
+        properties.add(SEGMENT_METADATA_FULL_REFRESH);
+        properties.add(SEGMENT_SETTLE_TIME);
+        properties.add(COLLECT_TAG_STATISTICS);
+        properties.add(REPORT_PROVENANCE_LINEAGE);
+        properties.add(PROVENANCE_PAGE_SIZE);
+        properties.add(HISTORIAN_METADATA_INDEX);
+        properties.add(DRUID_COORDINATOR_HTTP_ENDPOINT);
+        properties.add(DRUID_LOOKUP_TIER);
         return properties;
     }
     
     public void initialize(ConfigurationContext reportingConfig){}
     
+    /**
+     * Creates the tag statistics collector once, so that the statistics it keeps per datasource are only read from
+     * the local state directory on the first run.
+     */
+    @OnScheduled
+    public void createTagStatisticsCollector(ConfigurationContext context) {
+    	if(context.getProperty(COLLECT_TAG_STATISTICS).asBoolean()){
+    		File stateDirectory = new File(context.getProperty(LOCAL_STATE_DIRECTORY).evaluateAttributeExpressions().getValue());
+    		tagStatisticsCollector = new TagStatisticsCollector(stateDirectory, context.getProperty(DRUID_BROKER_HTTP_ENDPOINT).getValue(),
+    				"Basic " + encoding, context.getProperty(SEGMENT_SETTLE_TIME).asTimePeriod(TimeUnit.MILLISECONDS));
+    	}else{
+    		tagStatisticsCollector = null;
+    	}
+    }
+    
+    @OnStopped
+    public void closeHiveConnectionPool() {
+    	if (tagDiscoveryExecutor != null) {
+    		tagDiscoveryExecutor.shutdownNow();
+    		tagDiscoveryExecutor = null;
+    	}
+    	if (hiveConnectionPool != null) {
+    		hiveConnectionPool.close();
+    		hiveConnectionPool = null;
+    		hiveStatisticsPublisher = null;
+    	}
+    }
+    
+    @OnStopped
+    public void stopAtlasPublisher() {
+    	if (atlasPublisher != null) {
+    		getLogger().info("********************* Stopping Atlas Publisher...");
+    		atlasPublisher.stop();
+    		atlasPublisherThread.interrupt();
+    		try {
+    			atlasPublisherThread.join(SPOOL_APPEND_TIMEOUT_MILLIS);
+    			atlasEntityPublisher.close();
+    			atlasSpool.close();
+    		} catch (InterruptedException e) {
+    			Thread.currentThread().interrupt();
+    		} catch (IOException e) {
+    			e.printStackTrace();
+    		}
+    		atlasPublisher = null;
+    		atlasEntityPublisher = null;
+    		atlasPublisherThread = null;
+    		atlasSpool = null;
+    	}
+    }
+    
     @Override
     public void onTrigger(ReportingContext reportingContext) {
     	// create the Atlas client if we don't have one
@@ -185,41 +546,74 @@ public class HistorianDeanReporter extends AbstractReportingTask {
     	*/
         inputs = new ArrayList<Referenceable>();
     	outputs = new ArrayList<Referenceable>();
-        //EventAccess eventAccess = reportingContext.getEventAccess();
-        //int pageSize = reportingContext.getProperty(ACTION_PAGE_SIZE).asInteger();
         atlasUrl = reportingContext.getProperty(ATLAS_URL).getValue();
         nifiUrl = reportingContext.getProperty(NIFI_URL).getValue();
         druidBrokerUrl = reportingContext.getProperty(DRUID_BROKER_HTTP_ENDPOINT).getValue();
         hiveServerUri = reportingContext.getProperty(HIVE_SERVER_CONNECTION_STRING).getValue();
         TAG_DIMENSION_NAME = reportingContext.getProperty(HISTORIAN_TAG_DIMENSION).getValue();
+        tagDiscoveryChunkSize = reportingContext.getProperty(TAG_DISCOVERY_CHUNK_SIZE).asInteger();
+        tagDiscoveryOverlapMillis = reportingContext.getProperty(TAG_DISCOVERY_OVERLAP).asTimePeriod(TimeUnit.MILLISECONDS);
+        dataSourceFamilyPattern = Pattern.compile(reportingContext.getProperty(DATA_SOURCE_FAMILY_PATTERN).getValue());
+        if(TAG_DISCOVERY_MODE_DRUID.getValue().equals(reportingContext.getProperty(TAG_DISCOVERY_MODE).getValue())){
+        	druidTagEnumerator = new DruidTagEnumerator(druidBrokerUrl, "Basic " + encoding);
+        }else{
+        	druidTagEnumerator = null;
+        }
+        stateManager = reportingContext.getStateManager();
+        metadataIndex = reportingContext.getProperty(HISTORIAN_METADATA_INDEX).asControllerService(HistorianMetadataIndexService.class);
+        if(reportingContext.getProperty(DRUID_COORDINATOR_HTTP_ENDPOINT).isSet()){
+        	druidLookupPublisher = new DruidLookupPublisher(reportingContext.getProperty(DRUID_COORDINATOR_HTTP_ENDPOINT).evaluateAttributeExpressions().getValue(),
+        			reportingContext.getProperty(DRUID_LOOKUP_TIER).getValue(), "Basic " + encoding);
+        }else{
+        	druidLookupPublisher = null;
+        }
+        segmentMetadataSnapshots = new SegmentMetadataSnapshots(new File(reportingContext.getProperty(LOCAL_STATE_DIRECTORY).evaluateAttributeExpressions().getValue()),
+        		druidBrokerUrl, "Basic " + encoding, reportingContext.getProperty(SEGMENT_METADATA_FULL_REFRESH).asTimePeriod(TimeUnit.MILLISECONDS),
+        		reportingContext.getProperty(SEGMENT_SETTLE_TIME).asTimePeriod(TimeUnit.MILLISECONDS));
         //druidMetaUri = reportingContext.getProperty(DRUID_METASTORE_CONNECTION_STRING).getValue();
         String[] atlasURL = {atlasUrl};
 		
     	if (atlasClient == null) {
             getLogger().info("Creating new Atlas client for {}", new Object[] {atlasUrl});
             atlasClient = new AtlasClient(atlasURL, basicAuth);
+            atlasLimiter = new AdaptiveConcurrencyLimiter(1, reportingContext.getProperty(ATLAS_MAX_CONCURRENT_REQUESTS).asInteger());
         }
     	
+    	if (atlasPublisher == null) {
+    		startAtlasPublisher(reportingContext);
+    	}
+    	
     	if(atlasVersion == 0.0){
         	atlasVersion = Double.valueOf(getAtlasVersion(atlasUrl + "/api/atlas/admin/version", basicAuth));
         	getLogger().info("********************* Atlas Version is: " + atlasVersion);
     	}
     	
     	getLogger().info("********************* Number of Reports Sent: " + timesTriggered);
-        if(timesTriggered == 0){
+        if(hiveConnectionPool == null){
         	String hiveUsername = "hive";
 		    String hivePassword = "hive";
-		    
+		    int queryTimeoutSeconds = reportingContext.getProperty(HIVE_QUERY_TIMEOUT).asTimePeriod(TimeUnit.SECONDS).intValue();
+        	try {
+        		getLogger().info("********************* Creating Connection Pool for Hive Server...");
+        		hiveConnectionPool = new HiveConnectionPool(hiveServerUri, hiveUsername, hivePassword,
+        				reportingContext.getProperty(HIVE_MAX_CONNECTIONS).asInteger(), reportingContext.getProperty(HIVE_FETCH_SIZE).asInteger(),
+        				queryTimeoutSeconds, TimeUnit.SECONDS.toMillis(queryTimeoutSeconds));
+        	} catch (ClassNotFoundException e) {
+        		e.printStackTrace();
+        	}
+        }
+        if(tagDiscoveryExecutor == null){
+        	tagDiscoveryExecutor = Executors.newFixedThreadPool(Math.max(1, reportingContext.getProperty(HIVE_MAX_CONNECTIONS).asInteger() - 1));
+        }
+        if(reportingContext.getProperty(PUBLISH_HIVE_STATISTICS).asBoolean()){
+        	if(hiveStatisticsPublisher == null && hiveConnectionPool != null){
+        		hiveStatisticsPublisher = new HiveStatisticsPublisher(hiveConnectionPool);
+        	}
+        }else{
+        	hiveStatisticsPublisher = null;
+        }
+        if(timesTriggered == 0){
         	try {
-        		getLogger().info("********************* Establishing Connection to Hive Server...");
-        		Class.forName("org.apache.hive.jdbc.HiveDriver");
-        		hiveConnection = DriverManager.getConnection(hiveServerUri, hiveUsername, hivePassword);
-				
-        		getLogger().info("********************* Create Business Taxonomy Terms...");
-        		String termPath = "/Catalog/terms/Unassigned";
-        		String termDefinition = "{\"name\":\"Unassigned\",\"description\":\"\"}";
-        		createBusinessTerm(termPath, termDefinition);
-        		
 				getLogger().info("********************* Checking if data model has been created...");
 				/*
 				try {
@@ -240,31 +634,214 @@ public class HistorianDeanReporter extends AbstractReportingTask {
 				e.printStackTrace();
 			} catch (AtlasException e) {
 				e.printStackTrace();
-			} catch (ClassNotFoundException e) {
-				e.printStackTrace();
-			} catch (SQLException e) {
-				e.printStackTrace();
 			}
         }
         timesTriggered++;
         
+        if(reportingContext.getProperty(REPORT_PROVENANCE_LINEAGE).asBoolean()){
+        	reportProvenanceLineage(reportingContext);
+        }
+        
+        File taxonomyFile = null;
+        if(reportingContext.getProperty(BUSINESS_TAXONOMY_FILE).isSet()){
+        	taxonomyFile = new File(reportingContext.getProperty(BUSINESS_TAXONOMY_FILE).evaluateAttributeExpressions().getValue());
+        }
+        synchronizeBusinessTaxonomy(taxonomyFile, reportingContext.getProperty(TAXONOMY_SYNC_THREADS).asInteger());
+        
+        File hierarchyFile = null;
+        if(reportingContext.getProperty(ASSET_HIERARCHY_FILE).isSet()){
+        	hierarchyFile = new File(reportingContext.getProperty(ASSET_HIERARCHY_FILE).evaluateAttributeExpressions().getValue());
+        	registerHistorianMetaData(hierarchyFile, reportingContext.getProperty(ATLAS_PUBLICATION_BATCH_SIZE).asInteger());
+        }
+        
+        if(druidLookupPublisher != null){
+        	publishDruidLookups(taxonomyFile, hierarchyFile);
+        }
+        
         getLogger().info("********************* Looking for Druid Datasources to expose as Hive Tables or update with new information...");
-        Iterator<String> resultIterator = getDruidDataSourceList().iterator();
+        List<String> dataSources = getDruidDataSourceList();
+        for(String dataSource : dataSources){
+        	dataSourceDetails.put(dataSource, getDruidDataSourceDetails(dataSource));
+        }
+        dataSourceFamilies = new DataSourceFamilies(dataSourceDetails, TAG_DIMENSION_NAME, dataSourceFamilyPattern);
+        familyTagColumns.clear();
+        
+        Iterator<String> resultIterator = dataSourceFamilies.order(dataSources).iterator();
 		while(resultIterator.hasNext()){
 			String dataSource = resultIterator.next();
-			dataSourceDetails.put(dataSource, getDruidDataSourceDetails(dataSource));
 			
 			getLogger().info("********************* Exposing Druid Data Source: " + dataSource);
 			exposeDruidDataSourceAsHiveTable(dataSource);
 			
+			if(hiveStatisticsPublisher != null){
+				try {
+					hiveStatisticsPublisher.publish(dataSource, dataSourceDetails.get(dataSource));
+				} catch (SQLException e) {
+					e.printStackTrace();
+				}
+			}
+			
 			getLogger().info("********************* Update Atlas Hive Tables and Column for Druid Data Source: " + dataSource);
 			updateDataSourceHiveColumnAttributes(dataSource);
 		}
+		awaitTagDiscoveries();
 
 		getLogger().info("********************* Done...");
 		
     }
     
+    /**
+     * Reads the provenance events recorded since the last run, page by page, and publishes the lineage processes they
+     * changed. The id of the last event of every published page is kept in the local state.
+     */
+    private void reportProvenanceLineage(ReportingContext reportingContext) {
+    	int pageSize = reportingContext.getProperty(PROVENANCE_PAGE_SIZE).asInteger();
+    	EventAccess eventAccess = reportingContext.getEventAccess();
+    	try {
+    		if(provenanceLineageCollector == null){
+    			File stateDirectory = new File(reportingContext.getProperty(LOCAL_STATE_DIRECTORY).evaluateAttributeExpressions().getValue());
+    			provenanceLineageCollector = new ProvenanceLineageCollector(stateDirectory, MAX_TRACKED_FLOWFILES);
+    		}
+    		Map<String,String> componentNames = new HashMap<String,String>();
+    		collectComponentNames(eventAccess.getControllerStatus(), componentNames);
+    		
+    		String cursor = getLocalState(PROVENANCE_CURSOR_KEY);
+    		long lastEventId = cursor == null ? -1L : Long.parseLong(cursor);
+    		int eventCount = 0;
+    		List<ProvenanceEventRecord> events;
+    		do {
+    			events = eventAccess.getProvenanceEvents(lastEventId + 1, pageSize);
+    			for(ProvenanceEventRecord event : events){
+    				provenanceLineageCollector.add(event, componentNames.get(event.getComponentId()));
+    				lastEventId = Math.max(lastEventId, event.getEventId());
+    			}
+    			List<Referenceable> changedEntities = provenanceLineageCollector.getChangedEntities();
+    			if(!changedEntities.isEmpty() && !publishToAtlas(changedEntities)){
+    				break;
+    			}
+    			provenanceLineageCollector.markPublished();
+    			if(!events.isEmpty()){
+    				setLocalState(PROVENANCE_CURSOR_KEY, String.valueOf(lastEventId));
+    				eventCount += events.size();
+    			}
+    		} while(events.size() == pageSize);
+    		getLogger().info("********************* Processed " + eventCount + " Provenance Events up to Event Id: " + lastEventId);
+    	} catch (IOException e) {
+    		getLogger().error("Unable to report provenance lineage", e);
+    	}
+    }
+    
+    private void collectComponentNames(ProcessGroupStatus groupStatus, Map<String,String> componentNames) {
+    	for(ProcessorStatus processorStatus : groupStatus.getProcessorStatus()){
+    		componentNames.put(processorStatus.getId(), processorStatus.getName());
+    	}
+    	for(ProcessGroupStatus childStatus : groupStatus.getProcessGroupStatus()){
+    		collectComponentNames(childStatus, componentNames);
+    	}
+    }
+    
+    private void startAtlasPublisher(ReportingContext reportingContext) {
+    	File spoolDirectory = new File(reportingContext.getProperty(LOCAL_STATE_DIRECTORY).evaluateAttributeExpressions().getValue());
+    	long maxSpoolBytes = reportingContext.getProperty(ATLAS_SPOOL_MAX_SIZE).asDataSize(DataUnit.B).longValue();
+    	int batchSize = reportingContext.getProperty(ATLAS_PUBLICATION_BATCH_SIZE).asInteger();
+    	try {
+    		getLogger().info("********************* Starting Atlas Publisher with spool in: " + spoolDirectory.getAbsolutePath());
+    		atlasSpool = new AtlasPublicationSpool(spoolDirectory, maxSpoolBytes);
+    		if (PUBLICATION_MODE_HOOK.getValue().equals(reportingContext.getProperty(ATLAS_PUBLICATION_MODE).getValue())) {
+    			String bootstrapServers = reportingContext.getProperty(KAFKA_BOOTSTRAP_SERVERS).evaluateAttributeExpressions().getValue();
+    			String hookTopic = reportingContext.getProperty(ATLAS_HOOK_TOPIC).evaluateAttributeExpressions().getValue();
+    			getLogger().info("********************* Publishing Atlas entity changes to hook topic " + hookTopic + " on " + bootstrapServers);
+    			atlasEntityPublisher = new HookAtlasEntityPublisher(new KafkaHookMessageTransport(bootstrapServers, hookTopic), DEFAULT_ADMIN_USER, batchSize);
+    		} else {
+    			atlasEntityPublisher = new RestAtlasEntityPublisher(atlasClient, atlasLimiter);
+    		}
+    		atlasPublisher = new AtlasSpoolPublisher(atlasSpool, atlasEntityPublisher, batchSize, new AtlasSpoolPublisher.PublicationListener() {
+    			@Override
+    			public void onPublished(List<Referenceable> entities, EntityResult result) {
+    				assignUnassignedTerm(entities, result.getCreatedEntities());
+    			}
+    		});
+    		atlasPublisherThread = new Thread(atlasPublisher, "HistorianDeanReporter-AtlasPublisher");
+    		atlasPublisherThread.setDaemon(true);
+    		atlasPublisherThread.start();
+    	} catch (IOException e) {
+    		getLogger().error("Unable to open Atlas publication spool in " + spoolDirectory.getAbsolutePath(), e);
+    	}
+    }
+    
+    /**
+     * Hands a unit of entity changes to the background publisher. Entities in one unit are sent to Atlas together.
+     * Returns false when the spool is unavailable or stayed full, in which case the caller should defer its work.
+     */
+    private boolean publishToAtlas(List<Referenceable> entities) {
+    	if (atlasSpool == null) {
+    		getLogger().warn("********************* Atlas publication spool is not available, deferring Atlas update");
+    		return false;
+    	}
+    	try {
+    		if (atlasSpool.append(entities, SPOOL_APPEND_TIMEOUT_MILLIS)) {
+    			return true;
+    		}
+    		getLogger().warn("********************* Atlas publication spool is full, deferring remaining Atlas updates to the next run");
+    	} catch (IOException e) {
+    		getLogger().error("Unable to write to Atlas publication spool", e);
+    	} catch (InterruptedException e) {
+    		Thread.currentThread().interrupt();
+    	}
+    	return false;
+    }
+    
+    /**
+     * Adds the Unassigned term to the historian_tag entities a batch created. The created GUIDs are reported without
+     * their type, so when the batch also held other types the type of each created entity is looked up first. Every
+     * call to Atlas goes through the Atlas limiter.
+     */
+    private void assignUnassignedTerm(List<Referenceable> entities, List<String> createdEntities) {
+    	if (createdEntities == null || createdEntities.isEmpty()) {
+    		return;
+    	}
+    	String tagType = HistorianDataTypes.HISTORIAN_TAG.getName();
+    	boolean anyTags = false;
+    	boolean onlyTags = true;
+    	for(Referenceable entity : entities){
+    		boolean tag = tagType.equals(entity.getTypeName());
+    		anyTags |= tag;
+    		onlyTags &= tag;
+    	}
+    	if(!anyTags){
+    		return;
+    	}
+    	getLogger().info("********************* Adding Unassigned Term to Historian Tag GUIDs... "+createdEntities.toString());
+    	Iterator<String> resultIterator = createdEntities.iterator();
+		while(resultIterator.hasNext()){
+			final String currentEntity = resultIterator.next();
+			if(!onlyTags){
+				try {
+					Referenceable created = atlasLimiter.execute(new AdaptiveConcurrencyLimiter.Request<Referenceable>() {
+						@Override
+						public Referenceable call() throws Exception {
+							return atlasClient.getEntity(currentEntity);
+						}
+					});
+					if(!tagType.equals(created.getTypeName())){
+						continue;
+					}
+				} catch (Exception e) {
+					getLogger().warn("Unable to read the type of created entity " + currentEntity + ", not adding the Unassigned Term", e);
+					continue;
+				}
+			}
+			getLogger().info("********************* Calling Atlas with URL: "+atlasUrl+"/api/atlas/v1/entities/"+currentEntity+"/tags/Catalog.Unassigned");
+			try {
+				postJSONToUrlAuth(atlasUrl+"/api/atlas/v1/entities/"+currentEntity+"/tags/Catalog.Unassigned" ,basicAuth,"{}");
+			} catch (IOException e) {
+				e.printStackTrace();
+			} catch (JSONException e) {
+				e.printStackTrace();
+			}
+		}
+    }
+    
     public void updateDataSourceHiveColumnAttributes(String dataSource){
     	String dslQuery = "hive_table where name = '"+dataSource+"'";
 		
@@ -290,20 +867,31 @@ public class HistorianDeanReporter extends AbstractReportingTask {
 				columnRef.set("column_type", column_type);
 				columnRef.set("column_function", column_function);
 				getLogger().info("********************* Updating Hive Column: " + columnName);
-				if(columnName.equalsIgnoreCase(TAG_DIMENSION_NAME) && granularity.equalsIgnoreCase("NONE")){	
+				boolean published;
+				if(columnName.equalsIgnoreCase(TAG_DIMENSION_NAME) && !dataSourceFamilies.isLeader(dataSource)){
+					getLogger().info("********************* This Column is a Tag_Dimension field, its Historian Tags are discovered from a sibling Data Source...");
+					familyTagColumns.put(dataSource, new DataSourceFamilies.TagColumn(dataSource, columnName, columnRef.getId(), granularity));
+					published = publishToAtlas(Collections.singletonList(columnRef));
+				}else if(columnName.equalsIgnoreCase(TAG_DIMENSION_NAME)){
 					getLogger().info("********************* This Column is a Tag_Dimension field, discovering Historian Tags...");
-					EntityResult result = atlasClient.updateEntities(discoverNewTags(tableRef,columnRef));
-					Iterator<String> resultIterator = result.getCreatedEntities().iterator();
-					getLogger().info("********************* Adding Unassigned Term to Historian Tag GUIDs... "+result.getCreatedEntities().toString());
-					while(resultIterator.hasNext()){
-						String currentEntity = resultIterator.next();
-						getLogger().info("********************* Calling Atlas with URL: "+atlasUrl+"/api/atlas/v1/entities/"+currentEntity+"/tags/Catalog.Unassigned");
-						postJSONToUrlAuth(atlasUrl+"/api/atlas/v1/entities/"+currentEntity+"/tags/Catalog.Unassigned" ,basicAuth,"{}");
+					List<DataSourceFamilies.TagColumn> siblings = new ArrayList<DataSourceFamilies.TagColumn>();
+					for(String member : dataSourceFamilies.getMembers(dataSource)){
+						if(familyTagColumns.containsKey(member)){
+							siblings.add(familyTagColumns.get(member));
+						}
 					}
+					submitTagDiscovery(dataSource, tableRef, columnRef, siblings, granularity, column_function);
+					continue;
 				}else{
-					atlasClient.updateEntities(columnRef);
+					published = publishToAtlas(Collections.singletonList(columnRef));
 				}
 				getLogger().debug("********** JSON Payload for Column/Tag Update: " + InstanceSerialization.toJson(columnRef, true));
+				if(!published){
+					return;
+				}
+				if(metadataIndex != null){
+					metadataIndex.putColumn(dataSource, columnName, dataSource, granularity, column_function);
+				}
 			}
     	}catch (AtlasServiceException e) {
 			e.printStackTrace();
@@ -318,6 +906,45 @@ public class HistorianDeanReporter extends AbstractReportingTask {
 		}
     }
     
+    /**
+     * Discovers the tags of a tag column on the tag discovery threads, then publishes the column and the statistics of
+     * its tags and indexes the column, so that the trigger thread goes on with the tables and statistics of the other
+     * datasources meanwhile.
+     */
+    private void submitTagDiscovery(final String dataSource, final Referenceable tableRef, final Referenceable columnRef,
+    		final List<DataSourceFamilies.TagColumn> siblings, final String granularity, final String columnFunction){
+    	final String columnName = columnRef.getValuesMap().get("name").toString();
+    	tagDiscoveries.add(tagDiscoveryExecutor.submit(new Runnable() {
+    		@Override
+    		public void run() {
+    			boolean published = discoverNewTags(tableRef,columnRef,siblings) && publishToAtlas(Collections.singletonList(columnRef))
+    					&& publishTagStatistics(dataSource, columnName);
+    			if(published && metadataIndex != null){
+    				metadataIndex.putColumn(dataSource, columnName, dataSource, granularity, columnFunction);
+    			}
+    		}
+    	}));
+    }
+    
+    /**
+     * Waits for the tag discoveries submitted during this run, so that they never overlap with the next run.
+     */
+    private void awaitTagDiscoveries(){
+    	try {
+    		for(Future<?> tagDiscovery : tagDiscoveries){
+    			try {
+    				tagDiscovery.get();
+    			} catch (ExecutionException e) {
+    				getLogger().error("Tag discovery failed", e.getCause());
+    			}
+    		}
+    	} catch (InterruptedException e) {
+    		Thread.currentThread().interrupt();
+    	} finally {
+    		tagDiscoveries.clear();
+    	}
+    }
+    
     public String deserializeDataSourceColumnType(String dataSource, String column){
 		Map<String,Object>dataSourceMap = dataSourceDetails.get(dataSource);
 		Map<String,Object>columnMap = (Map)dataSourceMap.get("columns");
@@ -383,45 +1010,150 @@ public class HistorianDeanReporter extends AbstractReportingTask {
     	return granularity;
     }
 	
-	private JSONObject createBusinessTerm(String taxonomyPath, String termDefinition){
-		String atlasTaxonomyUrl = atlasUrl + "/api/atlas/v1/taxonomies" + taxonomyPath;
-		JSONObject json = null;
+	/**
+	 * Creates the business terms that are missing from the Catalog taxonomy. Runs on the first trigger, which makes sure
+	 * the Unassigned term exists, and afterwards only when the taxonomy file has been modified. The tags listed under
+	 * each term are made searchable by the term name in the metadata index, replacing the tags it had before and
+	 * removing terms no longer listed, again only when the file has been modified or the index lost its contents.
+	 */
+	private void synchronizeBusinessTaxonomy(File taxonomyFile, int threads){
+		long lastModified = taxonomyFile == null ? 0L : taxonomyFile.lastModified();
+		boolean modified = businessTaxonomyLastModified == null || businessTaxonomyLastModified != lastModified;
+		boolean indexOutdated = metadataIndex != null && taxonomyFile != null
+				&& (businessTaxonomyIndexedModified == null || businessTaxonomyIndexedModified != lastModified || metadataIndex.isEmpty());
+		if(!modified && !indexOutdated){
+			return;
+		}
 		try {
-			json = postJSONToUrlAuth(atlasTaxonomyUrl, basicAuth, termDefinition);
-		} catch (IOException e) {
-			e.printStackTrace();
-		} catch (JSONException e) {
-			e.printStackTrace();
+			List<BusinessTaxonomySynchronizer.Term> terms = BusinessTaxonomySynchronizer.readTaxonomy(taxonomyFile);
+			if(indexOutdated){
+				// each term's tags are replaced as a whole, and terms no longer in the file are removed, so aliases
+				// dropped from the taxonomy stop matching instead of persisting in the index snapshot
+				Set<String> staleAliases = metadataIndex.getTagAliases();
+				for(BusinessTaxonomySynchronizer.Term term : terms){
+					staleAliases.remove(term.getName());
+					metadataIndex.removeTagAlias(term.getName());
+					for(String tag : term.getTags()){
+						metadataIndex.putTagAlias(term.getName(), tag);
+					}
+				}
+				for(String alias : staleAliases){
+					metadataIndex.removeTagAlias(alias);
+				}
+				businessTaxonomyIndexedModified = lastModified;
+			}
+			if(!modified){
+				return;
+			}
+			getLogger().info("********************* Synchronizing Business Taxonomy Terms...");
+			BusinessTaxonomySynchronizer synchronizer = new BusinessTaxonomySynchronizer(atlasUrl, "Basic " + encoding, threads, atlasLimiter);
+			int created = synchronizer.synchronize(terms);
+			businessTaxonomyLastModified = lastModified;
+			getLogger().info("********************* Business Taxonomy synchronized, created " + created + " terms");
+		} catch (Exception e) {
+			getLogger().error("Unable to synchronize Business Taxonomy", e);
+		}
+	}
+	
+	/**
+	 * Registers the tag to alias mapping of the business taxonomy and the tag to asset mapping of the asset hierarchy
+	 * as Druid lookups. The files are only read again when one of them has been modified, and a lookup is only sent to
+	 * Druid when its content differs from the version last published.
+	 */
+	private void publishDruidLookups(File taxonomyFile, File hierarchyFile){
+		long taxonomyModified = taxonomyFile == null ? 0L : taxonomyFile.lastModified();
+		long hierarchyModified = hierarchyFile == null ? 0L : hierarchyFile.lastModified();
+		if(druidLookupsTaxonomyModified != null && druidLookupsTaxonomyModified == taxonomyModified && druidLookupsHierarchyModified == hierarchyModified){
+			return;
+		}
+		try {
+			Map<String,Set<String>> tagAliases = new HashMap<String,Set<String>>();
+			if(taxonomyFile != null){
+				for(BusinessTaxonomySynchronizer.Term term : BusinessTaxonomySynchronizer.readTaxonomy(taxonomyFile)){
+					for(String tag : term.getTags()){
+						addLookupValue(tagAliases, tag, term.getName());
+					}
+				}
+			}
+			Map<String,Set<String>> tagAssets = new HashMap<String,Set<String>>();
+			if(hierarchyFile != null && hierarchyFile.exists()){
+				for(AssetHierarchyLoader.AssetNode asset : AssetHierarchyLoader.readHierarchy(hierarchyFile)){
+					String assetPath = asset.getQualifiedName().substring(AssetHierarchyLoader.QUALIFIED_NAME_PREFIX.length());
+					for(String tag : asset.getTags()){
+						addLookupValue(tagAssets, tag, assetPath);
+					}
+				}
+			}
+			publishDruidLookup(DruidLookupPublisher.TAG_ALIAS_LOOKUP, joinLookupValues(DruidLookupPublisher.TAG_ALIAS_LOOKUP, tagAliases));
+			publishDruidLookup(DruidLookupPublisher.TAG_ASSET_LOOKUP, joinLookupValues(DruidLookupPublisher.TAG_ASSET_LOOKUP, tagAssets));
+			druidLookupsTaxonomyModified = taxonomyModified;
+			druidLookupsHierarchyModified = hierarchyModified;
+		} catch (Exception e) {
+			getLogger().error("Unable to publish Druid lookups", e);
+		}
+	}
+	
+	private static void addLookupValue(Map<String,Set<String>> values, String key, String value){
+		Set<String> keyValues = values.get(key);
+		if(keyValues == null){
+			keyValues = new TreeSet<String>();
+			values.put(key, keyValues);
+		}
+		keyValues.add(value);
+	}
+	
+	/**
+	 * Flattens the values of each tag into one lookup value. A tag with several values maps to all of them in sorted
+	 * order, joined with the multi-value separator, so the lookup does not depend on the order of the source files.
+	 */
+	private Map<String,String> joinLookupValues(String lookupName, Map<String,Set<String>> values){
+		Map<String,String> entries = new HashMap<String,String>();
+		int collisions = 0;
+		String example = null;
+		for(Map.Entry<String,Set<String>> entry : values.entrySet()){
+			if(entry.getValue().size() > 1){
+				collisions++;
+				if(example == null){
+					example = entry.getKey() + " -> " + entry.getValue();
+				}
+			}
+			StringBuilder joined = new StringBuilder();
+			for(String value : entry.getValue()){
+				if(joined.length() > 0){
+					joined.append(DruidLookupPublisher.MULTI_VALUE_SEPARATOR);
+				}
+				joined.append(value);
+			}
+			entries.put(entry.getKey(), joined.toString());
+		}
+		if(collisions > 0){
+			getLogger().warn("********************* " + collisions + " tags of lookup " + lookupName + " map to several values, which are joined with '"
+					+ DruidLookupPublisher.MULTI_VALUE_SEPARATOR + "', for example " + example);
+		}
+		return entries;
+	}
+	
+	private void publishDruidLookup(String lookupName, Map<String,String> entries) throws IOException{
+		String digestKey = DRUID_LOOKUP_DIGEST_PREFIX + lookupName;
+		String digest = druidLookupPublisher.publish(lookupName, entries, getLocalState(digestKey));
+		if(digest != null){
+			setLocalState(digestKey, digest);
 		}
-		return json;
 	}
 	
 	private Map<String, Object> getDruidDataSourceDetails(String dataSource) {
-    	String druidSegmentUrl = druidBrokerUrl + "/druid/v2";
-    	DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
-		String currentDate = dateFormat.format(new Date()).toString();
-		String dateBefore = dateFormat.format(new Date(new Date().getTime() - (30 * 24 * 3600 * 1000L))).toString();
-		
-		String payload = "{\"queryType\":\"segmentMetadata\","
-						+ "\"dataSource\":\""+dataSource+"\","
-						//+ "\"intervals\":[\""+dateBefore+"/"+currentDate+"\"],"
-						+ "\"analysisTypes\":[\"queryGranularity\",\"aggregators\",\"rollup\"],"
-						+ "\"merge\":\"true\" "
-						+ "}";
-		List<Map<String,Object>> result = null;
-		JSONArray druidSegmentsJSON;
+		List<String> analysisTypes = new ArrayList<String>(Arrays.asList("queryGranularity", "aggregators", "rollup"));
+		if(hiveStatisticsPublisher != null){
+			analysisTypes.add("cardinality");
+			analysisTypes.add("size");
+		}
+		Map<String,Object> dataSourceDetailsMap = null;
 		try {
-			getLogger().debug("************************ Url: " + druidSegmentUrl);
-			getLogger().debug("************************ Sending: " + payload);
-			druidSegmentsJSON = readJSONArrayFromUrlAuthPOST(druidSegmentUrl, basicAuth, payload);
-			getLogger().debug("************************ Response from Druid: " + druidSegmentsJSON);
-	    	result = new ObjectMapper().readValue(druidSegmentsJSON.toString(), List.class);
+			dataSourceDetailsMap = segmentMetadataSnapshots.getDetails(dataSource, analysisTypes);
+			getLogger().debug("************************ Segment Metadata of " + dataSource + ": " + dataSourceDetailsMap);
 		} catch (IOException e) {
 			e.printStackTrace();
-		} catch (JSONException e) {
-			e.printStackTrace();
 		}
-    	Map<String,Object> dataSourceDetailsMap = (Map)result.get(0);
     	
     	return dataSourceDetailsMap; 
 	}
@@ -444,37 +1176,288 @@ public class HistorianDeanReporter extends AbstractReportingTask {
     	return result;
     }
 	
-	public List<Referenceable> discoverNewTags(Referenceable tableRef, Referenceable columnRef){
-		String sqlString = null;
-		List<Referenceable> tagReferenceableList = new ArrayList<Referenceable>();
-		List<Id> tagIdList = new ArrayList<Id>();
+	/**
+	 * Streams the distinct values of the tag dimension column into historian_tag entities and publishes them in chunks.
+	 * The values are read through Hive or, in the Druid Native mode, straight from the Druid broker.
+	 * Tags point at their column through parent_column. Values are read in order and the last value of every published
+	 * chunk is kept in the local state, so an interrupted discovery resumes after it on the next run.
+	 *
+	 * Only rows since the start of the previous complete scan, less the Tag Discovery Overlap, are scanned. The start of
+	 * the running scan is kept in the local state and becomes the watermark of the datasource once the scan completes,
+	 * so each scan is proportional to the data ingested since the previous one. The watermark is dropped when the
+	 * metadata index holds no tags of the column, such as after its snapshot was lost, so that it is filled again.
+	 *
+	 * @return false if publication was deferred because the spool is unavailable or full
+	 */
+	public boolean discoverNewTags(Referenceable tableRef, Referenceable columnRef, final List<DataSourceFamilies.TagColumn> siblings){
+		final Id currColumnRefId = columnRef.getId();
+		final String currColumnName = columnRef.getValuesMap().get("name").toString();
+		final String currTableName = tableRef.get("name").toString();
+		final String currGranularity = deserializeDataSourceGranularity(currTableName);
+		final String cursorKey = TAG_DISCOVERY_CURSOR_PREFIX + currTableName + "." + currColumnName;
+		String cursor = getLocalState(cursorKey);
+		String watermarkKey = TAG_DISCOVERY_WATERMARK_PREFIX + currTableName + "." + currColumnName;
+		String scanStartKey = TAG_DISCOVERY_SCAN_START_PREFIX + currTableName + "." + currColumnName;
+		String watermark = getLocalState(watermarkKey);
+		String scanStart = getLocalState(scanStartKey);
+		if(watermark != null && metadataIndex != null && !metadataIndex.hasTags(currTableName, currColumnName)){
+			getLogger().info("********************* Metadata index holds no Tags of " + currTableName + "." + currColumnName + ", discovering all Tags again");
+			watermark = null;
+			cursor = null;
+			setLocalState(watermarkKey, null);
+			setLocalState(cursorKey, null);
+		}
+		if(scanStart == null){
+			scanStart = String.valueOf(System.currentTimeMillis());
+			setLocalState(scanStartKey, scanStart);
+		}
+		
+		if(cursor != null){
+			getLogger().info("********************* Resuming Tag discovery for " + currTableName + "." + currColumnName + " after: " + cursor);
+		}
 		try {
-			Id currColumnRefId = columnRef.getId();
-			String currColumnName = columnRef.getValuesMap().get("name").toString();
-			String currTableName = tableRef.get("name").toString();
-			sqlString = " SELECT `"+currColumnName+"`, COUNT(`"+currColumnName+"`)"
-									+ " FROM "+currTableName+" "
-									+ " GROUP BY `"+currColumnName+"`";
-				
-			getLogger().debug("********************* Executing Hive Query: " + sqlString);
-			ResultSet result = hiveConnection.createStatement().executeQuery(sqlString);
-			while(result.next()){
-				String currGranularity = deserializeDataSourceGranularity(currTableName);
-				Referenceable currTagReferenceable = new Referenceable(HistorianDataTypes.HISTORIAN_TAG.getName());
-				currTagReferenceable.set("name",result.getString(currColumnName));
-				currTagReferenceable.set("qualifiedName",currTableName+"."+currColumnName+"."+result.getString(currColumnName));
-				currTagReferenceable.set("parent_column", currColumnRefId);
-				currTagReferenceable.set("granularity", currGranularity);
-				getLogger().debug("********************* New Tag Entity: " + InstanceSerialization.toJson(currTagReferenceable,true));
-				tagReferenceableList.add(currTagReferenceable);	
-				tagIdList.add(currTagReferenceable.getId());
+			boolean complete;
+			if(druidTagEnumerator != null){
+				long scanFrom = watermark == null ? -1L : Long.parseLong(watermark) - tagDiscoveryOverlapMillis;
+				final DruidTagEnumerator.Cursor tags = druidTagEnumerator.open(currTableName, currColumnName,
+						DruidTagEnumerator.intervalFrom(scanFrom), cursor, tagDiscoveryChunkSize);
+				complete = publishTagChunks(new TagValues() {
+					@Override
+					public String next() throws IOException {
+						return tags.next();
+					}
+				}, currColumnRefId, currTableName, currColumnName, currGranularity, siblings, cursorKey);
+			}else{
+				complete = discoverNewTagsFromHive(currColumnRefId, currTableName, currColumnName, currGranularity, siblings, cursorKey, cursor, watermark);
 			}
+			if(complete){
+				setLocalState(watermarkKey, scanStart);
+				setLocalState(scanStartKey, null);
+			}
+			return complete;
+		} catch (IOException e) {
+			e.printStackTrace();
 		} catch (SQLException e) {
 			e.printStackTrace();
 		}
-		columnRef.set("historian_tags", tagIdList);
-		tagReferenceableList.add(columnRef);
-		return tagReferenceableList;
+		return true;
+	}
+	
+	private boolean discoverNewTagsFromHive(final Id currColumnRefId, final String currTableName, final String currColumnName,
+			final String currGranularity, final List<DataSourceFamilies.TagColumn> siblings, final String cursorKey, String cursor,
+			String watermark) throws SQLException {
+		List<String> conditions = new ArrayList<String>();
+		if(watermark != null){
+			DateFormat timestampFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+			timestampFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+			String scanFrom = timestampFormat.format(new Date(Long.parseLong(watermark) - tagDiscoveryOverlapMillis));
+			conditions.add("`__time` >= CAST('" + scanFrom + "' AS TIMESTAMP)");
+		}
+		if(cursor != null){
+			conditions.add("`"+currColumnName+"` > '"+escapeHiveString(cursor)+"'");
+		}
+		StringBuilder whereClause = new StringBuilder();
+		for(String condition : conditions){
+			whereClause.append(whereClause.length() == 0 ? " WHERE " : " AND ").append(condition);
+		}
+		
+		String sqlString = " SELECT `"+currColumnName+"`"
+								+ " FROM "+currTableName+" "
+								+ whereClause
+								+ " GROUP BY `"+currColumnName+"`"
+								+ " ORDER BY `"+currColumnName+"`";
+		getLogger().debug("********************* Executing Hive Query: " + sqlString);
+		
+		final String query = sqlString;
+		return hiveConnectionPool.execute(tagDiscoveryChunkSize, new HiveConnectionPool.Work<Boolean>() {
+			@Override
+			public Boolean run(Statement statement) throws SQLException {
+				final ResultSet result = statement.executeQuery(query);
+				try {
+					return publishTagChunks(new TagValues() {
+						@Override
+						public String next() throws SQLException {
+							while(result.next()){
+								if(result.getString(1) != null){
+									return result.getString(1);
+								}
+							}
+							return null;
+						}
+					}, currColumnRefId, currTableName, currColumnName, currGranularity, siblings, cursorKey);
+				} catch (IOException e) {
+					throw new SQLException(e);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * The distinct values of a tag column in order, as read by one of the tag discovery modes.
+	 */
+	private interface TagValues {
+		/**
+		 * @return the next value, or null once all values have been read
+		 */
+		String next() throws IOException, SQLException;
+	}
+	
+	/**
+	 * Publishes the tags in chunks, each tag once for the tag column it was read from and once for the tag column of
+	 * every sibling Data Source, which holds the same tags.
+	 */
+	private boolean publishTagChunks(TagValues values, Id currColumnRefId, String currTableName, String currColumnName,
+			String currGranularity, List<DataSourceFamilies.TagColumn> siblings, String cursorKey) throws IOException, SQLException {
+		int tagCount = 0;
+		List<Referenceable> tagChunk = new ArrayList<Referenceable>(tagDiscoveryChunkSize * (siblings.size() + 1));
+		List<Referenceable> leaderTags = new ArrayList<Referenceable>(tagDiscoveryChunkSize);
+		String lastTag = null;
+		String tag;
+		while((tag = values.next()) != null){
+			Referenceable currTagReferenceable = createTagReferenceable(tag, currTableName, currColumnName, currColumnRefId, currGranularity);
+			tagChunk.add(currTagReferenceable);
+			leaderTags.add(currTagReferenceable);
+			for(DataSourceFamilies.TagColumn sibling : siblings){
+				tagChunk.add(createTagReferenceable(tag, sibling.getTable(), sibling.getColumn(), sibling.getColumnId(), sibling.getGranularity()));
+			}
+			lastTag = tag;
+			
+			if(leaderTags.size() >= tagDiscoveryChunkSize){
+				if(!publishToAtlas(tagChunk)){
+					return false;
+				}
+				indexTags(currTableName, currColumnName, siblings, leaderTags);
+				setLocalState(cursorKey, lastTag);
+				tagCount += leaderTags.size();
+				tagChunk = new ArrayList<Referenceable>(tagDiscoveryChunkSize * (siblings.size() + 1));
+				leaderTags = new ArrayList<Referenceable>(tagDiscoveryChunkSize);
+			}
+		}
+		if(!tagChunk.isEmpty()){
+			if(!publishToAtlas(tagChunk)){
+				return false;
+			}
+			indexTags(currTableName, currColumnName, siblings, leaderTags);
+			tagCount += leaderTags.size();
+		}
+		setLocalState(cursorKey, null);
+		getLogger().info("********************* Published " + tagCount + " Tags for " + currTableName + "." + currColumnName
+				+ (siblings.isEmpty() ? "" : " and " + siblings.size() + " sibling Data Sources"));
+		return true;
+	}
+	
+	private Referenceable createTagReferenceable(String tag, String tableName, String columnName, Id columnRefId, String granularity){
+		Referenceable tagReferenceable = new Referenceable(HistorianDataTypes.HISTORIAN_TAG.getName());
+		tagReferenceable.set("name",tag);
+		tagReferenceable.set("qualifiedName",tableName+"."+columnName+"."+tag);
+		tagReferenceable.set("parent_column", columnRefId);
+		tagReferenceable.set("granularity", granularity);
+		return tagReferenceable;
+	}
+	
+	private void indexTags(String table, String column, List<DataSourceFamilies.TagColumn> siblings, List<Referenceable> tagRefs){
+		indexTags(table, column, tagRefs);
+		for(DataSourceFamilies.TagColumn sibling : siblings){
+			indexTags(sibling.getTable(), sibling.getColumn(), tagRefs);
+		}
+	}
+	
+	/**
+	 * Updates the statistics of the tags that received data since the last run and publishes them as the
+	 * historian_tag_attribute of each tag. Tags that are not in Atlas yet keep their statistics pending for the next run.
+	 *
+	 * @return false if publication was deferred because the spool is unavailable or full
+	 */
+	private boolean publishTagStatistics(String dataSource, String columnName){
+		if(tagStatisticsCollector == null){
+			return true;
+		}
+		try {
+			Map<String,Object> aggregators = (Map)dataSourceDetails.get(dataSource).get("aggregators");
+			TagStatisticsCollector.DataSourceStatistics statistics = tagStatisticsCollector.collect(dataSource, columnName, aggregators);
+			Map<String,TagStatisticsCollector.TagStatistics> pendingStatistics = statistics.getPendingTags();
+			List<String> pendingTags = new ArrayList<String>(pendingStatistics.keySet());
+			getLogger().info("********************* Publishing Statistics for " + pendingTags.size() + " Tags of " + dataSource);
+			
+			boolean published = true;
+			for(int start = 0; start < pendingTags.size() && published; start += tagDiscoveryChunkSize){
+				Map<String,String> tagsByQualifiedName = new HashMap<String,String>();
+				for(String tag : pendingTags.subList(start, Math.min(start + tagDiscoveryChunkSize, pendingTags.size()))){
+					tagsByQualifiedName.put(dataSource+"."+columnName+"."+tag, tag);
+				}
+				Map<String,Referenceable> tagRefs = ReferenceableUtil.getEntityReferencesFromDSL(atlasClient,
+						HistorianDataTypes.HISTORIAN_TAG.getName(), "qualifiedName", tagsByQualifiedName.keySet());
+				
+				List<Referenceable> attributeChunk = new ArrayList<Referenceable>();
+				for(Map.Entry<String,Referenceable> tagRef : tagRefs.entrySet()){
+					String tag = tagsByQualifiedName.get(tagRef.getKey());
+					Referenceable attributeRef = new Referenceable(HistorianDataTypes.HISTORIAN_TAG_ATTRIBUTE.getName());
+					attributeRef.set(NAME, TAG_STATISTICS_ATTRIBUTE_NAME);
+					attributeRef.set("qualifiedName", tagRef.getKey() + "." + TAG_STATISTICS_ATTRIBUTE_NAME);
+					attributeRef.set("associated_tags", Collections.singletonList(tagRef.getValue().getId()));
+					attributeRef.set(PROPERTIES, pendingStatistics.get(tag).toParameters());
+					attributeChunk.add(attributeRef);
+				}
+				if(attributeChunk.isEmpty()){
+					continue;
+				}
+				published = publishToAtlas(attributeChunk);
+				if(published){
+					for(String qualifiedName : tagRefs.keySet()){
+						statistics.markPublished(tagsByQualifiedName.get(qualifiedName));
+					}
+				}
+			}
+			tagStatisticsCollector.save(statistics);
+			return published;
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		return true;
+	}
+	
+	private void indexTags(String table, String column, List<Referenceable> tagRefs){
+		if(metadataIndex == null){
+			return;
+		}
+		List<String> tags = new ArrayList<String>(tagRefs.size());
+		for(Referenceable tagRef : tagRefs){
+			tags.add(tagRef.get(NAME).toString());
+		}
+		metadataIndex.putTags(table, column, tags);
+	}
+	
+	private String escapeHiveString(String value){
+		return value.replace("\\", "\\\\").replace("'", "\\'");
+	}
+	
+	private String getLocalState(String key){
+		try {
+			return stateManager.getState(Scope.LOCAL).get(key);
+		} catch (IOException e) {
+			getLogger().error("Unable to read local state " + key, e);
+			return null;
+		}
+	}
+	
+	/**
+	 * Sets or, for a null value, removes a single entry of the local state. Synchronized because tag discoveries
+	 * running at once each rewrite the whole state.
+	 */
+	private synchronized void setLocalState(String key, String value){
+		try {
+			Map<String,String> state = new HashMap<String,String>(stateManager.getState(Scope.LOCAL).toMap());
+			if(value == null){
+				if(state.remove(key) == null){
+					return;
+				}
+			}else{
+				state.put(key, value);
+			}
+			stateManager.setState(state, Scope.LOCAL);
+		} catch (IOException e) {
+			getLogger().error("Unable to update local state " + key, e);
+		}
 	}
 	
 	public List<Referenceable> discoverNewTags(JSONArray results){
@@ -501,17 +1484,28 @@ public class HistorianDeanReporter extends AbstractReportingTask {
 									+ " GROUP BY `"+currColumnName+"`";
 				
 				System.out.println("********************* Executing Hive Query: " + sqlString);
-				ResultSet result = hiveConnection.createStatement().executeQuery(sqlString);
-				while(result.next()){
-					String currGranularity = deserializeDataSourceGranularity(currTableName);
-					Referenceable currTagReferenceable = new Referenceable(HistorianDataTypes.HISTORIAN_TAG.getName());
-					currTagReferenceable.set("name",result.getString(currColumnName)+"_"+currGranularity);
-					currTagReferenceable.set("qualifiedName",currTableName+"."+currColumnName+"."+result.getString(currColumnName));
-					currTagReferenceable.set("parent_column", currColumnRefId);
-					currTagReferenceable.set("granularity", currGranularity);
-					System.out.println("********************* New Tag Entity: " + InstanceSerialization.toJson(currTagReferenceable,true));
-					tagReferenceableList.add(currTagReferenceable);	
-				}
+				final String query = sqlString;
+				final String columnName = currColumnName;
+				final String tableName = currTableName;
+				final Id columnRefId = currColumnRefId;
+				tagReferenceableList.addAll(hiveConnectionPool.execute(new HiveConnectionPool.Work<List<Referenceable>>() {
+					@Override
+					public List<Referenceable> run(Statement statement) throws SQLException {
+						List<Referenceable> tags = new ArrayList<Referenceable>();
+						ResultSet result = statement.executeQuery(query);
+						while(result.next()){
+							String currGranularity = deserializeDataSourceGranularity(tableName);
+							Referenceable currTagReferenceable = new Referenceable(HistorianDataTypes.HISTORIAN_TAG.getName());
+							currTagReferenceable.set("name",result.getString(columnName)+"_"+currGranularity);
+							currTagReferenceable.set("qualifiedName",tableName+"."+columnName+"."+result.getString(columnName));
+							currTagReferenceable.set("parent_column", columnRefId);
+							currTagReferenceable.set("granularity", currGranularity);
+							System.out.println("********************* New Tag Entity: " + InstanceSerialization.toJson(currTagReferenceable,true));
+							tags.add(currTagReferenceable);
+						}
+						return tags;
+					}
+				}));
 			}
 		} catch (JsonParseException e) {
 			e.printStackTrace();
@@ -527,15 +1521,55 @@ public class HistorianDeanReporter extends AbstractReportingTask {
 		return tagReferenceableList;
 	}
     
-    public void exposeDruidDataSourceAsHiveTable(String dataSource){
-	    String hiveTableName = "";
+    /**
+     * Creates the Hive table over a Druid datasource if there is none yet, and recreates it when the columns of the
+     * datasource no longer match the table. The tables that exist are listed once and tracked afterwards, so a
+     * datasource that is already exposed costs no Hive round trip. A table of the same name that is not an external
+     * table stored by the Druid storage handler is left alone rather than dropped.
+     */
+    public void exposeDruidDataSourceAsHiveTable(final String dataSource){
+	    final String hiveTableName = dataSource;
 	    try {
-	    	hiveTableName = dataSource;
-	    	dataSourceDetails.put(hiveTableName, getDruidDataSourceDetails(hiveTableName));
-	    	getLogger().info("********************* Attempting to create Hive Table from Druid Data Source: " + hiveTableName);
-	    	hiveConnection.createStatement().execute("CREATE EXTERNAL TABLE IF NOT EXISTS " + hiveTableName + " "
-		    				+ "STORED BY 'org.apache.hadoop.hive.druid.DruidStorageHandler' "
-		    				+ "TBLPROPERTIES (\"druid.datasource\" = \"" + hiveTableName + "\")");
+	    	if(hiveTableColumns == null){
+	    		hiveTableColumns = listHiveTables();
+	    	}
+	    	Set<String> druidColumns = getDruidColumns(dataSource);
+	    	String tableKey = hiveTableName.toLowerCase();
+	    	boolean exists = hiveTableColumns.containsKey(tableKey);
+	    	if(exists && hiveTableColumns.get(tableKey) == null){
+	    		hiveTableColumns.put(tableKey, describeHiveTable(hiveTableName));
+	    		if(foreignHiveTables.contains(tableKey)){
+	    			getLogger().warn("********************* Hive Table " + hiveTableName + " is not an external Druid table, not exposing Druid Data Source " + dataSource + " through it");
+	    		}
+	    	}
+	    	if(foreignHiveTables.contains(tableKey)){
+	    		return;
+	    	}
+	    	if(exists && (druidColumns == null || druidColumns.equals(hiveTableColumns.get(tableKey)))){
+	    		getLogger().debug("********************* Hive Table " + hiveTableName + " is up to date");
+	    		return;
+	    	}
+	    	final boolean recreate = exists;
+	    	hiveConnectionPool.execute(new HiveConnectionPool.Work<Void>() {
+	    		@Override
+	    		public Void run(Statement statement) throws SQLException {
+	    			if(recreate){
+	    				// the table is external, so dropping it leaves the Druid datasource untouched
+	    				getLogger().info("********************* Schema of Druid Data Source " + dataSource + " changed, recreating Hive Table: " + hiveTableName);
+	    				statement.execute("DROP TABLE IF EXISTS " + hiveTableName);
+	    			}else{
+	    				getLogger().info("********************* Attempting to create Hive Table from Druid Data Source: " + hiveTableName);
+	    			}
+	    			statement.execute("CREATE EXTERNAL TABLE IF NOT EXISTS " + hiveTableName + " "
+	    					+ "STORED BY '" + DRUID_STORAGE_HANDLER + "' "
+	    					+ "TBLPROPERTIES (\"druid.datasource\" = \"" + hiveTableName + "\")");
+	    			return null;
+	    		}
+	    	});
+	    	hiveTableColumns.put(tableKey, druidColumns);
+	    	if(hiveStatisticsPublisher != null){
+	    		hiveStatisticsPublisher.reset(hiveTableName);
+	    	}
 	    }catch (SQLException e) {
 			e.printStackTrace();
 		} catch (Exception e) {
@@ -543,6 +1577,75 @@ public class HistorianDeanReporter extends AbstractReportingTask {
         }
     }
     
+    /**
+     * @return the names of the tables of the current Hive database, each mapped to null until its columns are described
+     */
+    private Map<String, Set<String>> listHiveTables() throws SQLException {
+    	Map<String, Set<String>> tables = hiveConnectionPool.execute(new HiveConnectionPool.Work<Map<String, Set<String>>>() {
+    		@Override
+    		public Map<String, Set<String>> run(Statement statement) throws SQLException {
+    			Map<String, Set<String>> tables = new HashMap<String, Set<String>>();
+    			ResultSet result = statement.executeQuery("SHOW TABLES");
+    			while(result.next()){
+    				tables.put(result.getString(1).toLowerCase(), null);
+    			}
+    			return tables;
+    		}
+    	});
+    	getLogger().info("********************* Found " + tables.size() + " existing Hive Tables");
+    	return tables;
+    }
+    
+    /**
+     * @return the lower-cased columns of the table. The table is added to the foreign tables unless DESCRIBE FORMATTED
+     * reports it as an external table stored by the Druid storage handler.
+     */
+    private Set<String> describeHiveTable(final String hiveTableName) throws SQLException {
+    	return hiveConnectionPool.execute(new HiveConnectionPool.Work<Set<String>>() {
+    		@Override
+    		public Set<String> run(Statement statement) throws SQLException {
+    			Set<String> columns = new HashSet<String>();
+    			String tableType = null;
+    			String storageHandler = null;
+    			boolean columnSection = true;
+    			ResultSet result = statement.executeQuery("DESCRIBE FORMATTED " + hiveTableName);
+    			while(result.next()){
+    				String name = result.getString(1) == null ? "" : result.getString(1).trim();
+    				String value = result.getString(2) == null ? "" : result.getString(2).trim();
+    				if(name.startsWith("# Partition Information") || name.startsWith("# Detailed Table Information")){
+    					columnSection = false;
+    				}else if(name.equals("Table Type:")){
+    					tableType = value;
+    				}else if(value.equals("storage_handler")){
+    					storageHandler = result.getString(3) == null ? null : result.getString(3).trim();
+    				}else if(columnSection && !name.isEmpty() && !name.startsWith("#")){
+    					columns.add(name.toLowerCase());
+    				}
+    			}
+    			if(!"EXTERNAL_TABLE".equalsIgnoreCase(tableType) || !DRUID_STORAGE_HANDLER.equals(storageHandler)){
+    				getLogger().debug("********************* Hive Table " + hiveTableName + " has type " + tableType + " and storage handler " + storageHandler);
+    				foreignHiveTables.add(hiveTableName.toLowerCase());
+    			}
+    			return columns;
+    		}
+    	});
+    }
+    
+    /**
+     * @return the lower-cased columns of the datasource as reported by its segment metadata, or null if they are not known
+     */
+    private Set<String> getDruidColumns(String dataSource) {
+    	Map<String,Object> details = dataSourceDetails.get(dataSource);
+    	if(details == null || !(details.get("columns") instanceof Map)){
+    		return null;
+    	}
+    	Set<String> columns = new HashSet<String>();
+    	for(Object column : ((Map<?,?>)details.get("columns")).keySet()){
+    		columns.add(column.toString().toLowerCase());
+    	}
+    	return columns;
+    }
+    
 	private JSONArray readJSONArrayFromUrlAuthPOST(String urlString, String[] basicAuth, String payload) throws IOException, JSONException {
 		String userPassString = basicAuth[0]+":"+basicAuth[1];
 		JSONObject json = null;
@@ -618,6 +1721,20 @@ public class HistorianDeanReporter extends AbstractReportingTask {
 			createTagClass();
 		}
 		
+		try {
+			atlasClient.getType(HistorianDataTypes.HISTORIAN_FLOW.getName());
+			getLogger().info("********************* Historian Atlas Type: " + HistorianDataTypes.HISTORIAN_FLOW.getName() + " is already present");
+		} catch (AtlasServiceException e) {
+			createFlowClass();
+		}
+		
+		try {
+			atlasClient.getType(HistorianDataTypes.HISTORIAN_ENDPOINT.getName());
+			getLogger().info("********************* Historian Atlas Type: " + HistorianDataTypes.HISTORIAN_ENDPOINT.getName() + " is already present");
+		} catch (AtlasServiceException e) {
+			createEndpointClass();
+		}
+		
 		try {
 			atlasClient.getType(HistorianDataTypes.HISTORIAN_TAG_ATTRIBUTE.getName());
 			getLogger().info("********************* Historian Atlas Type: " + HistorianDataTypes.HISTORIAN_TAG.getName() + " is already present");
@@ -681,6 +1798,24 @@ public class HistorianDeanReporter extends AbstractReportingTask {
         getLogger().info("Created definition for " + typeName);
     }
 
+    private void createFlowClass() throws AtlasException {
+        final String typeName = HistorianDataTypes.HISTORIAN_FLOW.getName();
+
+        final AttributeDefinition[] attributeDefinitions = new AttributeDefinition[] {
+        		new AttributeDefinition("component_id", DataTypes.STRING_TYPE.getName(), Multiplicity.OPTIONAL, false, null)
+        };
+
+        addClassTypeDefinition(typeName, ImmutableSet.of(AtlasClient.PROCESS_SUPER_TYPE), attributeDefinitions);
+        getLogger().info("Created definition for " + typeName);
+    }
+
+    private void createEndpointClass() throws AtlasException {
+        final String typeName = HistorianDataTypes.HISTORIAN_ENDPOINT.getName();
+
+        addClassTypeDefinition(typeName, ImmutableSet.of(AtlasClient.DATA_SET_SUPER_TYPE), new AttributeDefinition[0]);
+        getLogger().info("Created definition for " + typeName);
+    }
+
     private void addClassTypeDefinition(String typeName, ImmutableSet<String> superTypes, AttributeDefinition[] attributeDefinitions) {
         final HierarchicalTypeDefinition<ClassType> definition =
                 new HierarchicalTypeDefinition<>(ClassType.class, typeName, null, superTypes, attributeDefinitions);
@@ -788,32 +1923,37 @@ public class HistorianDeanReporter extends AbstractReportingTask {
         return jsonArray;
     }
 	
-	private JSONObject postJSONToUrlAuth(String urlString, String[] basicAuth, String payload) throws IOException, JSONException {
+	private JSONObject postJSONToUrlAuth(final String urlString, String[] basicAuth, final String payload) throws IOException, JSONException {
 		String userPassString = basicAuth[0]+":"+basicAuth[1];
 		JSONObject json = null;
 		try {
-            URL url = new URL (urlString);
-            //Base64.encodeBase64String(userPassString.getBytes());
+			json = atlasLimiter.execute(new AdaptiveConcurrencyLimiter.Request<JSONObject>() {
+				@Override
+				public JSONObject call() throws Exception {
+					URL url = new URL (urlString);
+					//Base64.encodeBase64String(userPassString.getBytes());
 
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod("POST");
-            connection.setDoOutput(true);
-            connection.setRequestProperty("Authorization", "Basic " + encoding);
-            connection.setRequestProperty("Content-Type", "application/json");
-            connection.setRequestProperty("X-XSRF-HEADER","User");
-            
-            //System.out.println("To String: " + convertPOJOToJSON(historianEvent));
-            
-            OutputStream os = connection.getOutputStream();
-    		os.write(payload.getBytes());
-    		os.flush();
-            
-            if (connection.getResponseCode() != 200 || connection.getResponseCode() != 201) {
-    			throw new RuntimeException("Failed : HTTP error code : " + connection.getResponseCode());
-    		}
-            BufferedReader rd = new BufferedReader(new InputStreamReader(connection.getInputStream(), Charset.forName("UTF-8")));
-  	      	String jsonText = readAll(rd);
-  	      	json = new JSONObject(jsonText);
+					HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+					connection.setRequestMethod("POST");
+					connection.setDoOutput(true);
+					connection.setRequestProperty("Authorization", "Basic " + encoding);
+					connection.setRequestProperty("Content-Type", "application/json");
+					connection.setRequestProperty("X-XSRF-HEADER","User");
+					
+					//System.out.println("To String: " + convertPOJOToJSON(historianEvent));
+					
+					OutputStream os = connection.getOutputStream();
+					os.write(payload.getBytes());
+					os.flush();
+					
+					if (connection.getResponseCode() != 200 && connection.getResponseCode() != 201) {
+						throw new AdaptiveConcurrencyLimiter.HttpResponseException(connection.getResponseCode(), connection.getResponseMessage());
+					}
+					BufferedReader rd = new BufferedReader(new InputStreamReader(connection.getInputStream(), Charset.forName("UTF-8")));
+					String jsonText = readAll(rd);
+					return new JSONObject(jsonText);
+				}
+			});
         } catch(Exception e) {
             e.printStackTrace();
         }
@@ -829,229 +1969,66 @@ public class HistorianDeanReporter extends AbstractReportingTask {
 	    return sb.toString();
 	}
 	
-	public void registerHistorianMetaData(){
-		System.out.println("***************** Creating Meta Data Entities...");
-		
-		Referenceable tag_rpm_a = new Referenceable("historian_tag");
-		tag_rpm_a.set(AtlasClient.NAME, "rpm_truck_a");
-		tag_rpm_a.set(AtlasClient.REFERENCEABLE_ATTRIBUTE_NAME, "historian_tag.rpm_truck_a");
-		tag_rpm_a.set(AtlasClient.OWNER, "");
-		
-		Referenceable tag_rpm_b = new Referenceable("historian_tag");
-		tag_rpm_b.set(AtlasClient.NAME, "rpm_truck_b");
-		tag_rpm_b.set(AtlasClient.REFERENCEABLE_ATTRIBUTE_NAME, "historian_tag.rpm_truck_b");
-		tag_rpm_b.set(AtlasClient.OWNER, "");
-		
-		Referenceable tag_mpg_a = new Referenceable("historian_tag");
-		tag_mpg_a.set(AtlasClient.NAME, "mpg_truck_a");
-		tag_mpg_a.set(AtlasClient.REFERENCEABLE_ATTRIBUTE_NAME, "historian_tag.mpg_truck_a");
-		tag_mpg_a.set(AtlasClient.OWNER, "");
-		
-		Referenceable tag_mpg_b = new Referenceable("historian_tag");
-		tag_mpg_b.set(AtlasClient.NAME, "mpg_truck_b");
-		tag_mpg_b.set(AtlasClient.REFERENCEABLE_ATTRIBUTE_NAME, "historian_tag.mpg_truck_b");
-		tag_mpg_b.set(AtlasClient.OWNER, "");
-		
-		Referenceable truck_a = new Referenceable("historian_asset");
-		truck_a.set(AtlasClient.NAME, "truck_a");
-		truck_a.set(AtlasClient.REFERENCEABLE_ATTRIBUTE_NAME, "historian_asset.truck_a");
-		truck_a.set(AtlasClient.OWNER, "");
-		
-		Referenceable truck_b = new Referenceable("historian_asset");
-		truck_b.set(AtlasClient.NAME, "truck_b");
-		truck_b.set(AtlasClient.REFERENCEABLE_ATTRIBUTE_NAME, "historian_asset.truck_b");
-		truck_b.set(AtlasClient.OWNER, "");
-		
-		Referenceable mine_a = new Referenceable("historian_asset");
-		mine_a.set(AtlasClient.NAME, "mine_a");
-		mine_a.set(AtlasClient.REFERENCEABLE_ATTRIBUTE_NAME, "historian_asset.mine_a");
-		mine_a.set(AtlasClient.OWNER, "");
-		
-    	Referenceable mine_b = new Referenceable("historian_asset");
-		mine_b.set(AtlasClient.NAME, "mine_b");
-		mine_b.set(AtlasClient.REFERENCEABLE_ATTRIBUTE_NAME, "historian_asset.mine_b");
-		mine_b.set(AtlasClient.OWNER, "");
-		
-		 
+	/**
+	 * Creates or updates the historian_asset hierarchy described by the hierarchy file. The file is only loaded again
+	 * when it has been modified since the last successful load. The metadata index receives only the assets that were
+	 * added, changed or removed since it was last updated, unless it lost its contents.
+	 */
+	public void registerHistorianMetaData(File hierarchyFile, int batchSize){
+		long lastModified = hierarchyFile.lastModified();
+		boolean modified = lastModified != assetHierarchyLastModified;
+		boolean indexOutdated = metadataIndex != null && (lastModified != assetHierarchyIndexedModified || metadataIndex.isEmpty());
+		if(!hierarchyFile.exists() || (!modified && !indexOutdated)){
+			return;
+		}
 		try {
-			List<String> response = atlasClient.createEntity(tag_mpg_a);
-			System.out.println(response);
-			if(response.size() > 0){
-				String tag_mpg_a_guid = response.get(0);
-				tag_mpg_a = atlasClient.getEntity(tag_mpg_a_guid);
-				Id tag_mpg_a_id = tag_mpg_a.getId();
-				entityMap.put("tag_mpg_a", tag_mpg_a);
-				entityMap.put("tag_mpg_a_id", tag_mpg_a_id);
-				System.out.println(entityMap);
-			}else{
-				System.out.println("***************** tag_mpg_a already exists");
-			}
-			System.out.println(entityMap);
-			response = atlasClient.createEntity(tag_rpm_a);
-			System.out.println(response);
-			if(response.size() > 0){
-				String tag_rpm_a_guid = response.get(0);
-				tag_rpm_a = atlasClient.getEntity(tag_rpm_a_guid);
-				Id tag_rpm_a_id = tag_rpm_a.getId();
-				entityMap.put("tag_rpm_a", tag_rpm_a);
-				entityMap.put("tag_rpm_a_id", tag_rpm_a_id);
-			}else{
-				System.out.println("***************** tag_rpm_a already exists");
-			}
-			System.out.println(entityMap);
-			response = atlasClient.createEntity(tag_mpg_b);
-			System.out.println(response);
-			if(response.size() > 0){
-				String tag_mpg_b_guid = response.get(0);
-				tag_mpg_b = atlasClient.getEntity(tag_mpg_b_guid);
-				Id tag_mpg_b_id = tag_mpg_b.getId();
-				entityMap.put("tag_mpg_b", tag_mpg_b);
-				entityMap.put("tag_mpg_b_id", tag_mpg_b_id);
-			}else{
-				System.out.println("***************** tag_mpg_b already exists");
+			List<AssetHierarchyLoader.AssetNode> assets = AssetHierarchyLoader.readHierarchy(hierarchyFile);
+			if(indexOutdated){
+				updateAssetIndex(assets);
+				assetHierarchyIndexedModified = lastModified;
 			}
-			System.out.println(entityMap);
-			response = atlasClient.createEntity(tag_rpm_b);
-			System.out.println(response);
-			if(response.size() > 0){
-				String tag_rpm_b_guid = response.get(0);
-				tag_rpm_b = atlasClient.getEntity(tag_rpm_b_guid);
-				Id tag_rpm_b_id = tag_rpm_b.getId();
-				entityMap.put("tag_rpm_b", tag_rpm_b);
-				entityMap.put("tag_rpm_b_id", tag_rpm_b_id);
-			}else{
-				System.out.println("***************** tag_rpm_b already exists");
-			}
-			System.out.println(entityMap);
-			//System.out.println("***************** " + InstanceSerialization.toJson(truck_a,true));
-			response = atlasClient.createEntity(truck_a);
-			System.out.println(response);
-			if(response.size() > 0){
-				String truck_a_guid = response.get(0);
-				truck_a = atlasClient.getEntity(truck_a_guid);
-				Id truck_a_id =truck_a.getId();
-				entityMap.put("truck_a", truck_a);
-				entityMap.put("truck_a_id", truck_a_id);
-			}else{
-				System.out.println("***************** truck_a already exists");
+			if(!modified){
+				return;
 			}
-			System.out.println(entityMap);
-			//System.out.println("***************** " + InstanceSerialization.toJson(truck_b,true));
-			response = atlasClient.createEntity(truck_b);
-			System.out.println(response);
-			if(response.size() > 0){
-				String truck_b_guid = response.get(0);
-				truck_b = atlasClient.getEntity(truck_b_guid);
-				Id truck_b_id = truck_b.getId();
-				entityMap.put("truck_b", truck_b);
-				entityMap.put("truck_b_id", truck_b_id);
-			}else{
-				System.out.println("***************** truck_b already exists");
-			}
-			System.out.println(entityMap);
-			response = atlasClient.createEntity(mine_a);
-			System.out.println(response);
-			if(response.size() > 0){
-				String mine_a_guid = response.get(0);
-				mine_a = atlasClient.getEntity(mine_a_guid);
-				Id mine_a_id = mine_a.getId();
-				entityMap.put("mine_a", mine_a);
-				entityMap.put("mine_a_id", mine_a_id);
-			}else{
-				System.out.println("***************** mine_a already exists");
-			}
-			System.out.println(entityMap);
-			response = atlasClient.createEntity(mine_b);
-			System.out.println(response);
-			if(response.size() > 0){
-				String mine_b_guid = response.get(0);
-				mine_b = atlasClient.getEntity(mine_b_guid);
-				Id mine_b_id = mine_b.getId();
-				entityMap.put("mine_b", mine_b);
-				entityMap.put("mine_b_id", mine_b_id);
-			}else{
-				System.out.println("***************** mine_b already exists");
-			}
-			System.out.println(entityMap);
-		} catch (AtlasServiceException e) {
-			e.printStackTrace();
+			getLogger().info("********************* Loading Historian Asset Hierarchy from: " + hierarchyFile.getAbsolutePath());
+			Map<String,String> assetGuids = new AssetHierarchyLoader(atlasClient, batchSize, atlasLimiter).load(assets);
+			assetHierarchyLastModified = lastModified;
+			getLogger().info("********************* Loaded Historian Asset Hierarchy, resolved " + assetGuids.size() + " parent asset GUIDs");
+		} catch (Exception e) {
+			getLogger().error("Unable to load Historian Asset Hierarchy from " + hierarchyFile.getAbsolutePath(), e);
 		}
-    	
-		System.out.println("***************** Mine A: " + InstanceSerialization.toJson(mine_a, true));
-    	System.out.println("***************** Mine B: " + InstanceSerialization.toJson(mine_b, true));
-    	System.out.println("***************** Truck A: " + InstanceSerialization.toJson(truck_a, true));
-    	System.out.println("***************** Truck B: " + InstanceSerialization.toJson(truck_b, true));
 	}
-	
-	public void associateEntities() throws AtlasException {
-		List<Id> trucks_mine_a = new ArrayList<Id>();
-		List<Id> trucks_mine_b = new ArrayList<Id>();
-		List<Id> mines_truck_a = new ArrayList<Id>();
-		List<Id> mines_truck_b = new ArrayList<Id>();
-		
-		System.out.println(entityMap);
-		
-		try {
-			Referenceable truck_a = (Referenceable)entityMap.get("truck_a");
-			Referenceable truck_b = (Referenceable)entityMap.get("truck_b");
-			Referenceable mine_a = (Referenceable)entityMap.get("mine_a");
-			Referenceable mine_b = (Referenceable)entityMap.get("mine_b");
-			
-			if(entityMap.get("truck_a_id") != null && 
-			   entityMap.get("truck_b_id") != null &&
-			   entityMap.get("mine_a_id") != null && 
-			   entityMap.get("mine_b_id") != null	 ){
-				trucks_mine_a.add((Id)entityMap.get("truck_a_id"));
-				trucks_mine_b.add((Id)entityMap.get("truck_b_id"));
-				mines_truck_a.add((Id)entityMap.get("mine_a_id"));
-				mines_truck_b.add((Id)entityMap.get("mine_b_id"));
-				
-				truck_a.set("parent_assets", mines_truck_a);
-				truck_a.set("child_assets", null);
-				truck_a.set("historian_tags", null);
-				
-				truck_b.set("parent_assets", mines_truck_b);
-				truck_b.set("child_assets", null);
-				truck_b.set("historian_tags", null);
-				
-				System.out.println("***************** " + InstanceSerialization.toJson(truck_a,true));
-				System.out.println("***************** " + InstanceSerialization.toJson(truck_b,true));
-				
-				atlasClient.updateEntities(truck_a);
-				atlasClient.updateEntities(truck_b);
-			}
-			
-			if(entityMap.get("mine_a_id") != null && entityMap.get("mine_b_id") != null){
-				mine_a.set("parent_assets", null);
-				mine_a.set("child_assets", trucks_mine_a);
-				mine_a.set("historian_tags", null);
-				
-				mine_b.set("parent_assets", null);
-				mine_b.set("child_assets", trucks_mine_b);
-				mine_b.set("historian_tags", null);
-				
-				System.out.println("***************** " + InstanceSerialization.toJson(mine_a,true));
-				System.out.println("***************** " + InstanceSerialization.toJson(mine_b,true));
-				
-				atlasClient.updateEntities(mine_a);
-				atlasClient.updateEntities(mine_b);
+
+	/**
+	 * Applies the difference between the hierarchy file and what was last put into the metadata index. Assets the
+	 * index holds that are no longer in the file are removed, including those restored from its snapshot.
+	 */
+	private void updateAssetIndex(List<AssetHierarchyLoader.AssetNode> assets){
+		if(metadataIndex.isEmpty()){
+			indexedAssets.clear();
+		}
+		Map<String,List<String>> current = new HashMap<String,List<String>>();
+		int changed = 0;
+		for(AssetHierarchyLoader.AssetNode asset : assets){
+			List<String> parentAssets = asset.getParent() == null
+					? Collections.<String>emptyList() : Collections.singletonList(asset.getParent().getQualifiedName());
+			List<String> signature = new ArrayList<String>(parentAssets);
+			signature.add("|");
+			signature.addAll(asset.getTags());
+			current.put(asset.getQualifiedName(), signature);
+			if(!signature.equals(indexedAssets.get(asset.getQualifiedName()))){
+				metadataIndex.putAsset(asset.getQualifiedName(), parentAssets, asset.getTags());
+				changed++;
 			}
-			
-		} catch (AtlasServiceException e) {
-			e.printStackTrace();
-		} catch (Exception e){
-			e.printStackTrace();
 		}
-	}
-    
-	public void deleteHistorianData(){
-		try {
-			atlasClient.deleteEntity(HistorianDataTypes.HISTORIAN_ASSET.getName(), AtlasClient.REFERENCEABLE_ATTRIBUTE_NAME, "historian_asset.mine_a");
-			atlasClient.deleteEntity(HistorianDataTypes.HISTORIAN_ASSET.getName(), AtlasClient.REFERENCEABLE_ATTRIBUTE_NAME, "historian_asset.mine_b");
-			atlasClient.deleteEntity(HistorianDataTypes.HISTORIAN_ASSET.getName(), AtlasClient.REFERENCEABLE_ATTRIBUTE_NAME, "historian_asset.truck_a");
-			atlasClient.deleteEntity(HistorianDataTypes.HISTORIAN_ASSET.getName(), AtlasClient.REFERENCEABLE_ATTRIBUTE_NAME, "historian_asset.truck_b");
-		} catch (AtlasServiceException e) {
-			e.printStackTrace();
+		int removed = 0;
+		for(String asset : metadataIndex.getAssets()){
+			if(!current.containsKey(asset)){
+				metadataIndex.removeAsset(asset);
+				removed++;
+			}
 		}
+		indexedAssets = current;
+		getLogger().info("********************* Updated " + changed + " and removed " + removed + " assets in the metadata index");
 	}
 }
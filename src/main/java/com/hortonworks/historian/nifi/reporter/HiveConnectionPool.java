@@ -0,0 +1,211 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hortonworks.historian.nifi.reporter;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A small pool of HiveServer2 connections.
+ *
+ * Work is handed a fresh statement with the configured fetch size and query timeout, which is closed afterwards
+ * together with its result sets. At most a fixed number of connections are in use at once. An idle connection is
+ * validated before it is reused, and a connection that failed is discarded; if it failed because the HiveServer2
+ * session was lost, the work is retried once on a new connection.
+ */
+public class HiveConnectionPool {
+
+    static final Logger LOGGER = LoggerFactory.getLogger(HiveConnectionPool.class);
+
+    static final int VALIDATION_TIMEOUT_SECONDS = 5;
+
+    /**
+     * Work to run with a statement of a pooled connection.
+     */
+    public interface Work<T> {
+        T run(Statement statement) throws SQLException;
+    }
+
+    private final String url;
+    private final String user;
+    private final String password;
+    private final int fetchSize;
+    private final int queryTimeoutSeconds;
+    private final long borrowTimeoutMillis;
+    private final Semaphore permits;
+    private final Deque<Connection> idle = new ArrayDeque<>();
+    private boolean closed;
+
+    public HiveConnectionPool(final String url, final String user, final String password, final int maxConnections,
+            final int fetchSize, final int queryTimeoutSeconds, final long borrowTimeoutMillis) throws ClassNotFoundException {
+        Class.forName("org.apache.hive.jdbc.HiveDriver");
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.fetchSize = fetchSize;
+        this.queryTimeoutSeconds = queryTimeoutSeconds;
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+        this.permits = new Semaphore(maxConnections, true);
+    }
+
+    /**
+     * Runs the work with the default fetch size.
+     */
+    public <T> T execute(final Work<T> work) throws SQLException {
+        return execute(fetchSize, work);
+    }
+
+    public <T> T execute(final int statementFetchSize, final Work<T> work) throws SQLException {
+        try {
+            if (!permits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new SQLException("Timed out after " + borrowTimeoutMillis + " ms waiting for a Hive connection");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a Hive connection", e);
+        }
+        try {
+            for (int attempt = 1;; attempt++) {
+                final Connection connection = borrow();
+                boolean healthy = false;
+                try {
+                    final T result = run(connection, statementFetchSize, work);
+                    healthy = true;
+                    return result;
+                } catch (SQLException e) {
+                    healthy = !isConnectionLost(connection, e);
+                    if (healthy || attempt > 1) {
+                        throw e;
+                    }
+                    LOGGER.warn("Lost the Hive connection to {}, retrying on a new connection", new Object[] {url, e});
+                } finally {
+                    if (healthy) {
+                        giveBack(connection);
+                    } else {
+                        closeQuietly(connection);
+                    }
+                }
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    private <T> T run(final Connection connection, final int statementFetchSize, final Work<T> work) throws SQLException {
+        final Statement statement = connection.createStatement();
+        try {
+            statement.setFetchSize(statementFetchSize);
+            try {
+                statement.setQueryTimeout(queryTimeoutSeconds);
+            } catch (SQLException e) {
+                // older Hive drivers do not support query timeouts
+                LOGGER.debug("Hive driver does not support query timeouts", e);
+            }
+            return work.run(statement);
+        } finally {
+            statement.close();
+        }
+    }
+
+    private Connection borrow() throws SQLException {
+        while (true) {
+            final Connection connection;
+            synchronized (idle) {
+                connection = idle.pollFirst();
+            }
+            if (connection == null) {
+                LOGGER.info("Opening a new Hive connection to {}", new Object[] {url});
+                return DriverManager.getConnection(url, user, password);
+            }
+            if (isValid(connection)) {
+                return connection;
+            }
+            LOGGER.info("Discarding a Hive connection that is no longer valid");
+            closeQuietly(connection);
+        }
+    }
+
+    private void giveBack(final Connection connection) {
+        synchronized (idle) {
+            if (!closed) {
+                idle.addFirst(connection);
+                return;
+            }
+        }
+        closeQuietly(connection);
+    }
+
+    static boolean isValid(final Connection connection) {
+        try {
+            return connection.isValid(VALIDATION_TIMEOUT_SECONDS);
+        } catch (SQLException e) {
+            // drivers that cannot validate at least report a connection closed by the server
+            try {
+                return !connection.isClosed();
+            } catch (SQLException ce) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * A failure caused by the connection, as opposed to the statement: a connection-class SQL state (08), a transport
+     * error from the Thrift client, or a connection that is no longer valid.
+     */
+    static boolean isConnectionLost(final Connection connection, final SQLException e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SQLException && ((SQLException) cause).getSQLState() != null
+                    && ((SQLException) cause).getSQLState().startsWith("08")) {
+                return true;
+            }
+            if (cause.getClass().getName().startsWith("org.apache.thrift.transport.")) {
+                return true;
+            }
+        }
+        return !isValid(connection);
+    }
+
+    /**
+     * Closes the idle connections. Connections in use are closed when they are given back.
+     */
+    public void close() {
+        synchronized (idle) {
+            closed = true;
+            for (Connection connection : idle) {
+                closeQuietly(connection);
+            }
+            idle.clear();
+        }
+    }
+
+    private static void closeQuietly(final Connection connection) {
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            LOGGER.debug("Unable to close a Hive connection", e);
+        }
+    }
+}
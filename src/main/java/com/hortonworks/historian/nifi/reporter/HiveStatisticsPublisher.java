@@ -0,0 +1,130 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hortonworks.historian.nifi.reporter;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Publishes the row count, size and column cardinalities of a Druid datasource, as reported by its segment metadata,
+ * as table and column statistics of the Hive table over it, so that Hive can plan queries against the table.
+ *
+ * The statistics last published for each table are remembered, and a statistic is only published again once it moved
+ * by more than {@link #CHANGE_TOLERANCE} of its previous value, so a datasource that keeps ingesting does not cause a
+ * metastore update on every run.
+ */
+public class HiveStatisticsPublisher {
+
+    static final Logger LOGGER = LoggerFactory.getLogger(HiveStatisticsPublisher.class);
+
+    static final double CHANGE_TOLERANCE = 0.05;
+    static final String TABLE_STATISTICS_KEY = "";
+
+    private final HiveConnectionPool connectionPool;
+    private final Map<String, Map<String, Long>> publishedStatistics = new HashMap<>();
+
+    public HiveStatisticsPublisher(final HiveConnectionPool connectionPool) {
+        this.connectionPool = connectionPool;
+    }
+
+    /**
+     * Forgets the statistics published for a table, for instance because it was recreated.
+     */
+    public void reset(final String table) {
+        publishedStatistics.remove(table.toLowerCase());
+    }
+
+    /**
+     * @param segmentMetadata the merged segmentMetadata result of the datasource, including the size and cardinality analyses
+     * @return the number of statistics published
+     */
+    public int publish(final String table, final Map<String, Object> segmentMetadata) throws SQLException {
+        Map<String, Long> published = publishedStatistics.get(table.toLowerCase());
+        if (published == null) {
+            published = new HashMap<>();
+            publishedStatistics.put(table.toLowerCase(), published);
+        }
+        final Map<String, Long> cardinalities = getCardinalities(segmentMetadata);
+        final long numRows = getLong(segmentMetadata, "numRows");
+        final long size = getLong(segmentMetadata, "size");
+
+        final Map<String, String> statements = new LinkedHashMap<>();
+        final Map<String, Long> updates = new HashMap<>();
+        if (numRows >= 0 && changed(published.get(TABLE_STATISTICS_KEY), numRows)) {
+            statements.put(TABLE_STATISTICS_KEY, "ALTER TABLE " + table + " SET TBLPROPERTIES ('numRows'='" + numRows + "'"
+                    + (size >= 0 ? ", 'rawDataSize'='" + size + "', 'totalSize'='" + size + "'" : "") + ")");
+            updates.put(TABLE_STATISTICS_KEY, numRows);
+        }
+        for (Map.Entry<String, Long> cardinality : cardinalities.entrySet()) {
+            if (changed(published.get(cardinality.getKey()), cardinality.getValue())) {
+                statements.put(cardinality.getKey(), "ALTER TABLE " + table + " UPDATE STATISTICS FOR COLUMN `" + cardinality.getKey()
+                        + "` SET ('numDVs'='" + cardinality.getValue() + "', 'numNulls'='0')");
+                updates.put(cardinality.getKey(), cardinality.getValue());
+            }
+        }
+        if (statements.isEmpty()) {
+            return 0;
+        }
+
+        final Map<String, Long> publishedNow = published;
+        connectionPool.execute(new HiveConnectionPool.Work<Void>() {
+            @Override
+            public Void run(final Statement statement) throws SQLException {
+                for (Map.Entry<String, String> update : statements.entrySet()) {
+                    statement.execute(update.getValue());
+                    publishedNow.put(update.getKey(), updates.get(update.getKey()));
+                }
+                return null;
+            }
+        });
+        LOGGER.info("Published {} statistics of Hive table {} ({} rows)", new Object[] {statements.size(), table, numRows});
+        return statements.size();
+    }
+
+    @SuppressWarnings("unchecked")
+    static Map<String, Long> getCardinalities(final Map<String, Object> segmentMetadata) {
+        final Map<String, Long> cardinalities = new LinkedHashMap<>();
+        final Object columns = segmentMetadata.get("columns");
+        if (!(columns instanceof Map)) {
+            return cardinalities;
+        }
+        for (Map.Entry<String, Object> column : ((Map<String, Object>) columns).entrySet()) {
+            if (column.getValue() instanceof Map) {
+                final long cardinality = getLong((Map<String, Object>) column.getValue(), "cardinality");
+                if (cardinality >= 0) {
+                    cardinalities.put(column.getKey().toLowerCase(), cardinality);
+                }
+            }
+        }
+        return cardinalities;
+    }
+
+    static boolean changed(final Long published, final long current) {
+        return published == null || Math.abs(current - published) > CHANGE_TOLERANCE * Math.max(1L, published);
+    }
+
+    private static long getLong(final Map<String, Object> map, final String name) {
+        final Object value = map.get(name);
+        return value instanceof Number ? ((Number) value).longValue() : -1L;
+    }
+}
@@ -0,0 +1,155 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hortonworks.historian.nifi.reporter;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.atlas.AtlasClient.EntityResult;
+import org.apache.atlas.typesystem.Referenceable;
+import org.apache.atlas.typesystem.Struct;
+import org.apache.atlas.typesystem.json.InstanceSerialization;
+import org.apache.atlas.typesystem.persistence.Id;
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+/**
+ * Publishes entities as Atlas hook notifications, which the Atlas server consumes from its hook topic.
+ *
+ * Each batch becomes ENTITY_CREATE messages of at most the configured number of entities. Atlas applies these as
+ * create-or-update by unique attribute, the same as the REST path. Entities that reference each other through temporary
+ * ids must stay in one message, so a batch is only split between runs of entities that no reference crosses, and a run
+ * larger than the message size goes out as one message of its own.
+ */
+public class HookAtlasEntityPublisher implements AtlasEntityPublisher {
+
+    static final String MESSAGE_VERSION = "1.0.0";
+    static final String ENTITY_CREATE = "ENTITY_CREATE";
+
+    private final HookMessageTransport transport;
+    private final String user;
+    private final int maxEntitiesPerMessage;
+
+    public HookAtlasEntityPublisher(final HookMessageTransport transport, final String user, final int maxEntitiesPerMessage) {
+        this.transport = transport;
+        this.user = user;
+        this.maxEntitiesPerMessage = maxEntitiesPerMessage;
+    }
+
+    @Override
+    public EntityResult publish(final List<Referenceable> entities) throws Exception {
+        final List<String> messages = new ArrayList<>();
+        for (List<Referenceable> messageEntities : split(entities, maxEntitiesPerMessage)) {
+            messages.add(toHookMessage(messageEntities));
+        }
+        transport.send(messages);
+        return null;
+    }
+
+    /**
+     * Cuts the entities into consecutive groups of at most maxEntities, only at positions that no reference between
+     * entities of the batch spans. A run of entities that cannot be cut within maxEntities becomes one group.
+     */
+    static List<List<Referenceable>> split(final List<Referenceable> entities, final int maxEntities) {
+        final Map<String, Integer> positions = new HashMap<>();
+        for (int i = 0; i < entities.size(); i++) {
+            if (entities.get(i).getId() != null) {
+                positions.put(entities.get(i).getId()._getId(), i);
+            }
+        }
+        // reach[i] is the last position referenced from or referencing position i
+        final int[] reach = new int[entities.size()];
+        for (int i = 0; i < entities.size(); i++) {
+            reach[i] = Math.max(reach[i], i);
+            final List<String> references = new ArrayList<>();
+            collectReferences(entities.get(i).getValuesMap().values(), references);
+            for (String reference : references) {
+                final Integer position = positions.get(reference);
+                if (position != null) {
+                    final int low = Math.min(i, position);
+                    reach[low] = Math.max(reach[low], Math.max(i, position));
+                }
+            }
+        }
+
+        final List<List<Referenceable>> groups = new ArrayList<>();
+        List<Referenceable> group = new ArrayList<>();
+        int unitStart = 0;
+        int unitEnd = -1;
+        for (int i = 0; i < entities.size(); i++) {
+            unitEnd = Math.max(unitEnd, reach[i]);
+            if (i < unitEnd) {
+                continue;
+            }
+            final List<Referenceable> unit = entities.subList(unitStart, i + 1);
+            if (!group.isEmpty() && group.size() + unit.size() > maxEntities) {
+                groups.add(group);
+                group = new ArrayList<>();
+            }
+            group.addAll(unit);
+            unitStart = i + 1;
+        }
+        if (!group.isEmpty()) {
+            groups.add(group);
+        }
+        return groups;
+    }
+
+    private static void collectReferences(final Object value, final List<String> references) {
+        if (value instanceof Id) {
+            references.add(((Id) value)._getId());
+        } else if (value instanceof Struct) {
+            collectReferences(((Struct) value).getValuesMap().values(), references);
+        } else if (value instanceof Collection) {
+            for (Object element : (Collection<?>) value) {
+                collectReferences(element, references);
+            }
+        } else if (value instanceof Map) {
+            collectReferences(((Map<?, ?>) value).values(), references);
+        }
+    }
+
+    String toHookMessage(final List<Referenceable> entities) throws JSONException {
+        final JSONArray entitiesJson = new JSONArray();
+        for (Referenceable entity : entities) {
+            entitiesJson.put(new JSONObject(InstanceSerialization.toJson(entity, true)));
+        }
+
+        final JSONObject message = new JSONObject();
+        message.put("type", ENTITY_CREATE);
+        message.put("user", user);
+        message.put("entities", entitiesJson);
+
+        final JSONObject version = new JSONObject();
+        version.put("version", MESSAGE_VERSION);
+
+        final JSONObject versionedMessage = new JSONObject();
+        versionedMessage.put("version", version);
+        versionedMessage.put("message", message);
+        return versionedMessage.toString();
+    }
+
+    @Override
+    public void close() {
+        transport.close();
+    }
+}
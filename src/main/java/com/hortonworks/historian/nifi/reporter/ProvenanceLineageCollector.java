@@ -0,0 +1,255 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hortonworks.historian.nifi.reporter;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.atlas.AtlasClient;
+import org.apache.atlas.typesystem.Referenceable;
+import org.apache.atlas.typesystem.persistence.Id;
+import org.apache.htrace.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.nifi.provenance.ProvenanceEventRecord;
+
+import com.hortonworks.historian.model.HistorianDataTypes;
+
+/**
+ * Collapses NiFi provenance events into one lineage process per component that sends data out of NiFi.
+ *
+ * The endpoints a FlowFile was received or fetched from are carried along to its children, so that a SEND event
+ * links every source endpoint of the FlowFile to the destination. All events of one sending component are folded into
+ * a single historian_flow process whose inputs and outputs are the union of the endpoints seen so far. The processes
+ * are kept in a file in the local state directory, so only processes that gained an endpoint are published again.
+ *
+ * The sources of in-flight FlowFiles are tracked for at most a fixed number of FlowFiles and are not persisted; a
+ * FlowFile that is sent after it was evicted or after a restart only contributes its destination.
+ */
+public class ProvenanceLineageCollector {
+
+    static final String LINEAGE_FILE_NAME = "provenance-lineage.json";
+    static final String QUALIFIED_NAME_PREFIX = HistorianDataTypes.HISTORIAN_FLOW.getName() + ".";
+
+    private final File lineageFile;
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final Map<String, FlowLineage> flows = new HashMap<>();
+    private final Map<String, Set<String>> flowFileSources;
+
+    private static class FlowLineage {
+        private String name;
+        private final Set<String> inputs = new TreeSet<>();
+        private final Set<String> outputs = new TreeSet<>();
+        private boolean pending;
+    }
+
+    public ProvenanceLineageCollector(final File stateDirectory, final int maxTrackedFlowFiles) throws IOException {
+        this.lineageFile = new File(stateDirectory, LINEAGE_FILE_NAME);
+        this.flowFileSources = new LinkedHashMap<String, Set<String>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, Set<String>> eldest) {
+                return size() > maxTrackedFlowFiles;
+            }
+        };
+        load();
+    }
+
+    /**
+     * Folds a provenance event into the lineage.
+     *
+     * @param componentName the name of the component that emitted the event, or null if it is not known
+     */
+    public void add(final ProvenanceEventRecord event, final String componentName) {
+        switch (event.getEventType()) {
+            case RECEIVE:
+            case FETCH:
+                final String source = normalizeTransitUri(event.getTransitUri());
+                if (source != null) {
+                    getSources(event.getFlowFileUuid(), true).add(source);
+                }
+                break;
+            case FORK:
+            case CLONE:
+            case JOIN:
+            case REPLAY:
+                final Set<String> parentSources = new TreeSet<>();
+                for (String parent : event.getParentUuids()) {
+                    final Set<String> sources = flowFileSources.get(parent);
+                    if (sources != null) {
+                        parentSources.addAll(sources);
+                    }
+                }
+                if (!parentSources.isEmpty()) {
+                    for (String child : event.getChildUuids()) {
+                        getSources(child, true).addAll(parentSources);
+                    }
+                }
+                break;
+            case SEND:
+                final String destination = normalizeTransitUri(event.getTransitUri());
+                if (destination == null) {
+                    break;
+                }
+                FlowLineage flow = flows.get(event.getComponentId());
+                if (flow == null) {
+                    flow = new FlowLineage();
+                    flows.put(event.getComponentId(), flow);
+                }
+                final String name = componentName == null ? event.getComponentType() : componentName;
+                if (!name.equals(flow.name)) {
+                    flow.name = name;
+                    flow.pending = true;
+                }
+                final Set<String> sources = getSources(event.getFlowFileUuid(), false);
+                if (sources != null && flow.inputs.addAll(sources)) {
+                    flow.pending = true;
+                }
+                if (flow.outputs.add(destination)) {
+                    flow.pending = true;
+                }
+                break;
+            case DROP:
+            case EXPIRE:
+                flowFileSources.remove(event.getFlowFileUuid());
+                break;
+            default:
+                break;
+        }
+    }
+
+    private Set<String> getSources(final String flowFileUuid, final boolean create) {
+        Set<String> sources = flowFileSources.get(flowFileUuid);
+        if (sources == null && create) {
+            sources = new TreeSet<>();
+            flowFileSources.put(flowFileUuid, sources);
+        }
+        return sources;
+    }
+
+    /**
+     * @return the process and endpoint entities of every process that changed since the last call
+     */
+    public List<Referenceable> getChangedEntities() {
+        final List<Referenceable> entities = new ArrayList<>();
+        final Map<String, Referenceable> endpoints = new HashMap<>();
+        for (Map.Entry<String, FlowLineage> entry : flows.entrySet()) {
+            final FlowLineage flow = entry.getValue();
+            if (!flow.pending) {
+                continue;
+            }
+            final Referenceable process = new Referenceable(HistorianDataTypes.HISTORIAN_FLOW.getName());
+            process.set(AtlasClient.NAME, flow.name);
+            process.set(AtlasClient.REFERENCEABLE_ATTRIBUTE_NAME, QUALIFIED_NAME_PREFIX + entry.getKey());
+            process.set("component_id", entry.getKey());
+            process.set(AtlasClient.PROCESS_ATTRIBUTE_INPUTS, getEndpointIds(flow.inputs, endpoints, entities));
+            process.set(AtlasClient.PROCESS_ATTRIBUTE_OUTPUTS, getEndpointIds(flow.outputs, endpoints, entities));
+            entities.add(process);
+        }
+        return entities;
+    }
+
+    private List<Id> getEndpointIds(final Collection<String> uris, final Map<String, Referenceable> endpoints,
+            final List<Referenceable> entities) {
+        final List<Id> ids = new ArrayList<>();
+        for (String uri : uris) {
+            Referenceable endpoint = endpoints.get(uri);
+            if (endpoint == null) {
+                endpoint = new Referenceable(HistorianDataTypes.HISTORIAN_ENDPOINT.getName());
+                endpoint.set(AtlasClient.NAME, uri);
+                endpoint.set(AtlasClient.REFERENCEABLE_ATTRIBUTE_NAME, uri);
+                endpoints.put(uri, endpoint);
+                entities.add(endpoint);
+            }
+            ids.add(endpoint.getId());
+        }
+        return ids;
+    }
+
+    /**
+     * Marks every changed process as published and stores the lineage.
+     */
+    public void markPublished() throws IOException {
+        for (FlowLineage flow : flows.values()) {
+            flow.pending = false;
+        }
+        save();
+    }
+
+    /**
+     * Reduces a transit URI to the endpoint it belongs to: the query and fragment are dropped, and for file systems
+     * the file name as well, so that every file written to a directory maps to the same endpoint.
+     */
+    static String normalizeTransitUri(final String transitUri) {
+        if (transitUri == null || transitUri.isEmpty()) {
+            return null;
+        }
+        try {
+            final URI uri = new URI(transitUri);
+            String path = uri.getPath() == null ? "" : uri.getPath();
+            final String scheme = uri.getScheme() == null ? "" : uri.getScheme().toLowerCase();
+            if ((scheme.equals("file") || scheme.equals("hdfs") || scheme.startsWith("s3") || scheme.startsWith("wasb"))
+                    && path.lastIndexOf('/') > 0) {
+                path = path.substring(0, path.lastIndexOf('/'));
+            }
+            return new URI(uri.getScheme(), uri.getAuthority(), path, null, null).toString();
+        } catch (URISyntaxException e) {
+            return transitUri;
+        }
+    }
+
+    private void save() throws IOException {
+        final Map<String, Object> json = new LinkedHashMap<>();
+        for (Map.Entry<String, FlowLineage> entry : flows.entrySet()) {
+            final Map<String, Object> flow = new LinkedHashMap<>();
+            flow.put("name", entry.getValue().name);
+            flow.put("inputs", entry.getValue().inputs);
+            flow.put("outputs", entry.getValue().outputs);
+            json.put(entry.getKey(), flow);
+        }
+        final File tmp = new File(lineageFile.getParentFile(), LINEAGE_FILE_NAME + ".tmp");
+        mapper.writeValue(tmp, json);
+        Files.move(tmp.toPath(), lineageFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void load() throws IOException {
+        if (!lineageFile.exists()) {
+            return;
+        }
+        final Map<String, Map<String, Object>> json = mapper.readValue(lineageFile, Map.class);
+        for (Map.Entry<String, Map<String, Object>> entry : json.entrySet()) {
+            final FlowLineage flow = new FlowLineage();
+            flow.name = (String) entry.getValue().get("name");
+            flow.inputs.addAll((List<String>) entry.getValue().get("inputs"));
+            flow.outputs.addAll((List<String>) entry.getValue().get("outputs"));
+            flows.put(entry.getKey(), flow);
+        }
+    }
+}
@@ -17,7 +17,12 @@
  */
 package com.hortonworks.historian.nifi.reporter;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.atlas.AtlasClient;
 import org.apache.atlas.typesystem.Referenceable;
@@ -34,6 +39,16 @@ public class ReferenceableUtil {
 
     static final Logger LOGGER = LoggerFactory.getLogger(ReferenceableUtil.class);
 
+    /**
+     * Number of values combined with or in a single DSL query.
+     */
+    static final int DSL_VALUES_PER_QUERY = 100;
+
+    /**
+     * Number of rows requested per page of DSL results.
+     */
+    static final int DSL_PAGE_SIZE = 1000;
+
     /**
      * Utility to retrieve a Reference by query.
      *
@@ -61,6 +76,48 @@ public class ReferenceableUtil {
         }
     }
 
+    /**
+     * Utility to retrieve the References of many entities by the value of one attribute. Values are combined into DSL
+     * queries of the form "type where attr = 'a' or attr = 'b' ...", and each query is read page by page.
+     *
+     * @param atlasClient
+     * @param typeName
+     * @param attributeName
+     * @param values
+     * @return the References found, keyed by attribute value; values without a match are absent
+     * @throws Exception
+     */
+    public static Map<String, Referenceable> getEntityReferencesFromDSL(final AtlasClient atlasClient, final String typeName,
+            final String attributeName, final Collection<String> values) throws Exception {
+
+        final Map<String, Referenceable> references = new HashMap<>();
+        final List<String> distinctValues = new ArrayList<>(new LinkedHashSet<>(values));
+        for (int start = 0; start < distinctValues.size(); start += DSL_VALUES_PER_QUERY) {
+            final List<String> group = distinctValues.subList(start, Math.min(start + DSL_VALUES_PER_QUERY, distinctValues.size()));
+            final StringBuilder dslQuery = new StringBuilder(typeName).append(" where ");
+            for (int i = 0; i < group.size(); i++) {
+                if (i > 0) {
+                    dslQuery.append(" or ");
+                }
+                dslQuery.append(attributeName).append(" = '").append(group.get(i).replace("'", "\\'")).append("'");
+            }
+
+            int offset = 0;
+            JSONArray results;
+            do {
+                results = atlasClient.searchByDSL(dslQuery.toString(), DSL_PAGE_SIZE, offset);
+                for (int i = 0; i < results.length(); i++) {
+                    final JSONObject row = results.getJSONObject(i);
+                    final String guid = row.getJSONObject("$id$").getString("id");
+                    references.put(row.getString(attributeName), new Referenceable(guid, typeName, null));
+                }
+                offset += results.length();
+            } while (results.length() == DSL_PAGE_SIZE);
+        }
+        LOGGER.debug("resolved " + references.size() + " of " + distinctValues.size() + " " + typeName + " entities by " + attributeName);
+        return references;
+    }
+
     /**
      * Utility to create an entity and return the Referenceable instance with a populated id.
      *
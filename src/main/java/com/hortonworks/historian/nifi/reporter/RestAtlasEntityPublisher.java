@@ -0,0 +1,52 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hortonworks.historian.nifi.reporter;
+
+import java.util.List;
+
+import org.apache.atlas.AtlasClient;
+import org.apache.atlas.AtlasClient.EntityResult;
+import org.apache.atlas.typesystem.Referenceable;
+
+/**
+ * Publishes entities through the Atlas REST API, within the limits of an {@link AdaptiveConcurrencyLimiter}.
+ */
+public class RestAtlasEntityPublisher implements AtlasEntityPublisher {
+
+    private final AtlasClient atlasClient;
+    private final AdaptiveConcurrencyLimiter limiter;
+
+    public RestAtlasEntityPublisher(final AtlasClient atlasClient, final AdaptiveConcurrencyLimiter limiter) {
+        this.atlasClient = atlasClient;
+        this.limiter = limiter;
+    }
+
+    @Override
+    public EntityResult publish(final List<Referenceable> entities) throws Exception {
+        return limiter.execute(new AdaptiveConcurrencyLimiter.Request<EntityResult>() {
+            @Override
+            public EntityResult call() throws Exception {
+                return atlasClient.updateEntities(entities);
+            }
+        }, entities.size());
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,431 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hortonworks.historian.nifi.reporter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeSet;
+
+import org.apache.htrace.fasterxml.jackson.core.JsonParser;
+import org.apache.htrace.fasterxml.jackson.core.JsonToken;
+import org.apache.htrace.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the merged segmentMetadata of every Druid datasource in a file per datasource in the local state directory,
+ * so that each run only analyzes the segments that appeared since the previous one.
+ *
+ * Segments are analyzed unmerged, so that every segment is folded into the snapshot exactly once by its id, the same
+ * way the broker merges them: columns and aggregators are combined, sizes and row counts are added up and the
+ * cardinality of a column is the largest of any segment. Segments that ended less than the settle time ago may still
+ * be served by the realtime tasks and are not folded in but analyzed again on every run. The response is read one
+ * segment at a time, so that a full analysis does not hold the metadata of every segment at once. Segments published later for a time chunk that ended before the
+ * watermark are only seen by the next full analysis. The whole history is analyzed again when the full refresh
+ * interval has passed, when the requested analysis types change, or when a new segment has a column, column type,
+ * aggregator or granularity that no segment analyzed since the last full analysis had. These are kept as they were
+ * observed rather than read from the merged metadata, where conflicting granularities or aggregators merge to null
+ * and would otherwise count as new on every run.
+ */
+public class SegmentMetadataSnapshots {
+
+    static final Logger LOGGER = LoggerFactory.getLogger(SegmentMetadataSnapshots.class);
+
+    static final String SNAPSHOT_FILE_PREFIX = "segment-metadata-";
+    static final String ALL_TIME = "1000-01-01T00:00:00.000Z/3000-01-01T00:00:00.000Z";
+    static final String END_OF_TIME = "3000-01-01T00:00:00.000Z";
+
+    private final File stateDirectory;
+    private final String druidQueryUrl;
+    private final String authorization;
+    private final long fullRefreshMillis;
+    private final long settleMillis;
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    /**
+     * The segmentMetadata of the settled segments of a datasource.
+     */
+    static class Snapshot {
+        private long fullAnalysis;
+        private Long watermark;
+        private List<String> analysisTypes = new ArrayList<>();
+        private Map<String, Object> merged;
+        /**
+         * The schema elements of every segment analyzed since the last full analysis, see {@link #schemaOf(Map)}.
+         */
+        private Set<String> observed = new TreeSet<>();
+        /**
+         * The segments folded into the snapshot that still overlap the watermark, with the end of their interval.
+         */
+        private final Map<String, Long> folded = new LinkedHashMap<>();
+    }
+
+    public SegmentMetadataSnapshots(final File stateDirectory, final String druidBrokerUrl, final String authorization,
+            final long fullRefreshMillis, final long settleMillis) {
+        this.stateDirectory = stateDirectory;
+        this.druidQueryUrl = druidBrokerUrl + "/druid/v2";
+        this.authorization = authorization;
+        this.fullRefreshMillis = fullRefreshMillis;
+        this.settleMillis = settleMillis;
+    }
+
+    /**
+     * @param analysisTypes the analysis types to request, such as queryGranularity and aggregators
+     * @return the segmentMetadata of the whole datasource, in the form of a merged segmentMetadata result
+     */
+    public Map<String, Object> getDetails(final String dataSource, final List<String> analysisTypes) throws IOException {
+        final long now = System.currentTimeMillis();
+        final Snapshot stored = load(dataSource);
+        boolean full = stored == null || now - stored.fullAnalysis >= fullRefreshMillis || !stored.analysisTypes.equals(analysisTypes);
+        Map<String, Object> details = full ? null : analyze(dataSource, stored, now);
+        if (details == null) {
+            full = true;
+            final Snapshot snapshot = new Snapshot();
+            snapshot.fullAnalysis = now;
+            snapshot.analysisTypes = new ArrayList<>(analysisTypes);
+            details = analyze(dataSource, snapshot, now);
+        }
+        LOGGER.debug("Analyzed {} segments of {}", new Object[] {full ? "all" : "new", dataSource});
+        return details;
+    }
+
+    /**
+     * Analyzes the segments since the watermark of the snapshot and folds the settled ones into it.
+     *
+     * @return the details of the datasource, or null if a new segment changes the schema of the snapshot
+     */
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> analyze(final String dataSource, final Snapshot snapshot, final long now) throws IOException {
+        final String interval = snapshot.watermark == null ? ALL_TIME
+                : TagStatisticsCollector.formatTimestamp(snapshot.watermark) + "/" + END_OF_TIME;
+        final long settled = now - settleMillis;
+        final List<Map<String, Object>> open = new ArrayList<>();
+        long watermark = snapshot.watermark == null ? Long.MIN_VALUE : snapshot.watermark;
+        try (InputStream in = post(buildQuery(dataSource, snapshot.analysisTypes, interval));
+                JsonParser parser = mapper.getFactory().createParser(in)) {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                throw new IOException("Unexpected segmentMetadata response for " + dataSource + ": " + parser.getCurrentToken());
+            }
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                final Map<String, Object> segment = mapper.readValue(parser, Map.class);
+                final Set<String> schema = schemaOf(segment);
+                if (snapshot.merged != null && snapshot.watermark != null && !snapshot.observed.containsAll(schema)) {
+                    LOGGER.info("Segment {} changes the schema of {}, analyzing all segments again", new Object[] {segment.get("id"), dataSource});
+                    return null;
+                }
+                snapshot.observed.addAll(schema);
+                final long[] bounds = getInterval(segment);
+                if (bounds[1] > settled) {
+                    open.add(segment);
+                } else if (!snapshot.folded.containsKey(String.valueOf(segment.get("id")))) {
+                    snapshot.merged = fold(snapshot.merged, segment);
+                    snapshot.folded.put(String.valueOf(segment.get("id")), bounds[1]);
+                    watermark = Math.max(watermark, bounds[1]);
+                }
+            }
+        }
+
+        // open segments end after every folded one, so the next run sees them again; folded segments that end before the
+        // watermark are never seen again and no longer need their id kept
+        if (watermark != Long.MIN_VALUE) {
+            snapshot.watermark = watermark;
+            for (Iterator<Long> ends = snapshot.folded.values().iterator(); ends.hasNext();) {
+                if (ends.next() <= watermark) {
+                    ends.remove();
+                }
+            }
+        }
+        save(dataSource, snapshot);
+
+        Map<String, Object> details = snapshot.merged == null ? null : fold(null, snapshot.merged);
+        for (Map<String, Object> segment : open) {
+            details = fold(details, segment);
+        }
+        return details == null ? new LinkedHashMap<String, Object>() : details;
+    }
+
+    static String buildQuery(final String dataSource, final List<String> analysisTypes, final String interval) throws IOException {
+        final Map<String, Object> query = new LinkedHashMap<>();
+        query.put("queryType", "segmentMetadata");
+        query.put("dataSource", dataSource);
+        query.put("intervals", Collections.singletonList(interval));
+        query.put("analysisTypes", analysisTypes);
+        query.put("merge", false);
+        return new ObjectMapper().writeValueAsString(query);
+    }
+
+    /**
+     * @return the columns with their types, the aggregators with their definitions and the granularity of the segment,
+     *         each as a string; a segment whose elements were all observed before does not change the schema
+     */
+    @SuppressWarnings("unchecked")
+    static Set<String> schemaOf(final Map<String, Object> segment) {
+        final Set<String> schema = new TreeSet<>();
+        final Map<String, Object> columns = (Map<String, Object>) segment.get("columns");
+        if (columns != null) {
+            for (Map.Entry<String, Object> column : columns.entrySet()) {
+                schema.add("column:" + column.getKey() + ":" + ((Map<String, Object>) column.getValue()).get("type"));
+            }
+        }
+        final Map<String, Object> aggregators = (Map<String, Object>) segment.get("aggregators");
+        if (aggregators != null) {
+            for (Map.Entry<String, Object> aggregator : aggregators.entrySet()) {
+                schema.add("aggregator:" + aggregator.getKey() + ":" + aggregator.getValue());
+            }
+        }
+        if (segment.get("queryGranularity") != null) {
+            schema.add("queryGranularity:" + segment.get("queryGranularity"));
+        }
+        return schema;
+    }
+
+    /**
+     * Merges the segmentMetadata of a segment into merged metadata the way the broker does.
+     *
+     * @param merged the merged metadata, or null for none; it is not modified
+     */
+    @SuppressWarnings("unchecked")
+    static Map<String, Object> fold(final Map<String, Object> merged, final Map<String, Object> segment) {
+        final Map<String, Object> result = new LinkedHashMap<>();
+        if (merged == null) {
+            result.put("id", "merged");
+            result.put("intervals", segment.get("intervals"));
+            result.put("columns", copyColumns((Map<String, Object>) segment.get("columns")));
+            result.put("size", segment.get("size"));
+            result.put("numRows", segment.get("numRows"));
+            result.put("aggregators", segment.get("aggregators") == null ? null : new LinkedHashMap<>((Map<String, Object>) segment.get("aggregators")));
+            result.put("timestampSpec", segment.get("timestampSpec"));
+            result.put("queryGranularity", segment.get("queryGranularity"));
+            result.put("rollup", segment.get("rollup"));
+            return result;
+        }
+
+        result.put("id", "merged");
+        result.put("intervals", mergeIntervals(merged.get("intervals"), segment.get("intervals")));
+        final Map<String, Object> columns = copyColumns((Map<String, Object>) merged.get("columns"));
+        final Map<String, Object> segmentColumns = (Map<String, Object>) segment.get("columns");
+        if (segmentColumns != null) {
+            for (Map.Entry<String, Object> column : segmentColumns.entrySet()) {
+                final Map<String, Object> analysis = (Map<String, Object>) column.getValue();
+                final Map<String, Object> known = (Map<String, Object>) columns.get(column.getKey());
+                columns.put(column.getKey(), known == null ? new LinkedHashMap<>(analysis) : foldColumn(known, analysis));
+            }
+        }
+        result.put("columns", columns);
+        result.put("size", add(merged.get("size"), segment.get("size")));
+        result.put("numRows", add(merged.get("numRows"), segment.get("numRows")));
+
+        Map<String, Object> aggregators = (Map<String, Object>) merged.get("aggregators");
+        if (aggregators != null && segment.get("aggregators") != null) {
+            aggregators = new LinkedHashMap<>(aggregators);
+            for (Map.Entry<String, Object> aggregator : ((Map<String, Object>) segment.get("aggregators")).entrySet()) {
+                if (!aggregators.containsKey(aggregator.getKey())) {
+                    aggregators.put(aggregator.getKey(), aggregator.getValue());
+                }
+            }
+        }
+        result.put("aggregators", aggregators);
+        result.put("timestampSpec", equal(merged.get("timestampSpec"), segment.get("timestampSpec")) ? merged.get("timestampSpec") : null);
+        result.put("queryGranularity", equal(merged.get("queryGranularity"), segment.get("queryGranularity")) ? merged.get("queryGranularity") : null);
+        result.put("rollup", equal(merged.get("rollup"), segment.get("rollup")) ? merged.get("rollup") : null);
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> copyColumns(final Map<String, Object> columns) {
+        final Map<String, Object> copy = new LinkedHashMap<>();
+        if (columns != null) {
+            for (Map.Entry<String, Object> column : columns.entrySet()) {
+                copy.put(column.getKey(), new LinkedHashMap<>((Map<String, Object>) column.getValue()));
+            }
+        }
+        return copy;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Map<String, Object> foldColumn(final Map<String, Object> known, final Map<String, Object> analysis) {
+        final Map<String, Object> column = new LinkedHashMap<>(known);
+        if (known.get("errorMessage") != null) {
+            return column;
+        }
+        if (analysis.get("errorMessage") != null) {
+            column.put("errorMessage", analysis.get("errorMessage"));
+            return column;
+        }
+        if (!equal(known.get("type"), analysis.get("type"))) {
+            column.put("errorMessage", "error:cannot_merge_diff_types");
+            return column;
+        }
+        column.put("hasMultipleValues", Boolean.TRUE.equals(known.get("hasMultipleValues")) || Boolean.TRUE.equals(analysis.get("hasMultipleValues")));
+        column.put("size", add(known.get("size"), analysis.get("size")));
+        if (analysis.get("cardinality") instanceof Number
+                && (!(known.get("cardinality") instanceof Number)
+                        || ((Number) analysis.get("cardinality")).longValue() > ((Number) known.get("cardinality")).longValue())) {
+            column.put("cardinality", analysis.get("cardinality"));
+        }
+        final Object minValue = analysis.get("minValue");
+        if (minValue instanceof Comparable && (known.get("minValue") == null
+                || (minValue.getClass() == known.get("minValue").getClass() && ((Comparable) minValue).compareTo(known.get("minValue")) < 0))) {
+            column.put("minValue", minValue);
+        }
+        final Object maxValue = analysis.get("maxValue");
+        if (maxValue instanceof Comparable && (known.get("maxValue") == null
+                || (maxValue.getClass() == known.get("maxValue").getClass() && ((Comparable) maxValue).compareTo(known.get("maxValue")) > 0))) {
+            column.put("maxValue", maxValue);
+        }
+        return column;
+    }
+
+    /**
+     * @return a single interval from the earliest start to the latest end of both, as the snapshot only needs the extent
+     */
+    @SuppressWarnings("unchecked")
+    private static Object mergeIntervals(final Object intervals, final Object segmentIntervals) {
+        if (!(intervals instanceof List) || !(segmentIntervals instanceof List)) {
+            return intervals == null ? segmentIntervals : intervals;
+        }
+        final List<Object> all = new ArrayList<>((List<Object>) intervals);
+        all.addAll((List<Object>) segmentIntervals);
+        long start = Long.MAX_VALUE;
+        long end = Long.MIN_VALUE;
+        for (Object interval : all) {
+            final long[] bounds = parseInterval(String.valueOf(interval));
+            if (bounds == null) {
+                return intervals;
+            }
+            start = Math.min(start, bounds[0]);
+            end = Math.max(end, bounds[1]);
+        }
+        return Collections.singletonList(TagStatisticsCollector.formatTimestamp(start) + "/" + TagStatisticsCollector.formatTimestamp(end));
+    }
+
+    /**
+     * @return the start and end of the segment, with an end in the far future if its interval cannot be read, so that
+     *         the segment is treated as open
+     */
+    @SuppressWarnings("unchecked")
+    static long[] getInterval(final Map<String, Object> segment) {
+        final Object intervals = segment.get("intervals");
+        if (intervals instanceof List && !((List<Object>) intervals).isEmpty()) {
+            final long[] bounds = parseInterval(String.valueOf(((List<Object>) intervals).get(0)));
+            if (bounds != null) {
+                return bounds;
+            }
+        }
+        return new long[] {Long.MIN_VALUE, Long.MAX_VALUE};
+    }
+
+    private static long[] parseInterval(final String interval) {
+        final int slash = interval.indexOf('/');
+        if (slash < 0) {
+            return null;
+        }
+        final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        try {
+            return new long[] {format.parse(interval.substring(0, slash)).getTime(), format.parse(interval.substring(slash + 1)).getTime()};
+        } catch (ParseException e) {
+            return null;
+        }
+    }
+
+    private static Object add(final Object a, final Object b) {
+        if (a instanceof Number && b instanceof Number) {
+            return ((Number) a).longValue() + ((Number) b).longValue();
+        }
+        return a == null ? b : a;
+    }
+
+    private static boolean equal(final Object a, final Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private void save(final String dataSource, final Snapshot snapshot) throws IOException {
+        final Map<String, Object> json = new LinkedHashMap<>();
+        json.put("fullAnalysis", snapshot.fullAnalysis);
+        json.put("watermark", snapshot.watermark);
+        json.put("analysisTypes", snapshot.analysisTypes);
+        json.put("folded", snapshot.folded);
+        json.put("observed", snapshot.observed);
+        json.put("merged", snapshot.merged);
+
+        final File snapshotFile = getSnapshotFile(dataSource);
+        final File tmp = new File(stateDirectory, snapshotFile.getName() + ".tmp");
+        mapper.writeValue(tmp, json);
+        Files.move(tmp.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Snapshot load(final String dataSource) throws IOException {
+        final File snapshotFile = getSnapshotFile(dataSource);
+        if (!snapshotFile.exists()) {
+            return null;
+        }
+        final Map<String, Object> json = mapper.readValue(snapshotFile, Map.class);
+        final Snapshot snapshot = new Snapshot();
+        snapshot.fullAnalysis = ((Number) json.get("fullAnalysis")).longValue();
+        snapshot.watermark = json.get("watermark") == null ? null : ((Number) json.get("watermark")).longValue();
+        snapshot.analysisTypes = (List<String>) json.get("analysisTypes");
+        snapshot.merged = (Map<String, Object>) json.get("merged");
+        if (json.get("observed") != null) {
+            snapshot.observed.addAll((List<String>) json.get("observed"));
+        } else if (snapshot.merged != null) {
+            snapshot.observed.addAll(schemaOf(snapshot.merged));
+        }
+        for (Map.Entry<String, Object> segment : ((Map<String, Object>) json.get("folded")).entrySet()) {
+            snapshot.folded.put(segment.getKey(), ((Number) segment.getValue()).longValue());
+        }
+        return snapshot;
+    }
+
+    private File getSnapshotFile(final String dataSource) {
+        return new File(stateDirectory, SNAPSHOT_FILE_PREFIX + dataSource + ".json");
+    }
+
+    private InputStream post(final String payload) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(druidQueryUrl).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Authorization", authorization);
+        connection.setRequestProperty("Content-Type", "application/json");
+        try (OutputStream os = connection.getOutputStream()) {
+            os.write(payload.getBytes(StandardCharsets.UTF_8));
+        }
+        if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+            throw new IOException("Failed : HTTP error code : " + connection.getResponseCode() + " : " + connection.getResponseMessage());
+        }
+        return connection.getInputStream();
+    }
+}
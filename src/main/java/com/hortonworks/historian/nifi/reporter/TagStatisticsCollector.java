@@ -0,0 +1,454 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hortonworks.historian.nifi.reporter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.htrace.fasterxml.jackson.core.JsonParser;
+import org.apache.htrace.fasterxml.jackson.core.JsonToken;
+import org.apache.htrace.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Maintains count, sum, min, max and first/last seen for every tag of a Druid datasource, and the last value when the
+ * datasource ingests a last-value metric.
+ *
+ * Each run only queries the rows ingested since the previous watermark and folds them into the statistics kept in a
+ * file per datasource in the local state directory. The file is read once and only written again when the statistics
+ * changed; a run that found no rows only advances the watermark in memory, as querying that interval again after a
+ * restart finds no rows either. Rows that ended less than the settle time ago are left to a later run. A run covers at
+ * most {@link #MAX_QUERY_MILLIS}, so the history of a new datasource is read from its first row onwards over several
+ * runs rather than in a single query. Tags whose statistics changed stay pending until they are marked as published,
+ * so a failed publication is retried on the next run without querying Druid again.
+ */
+public class TagStatisticsCollector {
+
+    static final Logger LOGGER = LoggerFactory.getLogger(TagStatisticsCollector.class);
+
+    static final String STATISTICS_FILE_PREFIX = "tag-statistics-";
+    static final long MAX_QUERY_MILLIS = 7L * 24 * 60 * 60 * 1000;
+
+    private final File stateDirectory;
+    private final String druidQueryUrl;
+    private final String authorization;
+    private final long settleMillis;
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final Map<String, DataSourceStatistics> loaded = new ConcurrentHashMap<>();
+
+    /**
+     * The statistics of a single tag.
+     */
+    public static class TagStatistics {
+        private long count;
+        private double sum;
+        private double min = Double.POSITIVE_INFINITY;
+        private double max = Double.NEGATIVE_INFINITY;
+        private long firstSeen = Long.MAX_VALUE;
+        private long lastSeen = Long.MIN_VALUE;
+        private Double lastValue;
+        private boolean pending;
+
+        void merge(final TagStatistics delta) {
+            count += delta.count;
+            sum += delta.sum;
+            min = Math.min(min, delta.min);
+            max = Math.max(max, delta.max);
+            firstSeen = Math.min(firstSeen, delta.firstSeen);
+            if (delta.lastSeen >= lastSeen) {
+                lastSeen = delta.lastSeen;
+                lastValue = delta.lastValue;
+            }
+            pending = true;
+        }
+
+        /**
+         * @return the statistics as the parameters of a historian_tag_attribute
+         */
+        public Map<String, String> toParameters() {
+            final Map<String, String> parameters = new LinkedHashMap<>();
+            parameters.put("count", String.valueOf(count));
+            parameters.put("sum", String.valueOf(sum));
+            if (count > 0) {
+                parameters.put("mean", String.valueOf(sum / count));
+            }
+            if (min != Double.POSITIVE_INFINITY) {
+                parameters.put("min", String.valueOf(min));
+            }
+            if (max != Double.NEGATIVE_INFINITY) {
+                parameters.put("max", String.valueOf(max));
+            }
+            if (firstSeen != Long.MAX_VALUE) {
+                parameters.put("first_seen", formatTimestamp(firstSeen));
+            }
+            if (lastSeen != Long.MIN_VALUE) {
+                parameters.put("last_seen", formatTimestamp(lastSeen));
+            }
+            if (lastValue != null) {
+                parameters.put("last_value", String.valueOf(lastValue));
+            }
+            return parameters;
+        }
+
+        Map<String, Object> toMap() {
+            final Map<String, Object> map = new LinkedHashMap<>();
+            map.put("count", count);
+            map.put("sum", sum);
+            map.put("min", min == Double.POSITIVE_INFINITY ? null : min);
+            map.put("max", max == Double.NEGATIVE_INFINITY ? null : max);
+            map.put("firstSeen", firstSeen);
+            map.put("lastSeen", lastSeen);
+            map.put("lastValue", lastValue);
+            map.put("pending", pending);
+            return map;
+        }
+
+        static TagStatistics fromMap(final Map<String, Object> map) {
+            final TagStatistics statistics = new TagStatistics();
+            statistics.count = ((Number) map.get("count")).longValue();
+            statistics.sum = ((Number) map.get("sum")).doubleValue();
+            if (map.get("min") != null) {
+                statistics.min = ((Number) map.get("min")).doubleValue();
+            }
+            if (map.get("max") != null) {
+                statistics.max = ((Number) map.get("max")).doubleValue();
+            }
+            statistics.firstSeen = ((Number) map.get("firstSeen")).longValue();
+            statistics.lastSeen = ((Number) map.get("lastSeen")).longValue();
+            statistics.lastValue = map.get("lastValue") == null ? null : ((Number) map.get("lastValue")).doubleValue();
+            statistics.pending = Boolean.TRUE.equals(map.get("pending"));
+            return statistics;
+        }
+    }
+
+    /**
+     * The statistics of all tags of a datasource, up to the watermark.
+     */
+    public static class DataSourceStatistics {
+        private final String dataSource;
+        private long watermark;
+        private final Map<String, TagStatistics> tags = new HashMap<>();
+        private boolean modified;
+
+        DataSourceStatistics(String dataSource) {
+            this.dataSource = dataSource;
+        }
+
+        public String getDataSource() {
+            return dataSource;
+        }
+
+        public long getWatermark() {
+            return watermark;
+        }
+
+        /**
+         * @return the tags whose statistics changed since they were last published
+         */
+        public Map<String, TagStatistics> getPendingTags() {
+            final Map<String, TagStatistics> pendingTags = new HashMap<>();
+            for (Map.Entry<String, TagStatistics> tag : tags.entrySet()) {
+                if (tag.getValue().pending) {
+                    pendingTags.put(tag.getKey(), tag.getValue());
+                }
+            }
+            return pendingTags;
+        }
+
+        public void markPublished(final String tag) {
+            final TagStatistics statistics = tags.get(tag);
+            if (statistics != null && statistics.pending) {
+                statistics.pending = false;
+                modified = true;
+            }
+        }
+    }
+
+    /**
+     * @param settleMillis how long after their time rows may still be handed off by the realtime tasks
+     */
+    public TagStatisticsCollector(final File stateDirectory, final String druidBrokerUrl, final String authorization, final long settleMillis) {
+        this.stateDirectory = stateDirectory;
+        this.druidQueryUrl = druidBrokerUrl + "/druid/v2";
+        this.authorization = authorization;
+        this.settleMillis = settleMillis;
+    }
+
+    /**
+     * Folds the rows ingested since the watermark into the statistics of the datasource and advances the watermark.
+     *
+     * @param aggregators the aggregators of the datasource as reported by a segmentMetadata query
+     */
+    @SuppressWarnings("unchecked")
+    public DataSourceStatistics collect(final String dataSource, final String tagDimension, final Map<String, Object> aggregators)
+            throws IOException {
+        DataSourceStatistics statistics = loaded.get(dataSource);
+        if (statistics == null) {
+            statistics = load(dataSource);
+            loaded.put(dataSource, statistics);
+        }
+        if (statistics.watermark == 0) {
+            final Long minTime = getMinTime(dataSource);
+            if (minTime == null) {
+                return statistics;
+            }
+            statistics.watermark = minTime / 60000L * 60000L;
+        }
+        final long from = statistics.watermark;
+        final long to = Math.min((System.currentTimeMillis() - settleMillis) / 60000L * 60000L, from + MAX_QUERY_MILLIS);
+        if (to <= from) {
+            return statistics;
+        }
+
+        final String payload = buildQuery(dataSource, tagDimension, aggregators, from, to);
+        LOGGER.debug("Querying tag statistics of {}: {}", new Object[] {dataSource, payload});
+        int rows = 0;
+        try (InputStream in = post(payload);
+                JsonParser parser = mapper.getFactory().createParser(in)) {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                throw new IOException("Unexpected groupBy response for " + dataSource + ": " + parser.getCurrentToken());
+            }
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                final Map<String, Object> event = (Map<String, Object>) mapper.readValue(parser, Map.class).get("event");
+                final Object tag = event == null ? null : event.get(tagDimension);
+                if (tag == null) {
+                    continue;
+                }
+                fold(statistics, tag.toString(), event);
+                rows++;
+            }
+        } catch (IOException e) {
+            // the rows folded so far are not covered by the watermark, so start again from the stored statistics
+            loaded.remove(dataSource);
+            throw e;
+        }
+        LOGGER.info("Updated statistics of {} tags of {} up to {}", new Object[] {rows, dataSource, formatTimestamp(to)});
+
+        statistics.watermark = to;
+        if (rows > 0) {
+            statistics.modified = true;
+            save(statistics);
+        }
+        return statistics;
+    }
+
+    private static void fold(final DataSourceStatistics statistics, final String tag, final Map<String, Object> event) {
+        final TagStatistics delta = new TagStatistics();
+        delta.count = getLong(event, "count", 0L);
+        delta.sum = getDouble(event, "sum", 0.0);
+        delta.min = getDouble(event, "min", Double.POSITIVE_INFINITY);
+        delta.max = getDouble(event, "max", Double.NEGATIVE_INFINITY);
+        delta.firstSeen = getLong(event, "first_seen", Long.MAX_VALUE);
+        delta.lastSeen = getLong(event, "last_seen", Long.MIN_VALUE);
+        delta.lastValue = event.get("last_value") == null ? null : ((Number) event.get("last_value")).doubleValue();
+
+        TagStatistics current = statistics.tags.get(tag);
+        if (current == null) {
+            current = new TagStatistics();
+            statistics.tags.put(tag, current);
+        }
+        current.merge(delta);
+    }
+
+    /**
+     * @return the time of the first row of the datasource, or null if it has no rows
+     */
+    @SuppressWarnings("unchecked")
+    private Long getMinTime(final String dataSource) throws IOException {
+        final Map<String, Object> query = new LinkedHashMap<>();
+        query.put("queryType", "timeBoundary");
+        query.put("dataSource", dataSource);
+        query.put("bound", "minTime");
+        final List<Map<String, Object>> rows;
+        try (InputStream in = post(mapper.writeValueAsString(query))) {
+            rows = mapper.readValue(in, List.class);
+        }
+        if (rows.isEmpty()) {
+            return null;
+        }
+        final Object minTime = ((Map<String, Object>) rows.get(0).get("result")).get("minTime");
+        return minTime == null ? null : OffsetDateTime.parse(minTime.toString()).toInstant().toEpochMilli();
+    }
+
+    /**
+     * Stores the statistics, including which tags are still pending publication, if they changed since they were last stored.
+     */
+    public void save(final DataSourceStatistics statistics) throws IOException {
+        if (!statistics.modified) {
+            return;
+        }
+        final Map<String, Object> tags = new HashMap<>();
+        for (Map.Entry<String, TagStatistics> tag : statistics.tags.entrySet()) {
+            tags.put(tag.getKey(), tag.getValue().toMap());
+        }
+        final Map<String, Object> json = new LinkedHashMap<>();
+        json.put("watermark", statistics.watermark);
+        json.put("tags", tags);
+
+        final File statisticsFile = getStatisticsFile(statistics.dataSource);
+        final File tmp = new File(stateDirectory, statisticsFile.getName() + ".tmp");
+        mapper.writeValue(tmp, json);
+        Files.move(tmp.toPath(), statisticsFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        statistics.modified = false;
+    }
+
+    @SuppressWarnings("unchecked")
+    private DataSourceStatistics load(final String dataSource) throws IOException {
+        final DataSourceStatistics statistics = new DataSourceStatistics(dataSource);
+        final File statisticsFile = getStatisticsFile(dataSource);
+        if (!statisticsFile.exists()) {
+            return statistics;
+        }
+        final Map<String, Object> json = mapper.readValue(statisticsFile, Map.class);
+        statistics.watermark = ((Number) json.get("watermark")).longValue();
+        final Map<String, Map<String, Object>> tags = (Map<String, Map<String, Object>>) json.get("tags");
+        for (Map.Entry<String, Map<String, Object>> tag : tags.entrySet()) {
+            statistics.tags.put(tag.getKey(), TagStatistics.fromMap(tag.getValue()));
+        }
+        return statistics;
+    }
+
+    private File getStatisticsFile(final String dataSource) {
+        return new File(stateDirectory, STATISTICS_FILE_PREFIX + dataSource + ".json");
+    }
+
+    /**
+     * Builds a groupBy query over the tag dimension that rolls the stored metrics of each tag up over the interval.
+     */
+    @SuppressWarnings("unchecked")
+    static String buildQuery(final String dataSource, final String tagDimension, final Map<String, Object> aggregators,
+            final long from, final long to) throws IOException {
+        String countMetric = null;
+        String sumMetric = null;
+        String minMetric = null;
+        String maxMetric = null;
+        String lastMetric = null;
+        String lastType = null;
+        // segmentMetadata reports combining aggregators, so the ingest count shows up as a longSum named count
+        for (Map.Entry<String, Object> aggregator : new TreeMap<>(aggregators).entrySet()) {
+            final Map<String, Object> definition = (Map<String, Object>) aggregator.getValue();
+            final String type = String.valueOf(definition.get("type"));
+            if (type.equals("count") || "count".equalsIgnoreCase(String.valueOf(definition.get("fieldName")))
+                    || "count".equalsIgnoreCase(aggregator.getKey())) {
+                countMetric = aggregator.getKey();
+            } else if (type.contains("Sum") && sumMetric == null) {
+                sumMetric = aggregator.getKey();
+            } else if (type.contains("Min") && minMetric == null) {
+                minMetric = aggregator.getKey();
+            } else if (type.contains("Max") && maxMetric == null) {
+                maxMetric = aggregator.getKey();
+            } else if (type.contains("Last") && lastMetric == null) {
+                lastMetric = aggregator.getKey();
+                lastType = type;
+            }
+        }
+
+        final List<Map<String, Object>> aggregations = new ArrayList<>();
+        if (countMetric != null) {
+            aggregations.add(aggregation("longSum", "count", countMetric));
+        } else {
+            final Map<String, Object> count = new LinkedHashMap<>();
+            count.put("type", "count");
+            count.put("name", "count");
+            aggregations.add(count);
+        }
+        if (sumMetric != null) {
+            aggregations.add(aggregation("doubleSum", "sum", sumMetric));
+        }
+        if (minMetric != null) {
+            aggregations.add(aggregation("doubleMin", "min", minMetric));
+        }
+        if (maxMetric != null) {
+            aggregations.add(aggregation("doubleMax", "max", maxMetric));
+        }
+        if (lastMetric != null) {
+            // the max of a rolled-up row is not its last reading, so the last value needs a metric ingested as such
+            aggregations.add(aggregation(lastType, "last_value", lastMetric));
+        }
+        aggregations.add(aggregation("longMin", "first_seen", "__time"));
+        aggregations.add(aggregation("longMax", "last_seen", "__time"));
+
+        final Map<String, Object> query = new LinkedHashMap<>();
+        query.put("queryType", "groupBy");
+        query.put("dataSource", dataSource);
+        query.put("granularity", "all");
+        query.put("dimensions", Collections.singletonList(tagDimension));
+        query.put("aggregations", aggregations);
+        query.put("intervals", Collections.singletonList(formatTimestamp(from) + "/" + formatTimestamp(to)));
+        return new ObjectMapper().writeValueAsString(query);
+    }
+
+    private static Map<String, Object> aggregation(final String type, final String name, final String fieldName) {
+        final Map<String, Object> aggregation = new LinkedHashMap<>();
+        aggregation.put("type", type);
+        aggregation.put("name", name);
+        aggregation.put("fieldName", fieldName);
+        return aggregation;
+    }
+
+    static String formatTimestamp(final long millis) {
+        final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(millis));
+    }
+
+    private static long getLong(final Map<String, Object> event, final String name, final long defaultValue) {
+        final Object value = event.get(name);
+        return value instanceof Number ? ((Number) value).longValue() : defaultValue;
+    }
+
+    private static double getDouble(final Map<String, Object> event, final String name, final double defaultValue) {
+        final Object value = event.get(name);
+        return value instanceof Number ? ((Number) value).doubleValue() : defaultValue;
+    }
+
+    private InputStream post(final String payload) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(druidQueryUrl).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Authorization", authorization);
+        connection.setRequestProperty("Content-Type", "application/json");
+        try (OutputStream os = connection.getOutputStream()) {
+            os.write(payload.getBytes(StandardCharsets.UTF_8));
+        }
+        if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+            throw new IOException("Failed : HTTP error code : " + connection.getResponseCode() + " : " + connection.getResponseMessage());
+        }
+        return connection.getInputStream();
+    }
+}
@@ -0,0 +1,398 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hortonworks.nifi.controller;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The transitive closure of the asset hierarchy: for every asset, all of its descendants with their depth below it.
+ *
+ * Assets and tags are numbered on first sight and everything else is kept in sorted int arrays: the parents and
+ * children of each asset (children unsorted, appended to growable rows), the closure rows (descendants with depths), and the tags of each asset. Expanding an asset
+ * to the tags of its subtree reads a single closure row.
+ *
+ * Changing parent links only updates the links and marks the closure stale; the closure is rebuilt in one pass, with
+ * a single sort per row, the next time it is read. Loading a whole hierarchy asset by asset therefore costs one
+ * rebuild rather than copying the rows of the ancestors for every link.
+ *
+ * Not thread safe; callers synchronize, and must hold exclusive access to read a stale closure (see {@link #isStale()}).
+ */
+public class AssetHierarchyClosure {
+
+    private static final int[] EMPTY = new int[0];
+
+    private final Map<String, Integer> assetIds = new HashMap<>();
+    private final List<String> assetNames = new ArrayList<>();
+    private final Map<String, Integer> tagIds = new HashMap<>();
+    private final List<String> tagNames = new ArrayList<>();
+
+    private int[][] parents = new int[16][];
+    private int[][] children = new int[16][];
+    private int[] childCounts = new int[16];
+    private int[][] descendants = new int[16][];
+    private int[][] descendantDepths = new int[16][];
+    private int[][] assetTags = new int[16][];
+    private long modificationCount;
+    private boolean stale;
+
+    public int size() {
+        return assetNames.size();
+    }
+
+    /**
+     * @return a number that changes whenever an asset, a parent link or a tag is added or removed
+     */
+    public long getModificationCount() {
+        return modificationCount;
+    }
+
+    /**
+     * @return whether parent links changed since the closure was last built, so that the next read rebuilds it
+     */
+    public boolean isStale() {
+        return stale;
+    }
+
+    /**
+     * Replaces the parents of an asset, adding the asset if it is new.
+     *
+     * @throws IllegalArgumentException if a parent is the asset itself or one of its descendants
+     */
+    public void setParents(final String asset, final Collection<String> parentAssets) {
+        final int id = getAssetId(asset);
+        final int[] newParents = new int[parentAssets.size()];
+        int count = 0;
+        for (String parentAsset : parentAssets) {
+            final int parent = getAssetId(parentAsset);
+            if (isAncestorOrSelf(id, parent)) {
+                throw new IllegalArgumentException("Asset " + parentAsset + " cannot be a parent of its ancestor " + asset);
+            }
+            newParents[count++] = parent;
+        }
+        final int[] sortedParents = distinctSorted(newParents, count);
+
+        for (int parent : parents[id]) {
+            if (indexOf(sortedParents, parent) < 0) {
+                removeChild(parent, id);
+                stale = true;
+                modificationCount++;
+            }
+        }
+        for (int parent : sortedParents) {
+            if (indexOf(parents[id], parent) < 0) {
+                addChild(parent, id);
+                stale = true;
+                modificationCount++;
+            }
+        }
+        parents[id] = sortedParents;
+    }
+
+    /**
+     * @return whether the asset is the candidate or one of its ancestors, found by walking up the parent links
+     */
+    private boolean isAncestorOrSelf(final int asset, final int candidate) {
+        final Set<Integer> visited = new HashSet<>();
+        final Deque<Integer> pending = new ArrayDeque<>();
+        pending.push(candidate);
+        while (!pending.isEmpty()) {
+            final int current = pending.pop();
+            if (current == asset) {
+                return true;
+            }
+            if (visited.add(current)) {
+                for (int parent : parents[current]) {
+                    pending.push(parent);
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Replaces the tags attached directly to an asset, adding the asset if it is new.
+     */
+    public void setTags(final String asset, final Collection<String> tags) {
+        final int id = getAssetId(asset);
+        final int[] ids = new int[tags.size()];
+        int count = 0;
+        for (String tag : tags) {
+            Integer tagId = tagIds.get(tag);
+            if (tagId == null) {
+                tagId = tagNames.size();
+                tagIds.put(tag, tagId);
+                tagNames.add(tag);
+            }
+            ids[count++] = tagId;
+        }
+        final int[] sortedIds = distinctSorted(ids, count);
+        if (!Arrays.equals(assetTags[id], sortedIds)) {
+            assetTags[id] = sortedIds;
+            modificationCount++;
+        }
+    }
+
+    /**
+     * Detaches an asset from its parents and children and drops its tags, so that it no longer contributes to any
+     * expansion. Its former children become roots until they are given new parents.
+     */
+    public void removeAsset(final String asset) {
+        final Integer id = assetIds.get(asset);
+        if (id == null) {
+            return;
+        }
+        for (int child : Arrays.copyOf(children[id], childCounts[id])) {
+            final List<String> remainingParents = new ArrayList<>();
+            for (int parent : parents[child]) {
+                if (parent != id) {
+                    remainingParents.add(assetNames.get(parent));
+                }
+            }
+            setParents(assetNames.get(child), remainingParents);
+        }
+        setParents(asset, new ArrayList<String>());
+        setTags(asset, new ArrayList<String>());
+        // the number stays taken; an asset added again under the same name gets a new one
+        assetIds.remove(asset);
+        modificationCount++;
+    }
+
+    /**
+     * Builds an immutable map of every tag to the path of the asset it is attached to. A tag attached to several
+     * assets maps to the one added first, and an asset with several parents is reached through its first parent.
+     *
+     * @param namePrefix a prefix to strip from the names of the root assets, such as the type of the qualified names
+     */
+    public AssetPathSnapshot snapshotPaths(final String namePrefix) {
+        final String[][] paths = new String[assetNames.size()][];
+        for (int id = 0; id < paths.length; id++) {
+            getPath(id, paths, namePrefix);
+        }
+        final AssetPathSnapshot.Builder builder = new AssetPathSnapshot.Builder(modificationCount, tagNames.size());
+        for (int id = 0; id < paths.length; id++) {
+            for (int tag : assetTags[id]) {
+                builder.put(tagNames.get(tag), paths[id]);
+            }
+        }
+        return builder.build();
+    }
+
+    private String[] getPath(final int id, final String[][] paths, final String namePrefix) {
+        if (paths[id] != null) {
+            return paths[id];
+        }
+        final String name = assetNames.get(id);
+        if (parents[id].length == 0) {
+            paths[id] = new String[] {name.startsWith(namePrefix) ? name.substring(namePrefix.length()) : name};
+        } else {
+            final int parent = parents[id][0];
+            final String parentName = assetNames.get(parent);
+            final String[] parentPath = getPath(parent, paths, namePrefix);
+            paths[id] = Arrays.copyOf(parentPath, parentPath.length + 1);
+            paths[id][parentPath.length] = name.startsWith(parentName + ".") ? name.substring(parentName.length() + 1) : name;
+        }
+        return paths[id];
+    }
+
+    /**
+     * @param maxDepth the number of levels below the asset to include, or a negative number for the whole subtree
+     * @return the tags of the asset and of its descendants, or an empty set if the asset is unknown
+     */
+    public Set<String> expandTags(final String asset, final int maxDepth) {
+        final Integer id = assetIds.get(asset);
+        if (id == null) {
+            return new LinkedHashSet<>();
+        }
+        rebuildIfStale();
+        final BitSet tags = new BitSet(tagNames.size());
+        final int[] row = descendants[id];
+        final int[] depths = descendantDepths[id];
+        for (int i = 0; i < row.length; i++) {
+            if (maxDepth < 0 || depths[i] <= maxDepth) {
+                for (int tag : assetTags[row[i]]) {
+                    tags.set(tag);
+                }
+            }
+        }
+        final Set<String> expanded = new LinkedHashSet<>();
+        for (int tag = tags.nextSetBit(0); tag >= 0; tag = tags.nextSetBit(tag + 1)) {
+            expanded.add(tagNames.get(tag));
+        }
+        return expanded;
+    }
+
+    /**
+     * @return the descendants of the asset, including the asset itself at depth 0, or an empty map if it is unknown
+     */
+    public Map<String, Integer> getDescendants(final String asset) {
+        final Map<String, Integer> result = new HashMap<>();
+        final Integer id = assetIds.get(asset);
+        if (id != null) {
+            rebuildIfStale();
+            for (int i = 0; i < descendants[id].length; i++) {
+                result.put(assetNames.get(descendants[id][i]), descendantDepths[id][i]);
+            }
+        }
+        return result;
+    }
+
+    private int getAssetId(final String asset) {
+        Integer id = assetIds.get(asset);
+        if (id == null) {
+            id = assetNames.size();
+            assetIds.put(asset, id);
+            assetNames.add(asset);
+            if (id == parents.length) {
+                final int capacity = id * 2;
+                parents = Arrays.copyOf(parents, capacity);
+                children = Arrays.copyOf(children, capacity);
+                childCounts = Arrays.copyOf(childCounts, capacity);
+                descendants = Arrays.copyOf(descendants, capacity);
+                descendantDepths = Arrays.copyOf(descendantDepths, capacity);
+                assetTags = Arrays.copyOf(assetTags, capacity);
+            }
+            parents[id] = EMPTY;
+            children[id] = EMPTY;
+            descendants[id] = new int[] {id};
+            descendantDepths[id] = new int[] {0};
+            assetTags[id] = EMPTY;
+            modificationCount++;
+        }
+        return id;
+    }
+
+    /**
+     * Rebuilds every closure row from the child links, children before their parents. The row of an asset is the
+     * asset itself at depth 0 and the rows of its children one level deeper, sorted once; where an asset is reachable
+     * along several paths the shortest depth is kept.
+     */
+    private void rebuildIfStale() {
+        if (!stale) {
+            return;
+        }
+        final int size = assetNames.size();
+        final boolean[] built = new boolean[size];
+        final Deque<Integer> pending = new ArrayDeque<>();
+        for (int root = 0; root < size; root++) {
+            if (built[root]) {
+                continue;
+            }
+            pending.push(root);
+            while (!pending.isEmpty()) {
+                final int id = pending.peek();
+                if (built[id]) {
+                    pending.pop();
+                    continue;
+                }
+                boolean childrenBuilt = true;
+                for (int i = 0; i < childCounts[id]; i++) {
+                    final int child = children[id][i];
+                    if (!built[child]) {
+                        pending.push(child);
+                        childrenBuilt = false;
+                    }
+                }
+                if (childrenBuilt) {
+                    buildRow(id);
+                    built[id] = true;
+                    pending.pop();
+                }
+            }
+        }
+        stale = false;
+    }
+
+    private void buildRow(final int id) {
+        int length = 1;
+        for (int i = 0; i < childCounts[id]; i++) {
+            length += descendants[children[id][i]].length;
+        }
+        // each pair is packed as descendant << 32 | depth, so sorting orders by descendant and then by depth
+        final long[] pairs = new long[length];
+        pairs[0] = (long) id << 32;
+        int count = 1;
+        for (int c = 0; c < childCounts[id]; c++) {
+            final int child = children[id][c];
+            final int[] row = descendants[child];
+            final int[] depths = descendantDepths[child];
+            for (int i = 0; i < row.length; i++) {
+                pairs[count++] = (long) row[i] << 32 | (depths[i] + 1);
+            }
+        }
+        Arrays.sort(pairs);
+        final int[] row = new int[length];
+        final int[] depths = new int[length];
+        int distinct = 0;
+        for (long pair : pairs) {
+            final int descendant = (int) (pair >>> 32);
+            if (distinct == 0 || row[distinct - 1] != descendant) {
+                row[distinct] = descendant;
+                depths[distinct] = (int) pair;
+                distinct++;
+            }
+        }
+        descendants[id] = distinct == length ? row : Arrays.copyOf(row, distinct);
+        descendantDepths[id] = distinct == length ? depths : Arrays.copyOf(depths, distinct);
+    }
+
+    private void addChild(final int parent, final int child) {
+        if (childCounts[parent] == children[parent].length) {
+            children[parent] = Arrays.copyOf(children[parent], Math.max(4, childCounts[parent] * 2));
+        }
+        children[parent][childCounts[parent]++] = child;
+    }
+
+    private void removeChild(final int parent, final int child) {
+        final int[] row = children[parent];
+        for (int i = 0; i < childCounts[parent]; i++) {
+            if (row[i] == child) {
+                row[i] = row[--childCounts[parent]];
+                return;
+            }
+        }
+    }
+
+    private static int indexOf(final int[] sorted, final int value) {
+        return Arrays.binarySearch(sorted, value);
+    }
+
+    private static int[] distinctSorted(final int[] values, final int count) {
+        if (count == 0) {
+            return EMPTY;
+        }
+        final int[] sorted = Arrays.copyOf(values, count);
+        Arrays.sort(sorted);
+        int distinct = 1;
+        for (int i = 1; i < sorted.length; i++) {
+            if (sorted[i] != sorted[distinct - 1]) {
+                sorted[distinct++] = sorted[i];
+            }
+        }
+        return distinct == sorted.length ? sorted : Arrays.copyOf(sorted, distinct);
+    }
+}
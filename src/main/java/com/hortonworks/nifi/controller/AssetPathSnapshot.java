@@ -0,0 +1,130 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hortonworks.nifi.controller;
+
+import java.util.Arrays;
+
+/**
+ * An immutable map of historian tags to the path of the asset they are attached to, from the root of the hierarchy
+ * down, taken from the asset hierarchy at one point in time.
+ *
+ * The tags are kept in an open-addressing hash table of parallel arrays, the tag names and the index of their path,
+ * so a lookup hashes the tag once and compares strings only on a hash match, without boxing or entry objects.
+ */
+public final class AssetPathSnapshot {
+
+    private final long version;
+    private final String[] keys;
+    private final int[] hashes;
+    private final int[] pathIndexes;
+    private final String[][] paths;
+    private final int mask;
+    private final int size;
+
+    private AssetPathSnapshot(final long version, final String[] keys, final int[] hashes, final int[] pathIndexes, final String[][] paths,
+            final int size) {
+        this.version = version;
+        this.size = size;
+        this.keys = keys;
+        this.hashes = hashes;
+        this.pathIndexes = pathIndexes;
+        this.paths = paths;
+        this.mask = keys.length - 1;
+    }
+
+    /**
+     * @return the version of the hierarchy the snapshot was taken from; snapshots of an unchanged hierarchy have the same version
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the names of the assets from the root down to the asset the tag is attached to, or null if the tag is not attached to any asset
+     */
+    public String[] getAssetPath(final String tag) {
+        final int hash = hash(tag);
+        for (int slot = hash & mask; keys[slot] != null; slot = (slot + 1) & mask) {
+            if (hashes[slot] == hash && keys[slot].equals(tag)) {
+                return paths[pathIndexes[slot]];
+            }
+        }
+        return null;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private static int hash(final String tag) {
+        final int hash = tag.hashCode();
+        return hash ^ (hash >>> 16);
+    }
+
+    static class Builder {
+        private final long version;
+        private final String[] keys;
+        private final int[] hashes;
+        private final int[] pathIndexes;
+        private String[][] paths = new String[16][];
+        private int pathCount;
+        private String[] lastPath;
+        private int size;
+
+        /**
+         * @param expectedTags an upper bound for the number of tags, which keeps the table at most half full
+         */
+        Builder(final long version, final int expectedTags) {
+            this.version = version;
+            final int capacity = Integer.highestOneBit(Math.max(2, expectedTags) * 2 - 1) << 1;
+            this.keys = new String[capacity];
+            this.hashes = new int[capacity];
+            this.pathIndexes = new int[capacity];
+        }
+
+        /**
+         * Maps the tag to the path unless it is mapped already. Tags of the same asset are expected to be added together,
+         * so that they share one copy of the path.
+         */
+        void put(final String tag, final String[] path) {
+            if (path != lastPath) {
+                if (pathCount == paths.length) {
+                    paths = Arrays.copyOf(paths, pathCount * 2);
+                }
+                paths[pathCount++] = path;
+                lastPath = path;
+            }
+            final int hash = hash(tag);
+            final int mask = keys.length - 1;
+            int slot = hash & mask;
+            while (keys[slot] != null) {
+                if (hashes[slot] == hash && keys[slot].equals(tag)) {
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = tag;
+            hashes[slot] = hash;
+            pathIndexes[slot] = pathCount - 1;
+            size++;
+        }
+
+        AssetPathSnapshot build() {
+            return new AssetPathSnapshot(version, keys, hashes, pathIndexes, Arrays.copyOf(paths, pathCount), size);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hortonworks.nifi.controller;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.controller.ControllerService;
+
+/**
+ * Resolves historian tags to the column, table and Druid datasource they are stored in, without a round trip to
+ * Atlas. The index is filled by the HistorianDeanReporter as it publishes tags and columns to Atlas.
+ */
+@Tags({"historian", "metadata", "index", "atlas"})
+@CapabilityDescription("Keeps an in-memory index of historian tags to the Hive column, Hive table and Druid datasource they are stored in, "
+        + "along with the granularity and function of the column.")
+public interface HistorianMetadataIndexService extends ControllerService {
+
+    /**
+     * Adds or replaces a column of a table exposing a Druid datasource.
+     */
+    void putColumn(String table, String column, String dataSource, String granularity, String columnFunction);
+
+    /**
+     * Adds tags found in a column. The column does not have to be known yet.
+     */
+    void putTags(String table, String column, Collection<String> tags);
+
+    /**
+     * @return whether any tags of the column are known, which is not the case for a new column or after the snapshot was lost
+     */
+    boolean hasTags(String table, String column);
+
+    /**
+     * Makes a tag searchable by an alias, such as a business term it is attached to.
+     */
+    void putTagAlias(String alias, String tag);
+
+    /**
+     * Removes an alias, so that none of the tags it was attached to are found by it any more.
+     */
+    void removeTagAlias(String alias);
+
+    /**
+     * @return the aliases tags are searchable by
+     */
+    Set<String> getTagAliases();
+
+    /**
+     * @return up to maxResults tags with a name or alias starting with the prefix, case-insensitively
+     */
+    Set<String> completeTags(String prefix, int maxResults);
+
+    /**
+     * @param pattern a tag name or alias in which '*' matches any sequence of characters and '?' any single character
+     * @return up to maxResults tags with a name or alias matching the pattern, case-insensitively
+     */
+    Set<String> searchTags(String pattern, int maxResults);
+
+    /**
+     * Adds or replaces an asset of the asset hierarchy with its parents and the tags attached to it directly.
+     */
+    void putAsset(String asset, Collection<String> parentAssets, Collection<String> tags);
+
+    /**
+     * Removes an asset from the asset hierarchy. Its children lose it as a parent.
+     */
+    void removeAsset(String asset);
+
+    /**
+     * @return the assets of the asset hierarchy
+     */
+    Set<String> getAssets();
+
+    /**
+     * @return whether the index holds no tags and no assets, such as after its snapshot was lost
+     */
+    boolean isEmpty();
+
+    /**
+     * @param maxDepth the number of levels below the asset to include, or a negative number for the whole subtree
+     * @return the tags attached to the asset or to any asset below it
+     */
+    Set<String> expandAssetTags(String asset, int maxDepth);
+
+    /**
+     * @return a snapshot of the path of the asset each tag is attached to; the same instance is returned until the asset hierarchy changes
+     */
+    AssetPathSnapshot getAssetPathSnapshot();
+
+    /**
+     * @return the metadata of every column the tag was found in, or an empty list if the tag is unknown
+     */
+    List<TagMetadata> lookupTag(String tag);
+
+    /**
+     * @return the metadata of the column at the given granularity the tag was found in, or null if there is none
+     */
+    TagMetadata lookupTag(String tag, String granularity);
+}
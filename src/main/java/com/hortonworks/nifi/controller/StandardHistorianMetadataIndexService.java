@@ -0,0 +1,490 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hortonworks.nifi.controller;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnDisabled;
+import org.apache.nifi.annotation.lifecycle.OnEnabled;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.controller.ConfigurationContext;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.codehaus.jackson.map.ObjectMapper;
+
+/**
+ * Keeps the index in two hash maps: tag to the columns it was found in, and column to its table, datasource,
+ * granularity and function. Tags are matched case-insensitively, like the cache keys of the orchestrator flow. The
+ * asset hierarchy is kept as an {@link AssetHierarchyClosure}, and tag names and aliases are searched with a
+ * {@link TagNameIndex}.
+ *
+ * The columns with their tags, the assets and the aliases are also kept as they were put, so that they can be written
+ * to a snapshot file in the state directory. The snapshot is written in the background whenever the index changed and
+ * when the service is disabled, and read back when it is enabled.
+ */
+@Tags({"historian", "metadata", "index", "atlas"})
+@CapabilityDescription("Keeps an in-memory index of historian tags to the Hive column, Hive table and Druid datasource they are stored in, "
+        + "along with the granularity and function of the column. The index is filled by the HistorianDeanReporter as it publishes to Atlas, "
+        + "and is stored in a snapshot file, so that it survives a restart of NiFi or of the service.")
+public class StandardHistorianMetadataIndexService extends AbstractControllerService implements HistorianMetadataIndexService {
+
+    public static final PropertyDescriptor PROP_STATE_DIRECTORY = new PropertyDescriptor.Builder()
+            .name("State Directory")
+            .description("The directory to store the snapshot of the index in.")
+            .required(true)
+            .expressionLanguageSupported(true)
+            .defaultValue("./state/historian-metadata-index")
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor PROP_SNAPSHOT_INTERVAL = new PropertyDescriptor.Builder()
+            .name("Snapshot Interval")
+            .description("How often the snapshot is written, if the index changed.")
+            .required(true)
+            .defaultValue("1 min")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    static final String SNAPSHOT_FILE_NAME = "historian-metadata-index.json";
+
+    private static class ColumnEntry {
+        private final String table;
+        private final String column;
+        private volatile String dataSource;
+        private volatile String granularity;
+        private volatile String columnFunction;
+        private final Set<String> tags = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+        ColumnEntry(String table, String column) {
+            this.table = table;
+            this.column = column;
+            this.dataSource = table;
+        }
+    }
+
+    private static class AssetEntry {
+        private final List<String> parents;
+        private final List<String> tags;
+
+        AssetEntry(List<String> parents, List<String> tags) {
+            this.parents = parents;
+            this.tags = tags;
+        }
+    }
+
+    static final String ASSET_QUALIFIED_NAME_PREFIX = "historian_asset.";
+
+    private final Map<String, ColumnEntry> columns = new ConcurrentHashMap<>();
+    private final Map<String, Set<ColumnEntry>> tagColumns = new ConcurrentHashMap<>();
+    private final ReadWriteLock assetLock = new ReentrantReadWriteLock();
+    private AssetHierarchyClosure assetClosure = new AssetHierarchyClosure();
+    private volatile AssetPathSnapshot assetPathSnapshot;
+    private final ReadWriteLock tagNameLock = new ReentrantReadWriteLock();
+    private TagNameIndex tagNameIndex = new TagNameIndex();
+    private final Map<String, AssetEntry> assets = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> aliases = new ConcurrentHashMap<>();
+
+    private final AtomicLong modificationCount = new AtomicLong();
+    private volatile long savedModificationCount;
+    private volatile File snapshotFile;
+    private ScheduledExecutorService snapshotExecutor;
+
+    @Override
+    protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        final List<PropertyDescriptor> descriptors = new ArrayList<>();
+        descriptors.add(PROP_STATE_DIRECTORY);
+        descriptors.add(PROP_SNAPSHOT_INTERVAL);
+        return descriptors;
+    }
+
+    @OnEnabled
+    public void loadSnapshot(final ConfigurationContext context) throws IOException {
+        final File directory = new File(context.getProperty(PROP_STATE_DIRECTORY).evaluateAttributeExpressions().getValue());
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Unable to create state directory " + directory.getAbsolutePath());
+        }
+        snapshotFile = new File(directory, SNAPSHOT_FILE_NAME);
+        if (snapshotFile.exists()) {
+            load(snapshotFile);
+            getLogger().info("Loaded the metadata index of {} tags from {}", new Object[]{tagColumns.size(), snapshotFile});
+        }
+        savedModificationCount = modificationCount.get();
+
+        final long intervalMillis = context.getProperty(PROP_SNAPSHOT_INTERVAL).asTimePeriod(TimeUnit.MILLISECONDS);
+        snapshotExecutor = Executors.newSingleThreadScheduledExecutor();
+        snapshotExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                saveIfModified();
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @OnDisabled
+    public void clear() {
+        if (snapshotExecutor != null) {
+            snapshotExecutor.shutdownNow();
+            snapshotExecutor = null;
+        }
+        saveIfModified();
+        snapshotFile = null;
+        columns.clear();
+        tagColumns.clear();
+        assets.clear();
+        aliases.clear();
+        assetLock.writeLock().lock();
+        try {
+            assetClosure = new AssetHierarchyClosure();
+            assetPathSnapshot = null;
+        } finally {
+            assetLock.writeLock().unlock();
+        }
+        tagNameLock.writeLock().lock();
+        try {
+            tagNameIndex = new TagNameIndex();
+        } finally {
+            tagNameLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void putTagAlias(final String alias, final String tag) {
+        tagNameLock.writeLock().lock();
+        try {
+            tagNameIndex.addAlias(alias, tag);
+        } finally {
+            tagNameLock.writeLock().unlock();
+        }
+        Set<String> tags = aliases.get(alias);
+        if (tags == null) {
+            final Set<String> created = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>(2));
+            tags = aliases.putIfAbsent(alias, created);
+            if (tags == null) {
+                tags = created;
+            }
+        }
+        if (tags.add(tag)) {
+            modificationCount.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void removeTagAlias(final String alias) {
+        final Set<String> tags = aliases.remove(alias);
+        if (tags == null) {
+            return;
+        }
+        tagNameLock.writeLock().lock();
+        try {
+            for (String tag : tags) {
+                if (!hasCaseVariantAlias(alias, tag)) {
+                    tagNameIndex.removeAlias(alias, tag);
+                }
+            }
+        } finally {
+            tagNameLock.writeLock().unlock();
+        }
+        modificationCount.incrementAndGet();
+    }
+
+    /**
+     * @return whether another alias that the name index does not tell apart from this one still stands for the tag
+     */
+    private boolean hasCaseVariantAlias(final String alias, final String tag) {
+        for (Map.Entry<String, Set<String>> entry : aliases.entrySet()) {
+            if (entry.getKey().equalsIgnoreCase(alias) && entry.getValue().contains(tag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Set<String> getTagAliases() {
+        return new HashSet<>(aliases.keySet());
+    }
+
+    @Override
+    public Set<String> completeTags(final String prefix, final int maxResults) {
+        tagNameLock.readLock().lock();
+        try {
+            return tagNameIndex.complete(prefix, maxResults);
+        } finally {
+            tagNameLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Set<String> searchTags(final String pattern, final int maxResults) {
+        tagNameLock.readLock().lock();
+        try {
+            return tagNameIndex.search(pattern, maxResults);
+        } finally {
+            tagNameLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void putAsset(final String asset, final Collection<String> parentAssets, final Collection<String> tags) {
+        assetLock.writeLock().lock();
+        try {
+            assetClosure.setParents(asset, parentAssets);
+            assetClosure.setTags(asset, tags);
+        } finally {
+            assetLock.writeLock().unlock();
+        }
+        final AssetEntry entry = new AssetEntry(new ArrayList<>(parentAssets), new ArrayList<>(tags));
+        final AssetEntry previous = assets.put(asset, entry);
+        if (previous == null || !previous.parents.equals(entry.parents) || !previous.tags.equals(entry.tags)) {
+            modificationCount.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void removeAsset(final String asset) {
+        assetLock.writeLock().lock();
+        try {
+            assetClosure.removeAsset(asset);
+        } finally {
+            assetLock.writeLock().unlock();
+        }
+        if (assets.remove(asset) != null) {
+            modificationCount.incrementAndGet();
+        }
+    }
+
+    @Override
+    public Set<String> getAssets() {
+        return new HashSet<>(assets.keySet());
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return tagColumns.isEmpty() && assets.isEmpty();
+    }
+
+    @Override
+    public AssetPathSnapshot getAssetPathSnapshot() {
+        final AssetPathSnapshot snapshot = assetPathSnapshot;
+        assetLock.readLock().lock();
+        try {
+            if (snapshot != null && snapshot.getVersion() == assetClosure.getModificationCount()) {
+                return snapshot;
+            }
+            final AssetPathSnapshot current = assetClosure.snapshotPaths(ASSET_QUALIFIED_NAME_PREFIX);
+            assetPathSnapshot = current;
+            return current;
+        } finally {
+            assetLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Set<String> expandAssetTags(final String asset, final int maxDepth) {
+        assetLock.readLock().lock();
+        try {
+            if (!assetClosure.isStale()) {
+                return assetClosure.expandTags(asset, maxDepth);
+            }
+        } finally {
+            assetLock.readLock().unlock();
+        }
+        // the first read after parent links changed rebuilds the closure, which needs exclusive access
+        assetLock.writeLock().lock();
+        try {
+            return assetClosure.expandTags(asset, maxDepth);
+        } finally {
+            assetLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void putColumn(final String table, final String column, final String dataSource, final String granularity, final String columnFunction) {
+        final ColumnEntry entry = getColumnEntry(table, column);
+        entry.dataSource = dataSource;
+        entry.granularity = granularity;
+        entry.columnFunction = columnFunction;
+        modificationCount.incrementAndGet();
+    }
+
+    @Override
+    public void putTags(final String table, final String column, final Collection<String> tags) {
+        final ColumnEntry entry = getColumnEntry(table, column);
+        for (String tag : tags) {
+            final String key = tag.toLowerCase();
+            Set<ColumnEntry> entries = tagColumns.get(key);
+            if (entries == null) {
+                final Set<ColumnEntry> created = Collections.newSetFromMap(new ConcurrentHashMap<ColumnEntry, Boolean>(2));
+                entries = tagColumns.putIfAbsent(key, created);
+                if (entries == null) {
+                    entries = created;
+                }
+            }
+            entries.add(entry);
+            if (entry.tags.add(tag)) {
+                modificationCount.incrementAndGet();
+            }
+        }
+        tagNameLock.writeLock().lock();
+        try {
+            for (String tag : tags) {
+                tagNameIndex.addTag(tag);
+            }
+        } finally {
+            tagNameLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean hasTags(final String table, final String column) {
+        final ColumnEntry entry = columns.get(table + "." + column);
+        return entry != null && !entry.tags.isEmpty();
+    }
+
+    @Override
+    public List<TagMetadata> lookupTag(final String tag) {
+        final Set<ColumnEntry> entries = tagColumns.get(tag.toLowerCase());
+        if (entries == null) {
+            return Collections.emptyList();
+        }
+        final List<TagMetadata> metadata = new ArrayList<>(entries.size());
+        for (ColumnEntry entry : entries) {
+            metadata.add(toTagMetadata(tag, entry));
+        }
+        return metadata;
+    }
+
+    @Override
+    public TagMetadata lookupTag(final String tag, final String granularity) {
+        final Set<ColumnEntry> entries = tagColumns.get(tag.toLowerCase());
+        if (entries == null) {
+            return null;
+        }
+        for (ColumnEntry entry : entries) {
+            if (granularity.equalsIgnoreCase(entry.granularity)) {
+                return toTagMetadata(tag, entry);
+            }
+        }
+        return null;
+    }
+
+    private ColumnEntry getColumnEntry(final String table, final String column) {
+        final String key = table + "." + column;
+        ColumnEntry entry = columns.get(key);
+        if (entry == null) {
+            final ColumnEntry created = new ColumnEntry(table, column);
+            entry = columns.putIfAbsent(key, created);
+            if (entry == null) {
+                entry = created;
+            }
+        }
+        return entry;
+    }
+
+    private void saveIfModified() {
+        final File file = snapshotFile;
+        final long modifications = modificationCount.get();
+        if (file == null || modifications == savedModificationCount) {
+            return;
+        }
+        try {
+            save(file);
+            savedModificationCount = modifications;
+        } catch (IOException e) {
+            getLogger().error("Unable to write the metadata index to {} due to {}", new Object[]{file, e});
+        }
+    }
+
+    private void save(final File file) throws IOException {
+        final List<Map<String, Object>> columnsJson = new ArrayList<>();
+        for (ColumnEntry entry : columns.values()) {
+            final Map<String, Object> column = new LinkedHashMap<>();
+            column.put("table", entry.table);
+            column.put("column", entry.column);
+            column.put("dataSource", entry.dataSource);
+            column.put("granularity", entry.granularity);
+            column.put("columnFunction", entry.columnFunction);
+            column.put("tags", new TreeSet<>(entry.tags));
+            columnsJson.add(column);
+        }
+        final Map<String, Object> assetsJson = new LinkedHashMap<>();
+        for (Map.Entry<String, AssetEntry> asset : assets.entrySet()) {
+            final Map<String, Object> assetJson = new LinkedHashMap<>();
+            assetJson.put("parents", asset.getValue().parents);
+            assetJson.put("tags", asset.getValue().tags);
+            assetsJson.put(asset.getKey(), assetJson);
+        }
+        final Map<String, Object> json = new LinkedHashMap<>();
+        json.put("columns", columnsJson);
+        json.put("assets", assetsJson);
+        json.put("aliases", aliases);
+
+        final File tmp = new File(file.getParentFile(), SNAPSHOT_FILE_NAME + ".tmp");
+        new ObjectMapper().writeValue(tmp, json);
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void load(final File file) throws IOException {
+        final Map<String, Object> json = new ObjectMapper().readValue(file, Map.class);
+        for (Map<String, Object> column : (List<Map<String, Object>>) json.get("columns")) {
+            final String table = (String) column.get("table");
+            final String name = (String) column.get("column");
+            putColumn(table, name, (String) column.get("dataSource"), (String) column.get("granularity"), (String) column.get("columnFunction"));
+            putTags(table, name, (List<String>) column.get("tags"));
+        }
+        final Map<String, Map<String, List<String>>> assetsJson = (Map<String, Map<String, List<String>>>) json.get("assets");
+        if (assetsJson != null) {
+            for (Map.Entry<String, Map<String, List<String>>> asset : assetsJson.entrySet()) {
+                putAsset(asset.getKey(), asset.getValue().get("parents"), asset.getValue().get("tags"));
+            }
+        }
+        final Map<String, List<String>> aliasesJson = (Map<String, List<String>>) json.get("aliases");
+        if (aliasesJson != null) {
+            for (Map.Entry<String, List<String>> alias : aliasesJson.entrySet()) {
+                for (String tag : alias.getValue()) {
+                    putTagAlias(alias.getKey(), tag);
+                }
+            }
+        }
+    }
+
+    private TagMetadata toTagMetadata(final String tag, final ColumnEntry entry) {
+        return new TagMetadata(tag, entry.table, entry.column, entry.dataSource, entry.granularity, entry.columnFunction);
+    }
+}
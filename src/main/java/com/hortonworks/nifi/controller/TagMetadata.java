@@ -0,0 +1,82 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hortonworks.nifi.controller;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Where a historian tag is stored: the Hive column and table, the Druid datasource behind the table, and the
+ * granularity and function of the column.
+ */
+public class TagMetadata {
+
+    private final String tag;
+    private final String table;
+    private final String column;
+    private final String dataSource;
+    private final String granularity;
+    private final String columnFunction;
+
+    public TagMetadata(String tag, String table, String column, String dataSource, String granularity, String columnFunction) {
+        this.tag = tag;
+        this.table = table;
+        this.column = column;
+        this.dataSource = dataSource;
+        this.granularity = granularity;
+        this.columnFunction = columnFunction;
+    }
+
+    public String getTag() {
+        return tag;
+    }
+
+    public String getTable() {
+        return table;
+    }
+
+    public String getColumn() {
+        return column;
+    }
+
+    public String getDataSource() {
+        return dataSource;
+    }
+
+    public String getGranularity() {
+        return granularity;
+    }
+
+    public String getColumnFunction() {
+        return columnFunction;
+    }
+
+    /**
+     * @return the metadata under the keys of the cache entries the orchestrator flow reads: tagName, function (of the
+     * column), columnName and tableName, along with the dataSource and granularity
+     */
+    public Map<String, Object> toMap() {
+        final Map<String, Object> map = new LinkedHashMap<>();
+        map.put("tagName", tag);
+        map.put("function", columnFunction);
+        map.put("columnName", column);
+        map.put("tableName", table);
+        map.put("dataSource", dataSource);
+        map.put("granularity", granularity);
+        return map;
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hortonworks.nifi.controller;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * A search structure over tag names and their aliases, for autocomplete and wildcard expansion.
+ *
+ * Each searchable name is lower-cased and mapped to the ids of the tags it stands for: a tag name to itself, and an
+ * alias such as a business term to every tag it was attached to. The names live in a sorted array with a parallel
+ * array of tag id postings, so a prefix is a binary search followed by a scan of the matching range. A wildcard
+ * pattern narrows the range with its literal prefix and matches the rest of each name in that range. New names first
+ * go to a small sorted buffer, searched alongside the arrays, that is merged into them once it grows past a fraction
+ * of their size, so adding names one at a time stays cheap. Removing an alias only drops the tag from the postings of
+ * that name; names left without postings match nothing and are dropped at the next merge.
+ *
+ * Not thread safe; callers synchronize. Searches do not modify the index and may run concurrently.
+ */
+public class TagNameIndex {
+
+    static final int MIN_BUFFER_SIZE = 1024;
+    static final int BUFFER_RATIO = 16;
+
+    private static final int[] EMPTY = new int[0];
+
+    private final Map<String, Integer> tagIds = new HashMap<>();
+    private final List<String> tagNames = new ArrayList<>();
+
+    private String[] names = new String[0];
+    private int[][] postings = new int[0][];
+    private final TreeMap<String, int[]> buffer = new TreeMap<>();
+
+    /**
+     * @return the number of distinct searchable names, counting names whose aliases were removed until the next merge
+     */
+    public int size() {
+        return names.length + buffer.size();
+    }
+
+    /**
+     * Makes a tag searchable by its own name.
+     */
+    public void addTag(final String tag) {
+        addName(tag, tag);
+    }
+
+    /**
+     * Makes a tag searchable by an alias, such as a business term it is attached to.
+     */
+    public void addAlias(final String alias, final String tag) {
+        addName(alias, tag);
+    }
+
+    /**
+     * Stops a tag from being found by an alias. The tag stays searchable by its own name, even where the alias differs
+     * from it only in case.
+     */
+    public void removeAlias(final String alias, final String tag) {
+        final String key = alias.toLowerCase();
+        final Integer id = tagIds.get(tag);
+        if (id == null || key.equals(tag.toLowerCase())) {
+            return;
+        }
+        final int index = Arrays.binarySearch(names, key);
+        if (index >= 0) {
+            postings[index] = remove(postings[index], id);
+            return;
+        }
+        final int[] buffered = buffer.get(key);
+        if (buffered != null) {
+            final int[] remaining = remove(buffered, id);
+            if (remaining.length == 0) {
+                buffer.remove(key);
+            } else {
+                buffer.put(key, remaining);
+            }
+        }
+    }
+
+    private void addName(final String name, final String tag) {
+        final String key = name.toLowerCase();
+        final int id = getTagId(tag);
+        final int index = Arrays.binarySearch(names, key);
+        if (index >= 0) {
+            postings[index] = insert(postings[index], id);
+            return;
+        }
+        final int[] buffered = buffer.get(key);
+        buffer.put(key, insert(buffered == null ? EMPTY : buffered, id));
+        if (buffer.size() > Math.max(MIN_BUFFER_SIZE, names.length / BUFFER_RATIO)) {
+            mergeBuffer();
+        }
+    }
+
+    /**
+     * @return up to maxResults tags with a name or alias starting with the prefix, in the order of those names
+     */
+    public Set<String> complete(final String prefix, final int maxResults) {
+        return search(prefix.replace("*", "").replace("?", "") + "*", maxResults);
+    }
+
+    /**
+     * @param pattern a name in which '*' matches any sequence of characters and '?' any single character
+     * @return up to maxResults tags with a name or alias matching the pattern, in the order of those names
+     */
+    public Set<String> search(final String pattern, final int maxResults) {
+        final String key = pattern.toLowerCase();
+        int literalLength = 0;
+        while (literalLength < key.length() && key.charAt(literalLength) != '*' && key.charAt(literalLength) != '?') {
+            literalLength++;
+        }
+        final String literalPrefix = key.substring(0, literalLength);
+        final Set<String> tags = new LinkedHashSet<>();
+        for (int i = lowerBound(literalPrefix); i < names.length && names[i].startsWith(literalPrefix) && tags.size() < maxResults; i++) {
+            if (matches(key, literalLength, names[i], literalLength)) {
+                addPostings(postings[i], tags, maxResults);
+            }
+        }
+        for (Map.Entry<String, int[]> entry : buffer.tailMap(literalPrefix).entrySet()) {
+            if (!entry.getKey().startsWith(literalPrefix) || tags.size() >= maxResults) {
+                break;
+            }
+            if (matches(key, literalLength, entry.getKey(), literalLength)) {
+                addPostings(entry.getValue(), tags, maxResults);
+            }
+        }
+        return tags;
+    }
+
+    /**
+     * @return whether the name contains a '*' or '?' and is therefore searched as a pattern
+     */
+    public static boolean isPattern(final String name) {
+        return name.indexOf('*') >= 0 || name.indexOf('?') >= 0;
+    }
+
+    /**
+     * Matches a glob pattern against a name, backtracking only to the last '*'.
+     */
+    static boolean matches(final String pattern, int p, final String name, int n) {
+        int starPattern = -1;
+        int starName = -1;
+        while (n < name.length()) {
+            if (p < pattern.length() && (pattern.charAt(p) == '?' || pattern.charAt(p) == name.charAt(n))) {
+                p++;
+                n++;
+            } else if (p < pattern.length() && pattern.charAt(p) == '*') {
+                starPattern = p++;
+                starName = n;
+            } else if (starPattern >= 0) {
+                p = starPattern + 1;
+                n = ++starName;
+            } else {
+                return false;
+            }
+        }
+        while (p < pattern.length() && pattern.charAt(p) == '*') {
+            p++;
+        }
+        return p == pattern.length();
+    }
+
+    private void addPostings(final int[] ids, final Set<String> tags, final int maxResults) {
+        for (int id : ids) {
+            if (tags.size() >= maxResults) {
+                return;
+            }
+            tags.add(tagNames.get(id));
+        }
+    }
+
+    private int lowerBound(final String key) {
+        final int index = Arrays.binarySearch(names, key);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    private void mergeBuffer() {
+        if (buffer.isEmpty()) {
+            return;
+        }
+        final String[] mergedNames = new String[names.length + buffer.size()];
+        final int[][] mergedPostings = new int[mergedNames.length][];
+        int i = 0;
+        int m = 0;
+        for (Map.Entry<String, int[]> entry : buffer.entrySet()) {
+            while (i < names.length && names[i].compareTo(entry.getKey()) < 0) {
+                if (postings[i].length > 0) {
+                    mergedNames[m] = names[i];
+                    mergedPostings[m++] = postings[i];
+                }
+                i++;
+            }
+            mergedNames[m] = entry.getKey();
+            mergedPostings[m++] = entry.getValue();
+        }
+        while (i < names.length) {
+            if (postings[i].length > 0) {
+                mergedNames[m] = names[i];
+                mergedPostings[m++] = postings[i];
+            }
+            i++;
+        }
+        names = m == mergedNames.length ? mergedNames : Arrays.copyOf(mergedNames, m);
+        postings = m == mergedPostings.length ? mergedPostings : Arrays.copyOf(mergedPostings, m);
+        buffer.clear();
+    }
+
+    private int getTagId(final String tag) {
+        Integer id = tagIds.get(tag);
+        if (id == null) {
+            id = tagNames.size();
+            tagIds.put(tag, id);
+            tagNames.add(tag);
+        }
+        return id;
+    }
+
+    private static int[] insert(final int[] sorted, final int value) {
+        final int index = Arrays.binarySearch(sorted, value);
+        if (index >= 0) {
+            return sorted;
+        }
+        final int[] inserted = new int[sorted.length + 1];
+        System.arraycopy(sorted, 0, inserted, 0, -index - 1);
+        inserted[-index - 1] = value;
+        System.arraycopy(sorted, -index - 1, inserted, -index, sorted.length + index + 1);
+        return inserted;
+    }
+
+    private static int[] remove(final int[] sorted, final int value) {
+        final int index = Arrays.binarySearch(sorted, value);
+        if (index < 0) {
+            return sorted;
+        }
+        final int[] removed = new int[sorted.length - 1];
+        System.arraycopy(sorted, 0, removed, 0, index);
+        System.arraycopy(sorted, index + 1, removed, index, sorted.length - index - 1);
+        return removed;
+    }
+}
@@ -0,0 +1,860 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hortonworks.nifi.processors;
+
+import org.apache.nifi.annotation.behavior.EventDriven;
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.behavior.InputRequirement.Requirement;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.SeeAlso;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnUnscheduled;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.expression.AttributeExpression.ResultType;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.DataUnit;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.io.OutputStreamCallback;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.ObjectNode;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+@EventDriven
+@Tags({"historian", "druid", "query", "batch", "tag"})
+@InputRequirement(Requirement.INPUT_REQUIRED)
+@CapabilityDescription("Answers many tag queries with few Druid queries. The queued requests are taken together, and the requests for the same "
+        + "datasource, interval, granularity, tag dimension and metrics are answered by a single Druid query with an in filter on the union of "
+        + "their tags: a scan query for raw rows, or a groupBy query on the tag dimension that aggregates the metrics per granularity bucket. "
+        + "The rows are split back by tag as they stream in, and every request receives the rows of its own tags, as one JSON "
+        + "object per line grouped by tag and ordered by time bucket, or as one FlowFile per tag. Rows are cached per tag and time bucket, "
+        + "so a request that overlaps earlier ones, such as a dashboard refreshing a sliding window, only queries the buckets that are not "
+        + "cached yet and the recent ones.")
+@WritesAttributes({
+    @WritesAttribute(attribute = "druid.query.id", description = "The comma-separated ids of the Druid queries that answered the request, "
+            + "unless all of it was cached."),
+    @WritesAttribute(attribute = "druid.cached.buckets", description = "The number of tag and time buckets of the batch taken from the cache."),
+    @WritesAttribute(attribute = "druid.batch.requests", description = "The number of requests answered by the same Druid query."),
+    @WritesAttribute(attribute = "druid.batch.tags", description = "The number of tags the Druid query asked for."),
+    @WritesAttribute(attribute = "druid.row.count", description = "The number of rows in the FlowFile."),
+    @WritesAttribute(attribute = "druid.query.millis", description = "The time the Druid queries of the batch took, 0 if all of it was cached."),
+    @WritesAttribute(attribute = "druid.truncated", description = "Whether a tag of the request alone has more rows than Max Batch Rows, "
+            + "in which case the request is routed to failure."),
+    @WritesAttribute(attribute = "tagName", description = "The tag of the rows, when the rows are split per tag.")
+})
+@SeeAlso(classNames = {"com.hortonworks.nifi.processors.QueryDruid", "com.hortonworks.nifi.processors.LookupHistorianMetadata"})
+public class BatchQueryDruidTags extends AbstractProcessor {
+
+    public static final PropertyDescriptor PROP_DATA_SOURCE = new PropertyDescriptor.Builder()
+            .name("Data Source")
+            .description("The Druid datasource to query.")
+            .required(true)
+            .addValidator(StandardValidators.createAttributeExpressionLanguageValidator(ResultType.STRING, true))
+            .defaultValue("${tableName}")
+            .expressionLanguageSupported(true)
+            .build();
+
+    public static final PropertyDescriptor PROP_INTERVAL = new PropertyDescriptor.Builder()
+            .name("Interval")
+            .description("The ISO-8601 interval to query.")
+            .required(true)
+            .addValidator(StandardValidators.createAttributeExpressionLanguageValidator(ResultType.STRING, true))
+            .defaultValue("${sdate:replace(' ','T')}/${edate:replace(' ','T')}")
+            .expressionLanguageSupported(true)
+            .build();
+
+    public static final PropertyDescriptor PROP_GRANULARITY = new PropertyDescriptor.Builder()
+            .name("Granularity")
+            .description("The granularity of the request. Only requests of the same granularity are batched together. If empty, none or raw, "
+                    + "the raw rows are scanned; any other Druid granularity, such as minute or hour, returns one row per tag and time bucket "
+                    + "with the metrics combined by the Aggregation.")
+            .required(false)
+            .addValidator(StandardValidators.createAttributeExpressionLanguageValidator(ResultType.STRING, true))
+            .defaultValue("${granularity}")
+            .expressionLanguageSupported(true)
+            .build();
+
+    public static final PropertyDescriptor PROP_AGGREGATION = new PropertyDescriptor.Builder()
+            .name("Aggregation")
+            .description("How the metrics of the rows in a time bucket are combined when the request has a granularity. The average is taken "
+                    + "over the rows stored in Druid, which may themselves be rolled up.")
+            .required(true)
+            .allowableValues("avg", "sum", "min", "max")
+            .defaultValue("avg")
+            .build();
+
+    public static final PropertyDescriptor PROP_TAG_DIMENSION = new PropertyDescriptor.Builder()
+            .name("Tag Dimension")
+            .description("The dimension holding the tag.")
+            .required(true)
+            .addValidator(StandardValidators.createAttributeExpressionLanguageValidator(ResultType.STRING, true))
+            .defaultValue("${tagColumnName}")
+            .expressionLanguageSupported(true)
+            .build();
+
+    public static final PropertyDescriptor PROP_METRICS = new PropertyDescriptor.Builder()
+            .name("Metrics")
+            .description("A comma-separated list of the metrics to return for every row.")
+            .required(true)
+            .addValidator(StandardValidators.createAttributeExpressionLanguageValidator(ResultType.STRING, true))
+            .defaultValue("${metricColumnName}")
+            .expressionLanguageSupported(true)
+            .build();
+
+    public static final PropertyDescriptor PROP_TAG_NAMES = new PropertyDescriptor.Builder()
+            .name("Tag Names")
+            .description("The tags of the request, as a comma-separated list or a JSON array.")
+            .required(true)
+            .addValidator(StandardValidators.createAttributeExpressionLanguageValidator(ResultType.STRING, true))
+            .defaultValue("${tagNames:isEmpty():ifElse(${tagName},${tagNames})}")
+            .expressionLanguageSupported(true)
+            .build();
+
+    public static final PropertyDescriptor PROP_BATCH_SIZE = new PropertyDescriptor.Builder()
+            .name("Batch Size")
+            .description("The maximum number of queued requests taken together.")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("100")
+            .build();
+
+    public static final PropertyDescriptor PROP_MAX_BATCH_ROWS = new PropertyDescriptor.Builder()
+            .name("Max Batch Rows")
+            .description("The maximum number of rows a single Druid query returns. The rows of a batch are held in memory, serialized, "
+                    + "until they are handed out to the requests, so this bounds the heap a batch takes. A query that reaches the limit is "
+                    + "discarded and its tags are queried again in halves; requests for a tag that alone has more rows are routed to failure "
+                    + "with druid.truncated=true.")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_LONG_VALIDATOR)
+            .defaultValue("100000")
+            .build();
+
+    public static final PropertyDescriptor PROP_SPLIT_PER_TAG = new PropertyDescriptor.Builder()
+            .name("Split Per Tag")
+            .description("Whether to write the rows of every tag of a request to a FlowFile of its own, routing the request to original.")
+            .required(true)
+            .allowableValues("true", "false")
+            .defaultValue("false")
+            .build();
+
+    public static final PropertyDescriptor PROP_CACHE_SIZE = new PropertyDescriptor.Builder()
+            .name("Result Cache Size")
+            .description("The amount of rows to keep in memory, per tag and time bucket, to answer later requests for the same buckets "
+                    + "without querying Druid. Only the buckets that are not cached are queried. If 0 B, nothing is cached.")
+            .required(true)
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .defaultValue("100 MB")
+            .build();
+
+    public static final PropertyDescriptor PROP_CACHE_BUCKET_SIZE = new PropertyDescriptor.Builder()
+            .name("Cache Bucket Size")
+            .description("The length of the time buckets rows are cached in, aligned to the epoch. Only buckets that lie entirely within "
+                    + "the interval of a request are cached.")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("1 hour")
+            .build();
+
+    public static final PropertyDescriptor PROP_CACHE_SETTLE_TIME = new PropertyDescriptor.Builder()
+            .name("Cache Settle Time")
+            .description("Buckets that ended less than this long ago may still receive rows, so they are always queried and never cached. "
+                    + "Must be at least the Tranquility window period plus the time its tasks take to hand segments off.")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("1 hour")
+            .build();
+
+    public static final PropertyDescriptor PROP_CACHE_MAX_AGE = new PropertyDescriptor.Builder()
+            .name("Cache Max Age")
+            .description("How long a bucket stays cached before it is queried again, so that rows that arrived after the settle time, "
+                    + "or data re-indexed in Druid, are picked up.")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("1 day")
+            .build();
+
+    public static final Relationship REL_SUCCESS = new Relationship.Builder()
+            .name("success")
+            .description("Requests holding their rows, or the FlowFiles of every tag when splitting per tag, are routed to this relationship")
+            .build();
+    public static final Relationship REL_ORIGINAL = new Relationship.Builder()
+            .name("original")
+            .description("Requests whose rows were split per tag are routed to this relationship")
+            .build();
+    public static final Relationship REL_FAILURE = new Relationship.Builder()
+            .name("failure")
+            .description("Requests that are incomplete, or whose Druid query failed, are routed to this relationship")
+            .build();
+    private final Set<Relationship> relationships;
+
+    private static final DruidResultCache.Bucket EMPTY_BUCKET = new DruidResultCache.Bucket(new byte[0], 0);
+    private static final String ROW_COUNT_AGGREGATOR = "__rows";
+    private static final String SUM_AGGREGATOR_PREFIX = "__sum_";
+
+    private volatile DruidQueryClient client;
+    private volatile DruidResultCache resultCache;
+
+    /**
+     * The requests answered by one Druid query, with the tags of each.
+     */
+    private static class Batch {
+        private final String dataSource;
+        private final String interval;
+        private final String granularity;
+        private final String aggregation;
+        private final String tagDimension;
+        private final List<String> metrics;
+        private final Map<FlowFile, List<String>> requests = new LinkedHashMap<>();
+        private final Set<String> tags = new LinkedHashSet<>();
+
+        Batch(final String dataSource, final String interval, final String granularity, final String aggregation, final String tagDimension,
+                final List<String> metrics) {
+            this.dataSource = dataSource;
+            this.interval = interval;
+            this.granularity = granularity;
+            this.aggregation = aggregation;
+            this.tagDimension = tagDimension;
+            this.metrics = metrics;
+        }
+
+        /**
+         * @return whether the rows are aggregated per granularity bucket rather than scanned raw
+         */
+        boolean isAggregated() {
+            return !isEmpty(granularity) && !"none".equalsIgnoreCase(granularity) && !"raw".equalsIgnoreCase(granularity);
+        }
+    }
+
+    public BatchQueryDruidTags() {
+        final Set<Relationship> rels = new HashSet<>();
+        rels.add(REL_SUCCESS);
+        rels.add(REL_ORIGINAL);
+        rels.add(REL_FAILURE);
+        relationships = Collections.unmodifiableSet(rels);
+    }
+
+    @Override
+    protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        final List<PropertyDescriptor> descriptors = new ArrayList<>();
+        descriptors.add(QueryDruid.PROP_BROKER_URL);
+        descriptors.add(PROP_DATA_SOURCE);
+        descriptors.add(PROP_INTERVAL);
+        descriptors.add(PROP_GRANULARITY);
+        descriptors.add(PROP_AGGREGATION);
+        descriptors.add(PROP_TAG_DIMENSION);
+        descriptors.add(PROP_METRICS);
+        descriptors.add(PROP_TAG_NAMES);
+        descriptors.add(PROP_BATCH_SIZE);
+        descriptors.add(PROP_MAX_BATCH_ROWS);
+        descriptors.add(QueryDruid.PROP_PAGE_SIZE);
+        descriptors.add(PROP_SPLIT_PER_TAG);
+        descriptors.add(PROP_CACHE_SIZE);
+        descriptors.add(PROP_CACHE_BUCKET_SIZE);
+        descriptors.add(PROP_CACHE_SETTLE_TIME);
+        descriptors.add(PROP_CACHE_MAX_AGE);
+        descriptors.add(QueryDruid.PROP_USERNAME);
+        descriptors.add(QueryDruid.PROP_PASSWORD);
+        descriptors.add(QueryDruid.PROP_CONNECT_TIMEOUT);
+        descriptors.add(QueryDruid.PROP_READ_TIMEOUT);
+        return descriptors;
+    }
+
+    @Override
+    public Set<Relationship> getRelationships() {
+        return relationships;
+    }
+
+    @OnScheduled
+    public void createClient(final ProcessContext context) {
+        client = new DruidQueryClient(context.getProperty(QueryDruid.PROP_BROKER_URL).evaluateAttributeExpressions().getValue(),
+                QueryDruid.basicAuthorization(context.getProperty(QueryDruid.PROP_USERNAME).getValue(),
+                        context.getProperty(QueryDruid.PROP_PASSWORD).getValue()),
+                context.getProperty(QueryDruid.PROP_CONNECT_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS).intValue(),
+                context.getProperty(QueryDruid.PROP_READ_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS).intValue());
+        final long cacheSize = context.getProperty(PROP_CACHE_SIZE).asDataSize(DataUnit.B).longValue();
+        resultCache = cacheSize > 0
+                ? new DruidResultCache(cacheSize, context.getProperty(PROP_CACHE_MAX_AGE).asTimePeriod(TimeUnit.MILLISECONDS)) : null;
+    }
+
+    @OnUnscheduled
+    public void cancelQueries() {
+        if (client != null) {
+            client.cancelAll();
+        }
+    }
+
+    @Override
+    public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
+        final List<FlowFile> flowFiles = session.get(context.getProperty(PROP_BATCH_SIZE).asInteger());
+        if (flowFiles.isEmpty()) {
+            return;
+        }
+
+        final ComponentLog logger = getLogger();
+        final ObjectMapper mapper = new ObjectMapper();
+        final Map<String, Batch> batches = new LinkedHashMap<>();
+        final String aggregation = context.getProperty(PROP_AGGREGATION).getValue();
+        for (FlowFile flowFile : flowFiles) {
+            final String dataSource = context.getProperty(PROP_DATA_SOURCE).evaluateAttributeExpressions(flowFile).getValue();
+            final String interval = context.getProperty(PROP_INTERVAL).evaluateAttributeExpressions(flowFile).getValue();
+            final String granularity = context.getProperty(PROP_GRANULARITY).evaluateAttributeExpressions(flowFile).getValue();
+            final String tagDimension = context.getProperty(PROP_TAG_DIMENSION).evaluateAttributeExpressions(flowFile).getValue();
+            final List<String> metrics = parseList(mapper, context.getProperty(PROP_METRICS).evaluateAttributeExpressions(flowFile).getValue());
+            final List<String> tags = parseList(mapper, context.getProperty(PROP_TAG_NAMES).evaluateAttributeExpressions(flowFile).getValue());
+            if (isEmpty(dataSource) || isEmpty(interval) || isEmpty(tagDimension) || tags.isEmpty()) {
+                logger.error("Routing {} to failure because its datasource, interval, tag dimension or tags are missing", new Object[]{flowFile});
+                session.transfer(session.penalize(flowFile), REL_FAILURE);
+                continue;
+            }
+
+            final String key = dataSource + '\u0000' + interval + '\u0000' + granularity + '\u0000' + tagDimension + '\u0000' + metrics;
+            Batch batch = batches.get(key);
+            if (batch == null) {
+                batch = new Batch(dataSource, interval, granularity, aggregation, tagDimension, metrics);
+                batches.put(key, batch);
+            }
+            batch.requests.put(flowFile, tags);
+            batch.tags.addAll(tags);
+        }
+
+        final long maxBatchRows = context.getProperty(PROP_MAX_BATCH_ROWS).asLong();
+        final int pageSize = context.getProperty(QueryDruid.PROP_PAGE_SIZE).asInteger();
+        final boolean splitPerTag = context.getProperty(PROP_SPLIT_PER_TAG).asBoolean();
+        final DruidResultCache cache = resultCache;
+        final long bucketMillis = context.getProperty(PROP_CACHE_BUCKET_SIZE).asTimePeriod(TimeUnit.MILLISECONDS);
+        final long settledEnd = System.currentTimeMillis() - context.getProperty(PROP_CACHE_SETTLE_TIME).asTimePeriod(TimeUnit.MILLISECONDS);
+        for (Batch batch : batches.values()) {
+            final long[] range = cache == null || !isCacheable(batch, bucketMillis) ? null : parseInterval(batch.interval);
+            final String cacheQuery = batch.dataSource + '\u0000' + batch.granularity + '\u0000' + batch.aggregation + '\u0000'
+                    + batch.tagDimension + '\u0000' + batch.metrics;
+            final Map<String, TreeMap<Long, TagRows>> rowsByTag = new HashMap<>();
+            final Set<String> queryTags = new LinkedHashSet<>();
+            final List<long[]> missing = new ArrayList<>();
+            int cachedBuckets = 0;
+            for (String tag : batch.tags) {
+                final TreeMap<Long, TagRows> buckets = new TreeMap<>();
+                rowsByTag.put(tag, buckets);
+                if (range == null) {
+                    queryTags.add(tag);
+                    continue;
+                }
+                long[] tagMissing = null;
+                for (long bucket = Math.floorDiv(range[0], bucketMillis) * bucketMillis; bucket < range[1]; bucket += bucketMillis) {
+                    final DruidResultCache.Bucket cached = isCacheable(bucket, bucketMillis, range, settledEnd)
+                            ? cache.get(DruidResultCache.key(cacheQuery, tag, bucket)) : null;
+                    if (cached != null) {
+                        buckets.put(bucket, new TagRows(cached));
+                        cachedBuckets++;
+                    } else if (tagMissing != null && tagMissing[1] == bucket) {
+                        tagMissing[1] = Math.min(bucket + bucketMillis, range[1]);
+                    } else {
+                        tagMissing = new long[] {Math.max(bucket, range[0]), Math.min(bucket + bucketMillis, range[1])};
+                        missing.add(tagMissing);
+                        queryTags.add(tag);
+                    }
+                }
+            }
+
+            final List<String> queryIds = new ArrayList<>();
+            final Set<String> truncatedTags = new HashSet<>();
+            long rowCount = 0;
+            final long start = System.nanoTime();
+            if (!queryTags.isEmpty()) {
+                final List<String> intervals = range == null ? Collections.singletonList(batch.interval) : toIntervals(missing);
+                final Deque<List<String>> pending = new ArrayDeque<>();
+                pending.push(new ArrayList<>(queryTags));
+                try {
+                    while (!pending.isEmpty()) {
+                        final List<String> tags = pending.pop();
+                        final String queryId = UUID.randomUUID().toString();
+                        queryIds.add(queryId);
+                        final long count = queryRows(mapper, batch, tags, intervals, queryId, pageSize, maxBatchRows, range, bucketMillis, rowsByTag);
+                        if (count < maxBatchRows) {
+                            rowCount += count;
+                            continue;
+                        }
+                        // the rows of a truncated query are incomplete, so they are dropped and each half of its tags is asked for separately
+                        for (String tag : tags) {
+                            dropQueriedRows(rowsByTag.get(tag));
+                        }
+                        if (tags.size() == 1) {
+                            truncatedTags.add(tags.get(0));
+                        } else {
+                            pending.push(new ArrayList<>(tags.subList(tags.size() / 2, tags.size())));
+                            pending.push(new ArrayList<>(tags.subList(0, tags.size() / 2)));
+                        }
+                    }
+                } catch (IOException e) {
+                    if (!isScheduled()) {
+                        session.rollback();
+                        return;
+                    }
+                    logger.error("Unable to run Druid queries {} for {} requests due to {}", new Object[]{queryIds, batch.requests.size(), e});
+                    for (FlowFile flowFile : batch.requests.keySet()) {
+                        session.transfer(session.penalize(flowFile), REL_FAILURE);
+                    }
+                    continue;
+                }
+                if (range != null) {
+                    // buckets without rows are cached as well, so that they are not queried again
+                    for (String tag : queryTags) {
+                        if (truncatedTags.contains(tag)) {
+                            continue;
+                        }
+                        final TreeMap<Long, TagRows> buckets = rowsByTag.get(tag);
+                        for (long bucket = Math.floorDiv(range[0], bucketMillis) * bucketMillis; bucket < range[1]; bucket += bucketMillis) {
+                            final TagRows tagRows = buckets.get(bucket);
+                            if ((tagRows == null || !tagRows.isCached()) && isCacheable(bucket, bucketMillis, range, settledEnd)) {
+                                cache.put(DruidResultCache.key(cacheQuery, tag, bucket), tagRows == null ? EMPTY_BUCKET : tagRows.toBucket());
+                            }
+                        }
+                    }
+                }
+            }
+            logger.debug("Answered {} requests for {} tags of {} from {} cached buckets and Druid queries {} returning {} rows",
+                    new Object[]{batch.requests.size(), batch.tags.size(), batch.dataSource, cachedBuckets, queryIds, rowCount});
+
+            final Map<String, String> attributes = new HashMap<>();
+            if (!queryIds.isEmpty()) {
+                attributes.put("druid.query.id", String.join(",", queryIds));
+            }
+            attributes.put("druid.batch.requests", String.valueOf(batch.requests.size()));
+            attributes.put("druid.batch.tags", String.valueOf(batch.tags.size()));
+            attributes.put("druid.cached.buckets", String.valueOf(cachedBuckets));
+            attributes.put("druid.query.millis", String.valueOf(queryIds.isEmpty() ? 0 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+            attributes.put("druid.truncated", "false");
+            attributes.put(CoreAttributes.MIME_TYPE.key(), "application/json");
+            for (Map.Entry<FlowFile, List<String>> request : batch.requests.entrySet()) {
+                if (!Collections.disjoint(request.getValue(), truncatedTags)) {
+                    logger.error("Routing {} to failure because one of its tags has more than {} rows", new Object[]{request.getKey(), maxBatchRows});
+                    final FlowFile flowFile = session.putAllAttributes(request.getKey(), Collections.singletonMap("druid.truncated", "true"));
+                    session.transfer(session.penalize(flowFile), REL_FAILURE);
+                } else if (splitPerTag) {
+                    for (String tag : new LinkedHashSet<>(request.getValue())) {
+                        final Collection<TagRows> tagRows = rowsByTag.get(tag).values();
+                        FlowFile tagFlowFile = writeRows(session, session.create(request.getKey()), tagRows);
+                        attributes.put("tagName", tag);
+                        attributes.put("druid.row.count", String.valueOf(count(tagRows)));
+                        tagFlowFile = session.putAllAttributes(tagFlowFile, attributes);
+                        session.transfer(tagFlowFile, REL_SUCCESS);
+                    }
+                    attributes.remove("tagName");
+                    session.transfer(request.getKey(), REL_ORIGINAL);
+                } else {
+                    final List<TagRows> requestRows = new ArrayList<>();
+                    for (String tag : new LinkedHashSet<>(request.getValue())) {
+                        requestRows.addAll(rowsByTag.get(tag).values());
+                    }
+                    FlowFile flowFile = writeRows(session, request.getKey(), requestRows);
+                    attributes.put("druid.row.count", String.valueOf(count(requestRows)));
+                    flowFile = session.putAllAttributes(flowFile, attributes);
+                    session.transfer(flowFile, REL_SUCCESS);
+                }
+            }
+        }
+        if (cache != null) {
+            logger.debug("Result cache holds {} bytes after {} hits and {} misses", new Object[]{cache.getBytes(), cache.getHits(), cache.getMisses()});
+        }
+    }
+
+    /**
+     * Runs one Druid query for the tags and adds the rows to the buckets of their tags.
+     *
+     * @return the number of rows the query returned, which is maxRows if it was truncated
+     */
+    private long queryRows(final ObjectMapper mapper, final Batch batch, final Collection<String> tags, final List<String> intervals,
+            final String queryId, final int pageSize, final long maxRows, final long[] range, final long bucketMillis,
+            final Map<String, TreeMap<Long, TagRows>> rowsByTag) throws IOException {
+        final ObjectNode query = buildQuery(mapper, batch, tags, intervals, queryId);
+        final DruidQueryClient.RowHandler handler = new DruidQueryClient.RowHandler() {
+            @Override
+            public void row(final JsonNode row) throws IOException {
+                if (!isScheduled()) {
+                    throw new IOException("Druid query " + queryId + " was cancelled");
+                }
+                final JsonNode tag = row.get(batch.tagDimension);
+                final TreeMap<Long, TagRows> buckets = tag == null ? null : rowsByTag.get(tag.asText());
+                if (buckets == null) {
+                    return;
+                }
+                long bucket = 0L;
+                if (range != null) {
+                    long time = getTime(row);
+                    if (batch.isAggregated()) {
+                        // a granularity bucket starts at or before the start of the interval it was asked for
+                        time = Math.max(time, range[0]);
+                    }
+                    if (time < range[0] || time >= range[1]) {
+                        return;
+                    }
+                    bucket = Math.floorDiv(time, bucketMillis) * bucketMillis;
+                }
+                TagRows tagRows = buckets.get(bucket);
+                if (tagRows == null) {
+                    tagRows = new TagRows();
+                    buckets.put(bucket, tagRows);
+                }
+                // rows of a bucket that was cached for this tag are already there
+                if (!tagRows.isCached()) {
+                    if (batch.isAggregated()) {
+                        removeHelperAggregators((ObjectNode) row, batch);
+                    }
+                    tagRows.add(mapper.writeValueAsBytes(row));
+                }
+            }
+        };
+        return batch.isAggregated() ? client.groupBy(mapper, query, queryId, maxRows, handler)
+                : client.scan(mapper, query, queryId, pageSize, maxRows, handler);
+    }
+
+    /**
+     * Removes the rows a truncated query added, keeping the buckets taken from the cache.
+     */
+    private static void dropQueriedRows(final TreeMap<Long, TagRows> buckets) {
+        for (Iterator<TagRows> tagRows = buckets.values().iterator(); tagRows.hasNext();) {
+            if (!tagRows.next().isCached()) {
+                tagRows.remove();
+            }
+        }
+    }
+
+    /**
+     * @return whether the rows of the batch can be cached per bucket: raw rows always, and aggregated rows when the
+     *         granularity is a whole number of UTC days or less that divides the bucket, so that each granularity bucket
+     *         lies in a single cache bucket
+     */
+    private static boolean isCacheable(final Batch batch, final long bucketMillis) {
+        if (!batch.isAggregated()) {
+            return true;
+        }
+        final Long granularityMillis = SelectHistorianQueryEngine.GRANULARITY_MILLIS.get(batch.granularity.toLowerCase());
+        return granularityMillis != null && granularityMillis <= TimeUnit.DAYS.toMillis(1) && bucketMillis % granularityMillis == 0;
+    }
+
+    /**
+     * @return whether the bucket lies within the interval, so that all of its rows are queried, and is old enough not to
+     *         receive any more rows
+     */
+    private static boolean isCacheable(final long bucket, final long bucketMillis, final long[] range, final long settledEnd) {
+        return bucket >= range[0] && bucket + bucketMillis <= range[1] && bucket + bucketMillis <= settledEnd;
+    }
+
+    /**
+     * The rows of one tag in one time bucket, one JSON object per line, either queried or taken from the cache.
+     */
+    private static class TagRows {
+        private final ByteArrayOutputStream lines;
+        private final byte[] cachedLines;
+        private long count;
+
+        TagRows() {
+            this.lines = new ByteArrayOutputStream();
+            this.cachedLines = null;
+        }
+
+        TagRows(final DruidResultCache.Bucket cached) {
+            this.lines = null;
+            this.cachedLines = cached.getLines();
+            this.count = cached.getCount();
+        }
+
+        boolean isCached() {
+            return cachedLines != null;
+        }
+
+        void add(final byte[] row) {
+            if (count++ > 0) {
+                lines.write('\n');
+            }
+            lines.write(row, 0, row.length);
+        }
+
+        DruidResultCache.Bucket toBucket() {
+            return new DruidResultCache.Bucket(lines.toByteArray(), count);
+        }
+
+        void writeTo(final OutputStream out) throws IOException {
+            if (cachedLines != null) {
+                out.write(cachedLines);
+            } else {
+                lines.writeTo(out);
+            }
+        }
+    }
+
+    private static long count(final Collection<TagRows> rows) {
+        long count = 0;
+        for (TagRows tagRows : rows) {
+            count += tagRows.count;
+        }
+        return count;
+    }
+
+    private static FlowFile writeRows(final ProcessSession session, final FlowFile flowFile, final Collection<TagRows> rows) {
+        return session.write(flowFile, new OutputStreamCallback() {
+            @Override
+            public void process(final OutputStream out) throws IOException {
+                boolean first = true;
+                for (TagRows tagRows : rows) {
+                    if (tagRows.count == 0) {
+                        continue;
+                    }
+                    if (!first) {
+                        out.write('\n');
+                    }
+                    first = false;
+                    tagRows.writeTo(out);
+                }
+            }
+        });
+    }
+
+    static ObjectNode buildQuery(final ObjectMapper mapper, final Batch batch, final Collection<String> tags, final List<String> intervals,
+            final String queryId) {
+        final ObjectNode query = mapper.createObjectNode();
+        query.put("queryType", batch.isAggregated() ? "groupBy" : "scan");
+        query.put("dataSource", batch.dataSource);
+        final ArrayNode queryIntervals = query.putArray("intervals");
+        for (String interval : intervals) {
+            queryIntervals.add(interval);
+        }
+        if (batch.isAggregated()) {
+            query.put("granularity", batch.granularity.toLowerCase());
+            query.putArray("dimensions").add(batch.tagDimension);
+            addAggregations(query, batch);
+        } else {
+            final ArrayNode columns = query.putArray("columns");
+            columns.add("__time");
+            columns.add(batch.tagDimension);
+            for (String metric : batch.metrics) {
+                columns.add(metric);
+            }
+        }
+        final ObjectNode filter = query.putObject("filter");
+        if (tags.size() == 1) {
+            filter.put("type", "selector");
+            filter.put("dimension", batch.tagDimension);
+            filter.put("value", tags.iterator().next());
+        } else {
+            filter.put("type", "in");
+            filter.put("dimension", batch.tagDimension);
+            final ArrayNode values = filter.putArray("values");
+            for (String tag : tags) {
+                values.add(tag);
+            }
+        }
+        if (!batch.isAggregated()) {
+            query.put("resultFormat", "list");
+        }
+        query.putObject("context").put("queryId", queryId);
+        return query;
+    }
+
+    /**
+     * Adds an aggregator named after each metric, or for the average a sum per metric and a row count that a post
+     * aggregator named after the metric divides.
+     */
+    private static void addAggregations(final ObjectNode query, final Batch batch) {
+        final ArrayNode aggregations = query.putArray("aggregations");
+        final boolean average = "avg".equals(batch.aggregation);
+        if (average) {
+            final ObjectNode rowCount = aggregations.addObject();
+            rowCount.put("type", "count");
+            rowCount.put("name", ROW_COUNT_AGGREGATOR);
+        }
+        final ArrayNode postAggregations = average ? query.putArray("postAggregations") : null;
+        for (String metric : batch.metrics) {
+            final String type = average || "sum".equals(batch.aggregation) ? "doubleSum" : "max".equals(batch.aggregation) ? "doubleMax" : "doubleMin";
+            final String name = average ? SUM_AGGREGATOR_PREFIX + metric : metric;
+            final ObjectNode aggregator = aggregations.addObject();
+            aggregator.put("type", type);
+            aggregator.put("name", name);
+            aggregator.put("fieldName", metric);
+            if (average) {
+                final ObjectNode quotient = postAggregations.addObject();
+                quotient.put("type", "arithmetic");
+                quotient.put("name", metric);
+                quotient.put("fn", "/");
+                final ArrayNode fields = quotient.putArray("fields");
+                for (String field : new String[] {name, ROW_COUNT_AGGREGATOR}) {
+                    final ObjectNode fieldAccess = fields.addObject();
+                    fieldAccess.put("type", "fieldAccess");
+                    fieldAccess.put("fieldName", field);
+                }
+            }
+        }
+    }
+
+    private static void removeHelperAggregators(final ObjectNode row, final Batch batch) {
+        if ("avg".equals(batch.aggregation)) {
+            row.remove(ROW_COUNT_AGGREGATOR);
+            for (String metric : batch.metrics) {
+                row.remove(SUM_AGGREGATOR_PREFIX + metric);
+            }
+        }
+    }
+
+    /**
+     * @return the ranges as ISO-8601 intervals, with overlapping and adjacent ranges joined
+     */
+    static List<String> toIntervals(final List<long[]> ranges) {
+        final List<long[]> sorted = new ArrayList<>(ranges);
+        Collections.sort(sorted, new Comparator<long[]>() {
+            @Override
+            public int compare(final long[] a, final long[] b) {
+                return Long.compare(a[0], b[0]);
+            }
+        });
+        final List<String> intervals = new ArrayList<>();
+        long[] current = null;
+        for (long[] range : sorted) {
+            if (current != null && range[0] <= current[1]) {
+                current[1] = Math.max(current[1], range[1]);
+                continue;
+            }
+            if (current != null) {
+                intervals.add(Instant.ofEpochMilli(current[0]) + "/" + Instant.ofEpochMilli(current[1]));
+            }
+            current = new long[] {range[0], range[1]};
+        }
+        if (current != null) {
+            intervals.add(Instant.ofEpochMilli(current[0]) + "/" + Instant.ofEpochMilli(current[1]));
+        }
+        return intervals;
+    }
+
+    /**
+     * @return the start and end of an ISO-8601 interval in UTC unless it names a zone, or null if it cannot be read
+     */
+    static long[] parseInterval(final String interval) {
+        final int slash = interval.indexOf('/');
+        if (slash < 0) {
+            return null;
+        }
+        try {
+            final long start = parseTime(interval.substring(0, slash).trim());
+            final long end = parseTime(interval.substring(slash + 1).trim());
+            return end > start ? new long[] {start, end} : null;
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    private static long parseTime(final String time) {
+        try {
+            return OffsetDateTime.parse(time).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            if (time.indexOf('T') < 0) {
+                return LocalDate.parse(time).atStartOfDay().toInstant(ZoneOffset.UTC).toEpochMilli();
+            }
+            return LocalDateTime.parse(time).toInstant(ZoneOffset.UTC).toEpochMilli();
+        }
+    }
+
+    /**
+     * @return the time of a scan row, which newer brokers return as __time and older ones as timestamp
+     */
+    private static long getTime(final JsonNode row) throws IOException {
+        JsonNode time = row.get("__time");
+        if (time == null) {
+            time = row.get("timestamp");
+        }
+        if (time != null && time.isNumber()) {
+            return time.getLongValue();
+        }
+        if (time != null && time.isTextual()) {
+            try {
+                return parseTime(time.getTextValue());
+            } catch (DateTimeParseException e) {
+                throw new IOException("Unable to read the time of row " + row, e);
+            }
+        }
+        throw new IOException("Row " + row + " has no time");
+    }
+
+    /**
+     * @return the values of a JSON array, or of a comma-separated list
+     */
+    static List<String> parseList(final ObjectMapper mapper, final String value) {
+        final List<String> values = new ArrayList<>();
+        if (value == null || value.trim().isEmpty()) {
+            return values;
+        }
+        final String trimmed = value.trim();
+        if (trimmed.startsWith("[")) {
+            try {
+                for (JsonNode element : mapper.readTree(trimmed)) {
+                    if (!element.isNull() && !element.asText().isEmpty()) {
+                        values.add(element.asText());
+                    }
+                }
+                return values;
+            } catch (IOException e) {
+                // not JSON after all, such as [a,b] without quotes
+            }
+        }
+        for (String element : trimmed.replaceAll("^\\[|\\]$", "").split(",")) {
+            final String unquoted = element.trim().replaceAll("^\"|\"$", "");
+            if (!unquoted.isEmpty()) {
+                values.add(unquoted);
+            }
+        }
+        return values;
+    }
+
+    private static boolean isEmpty(final String value) {
+        return value == null || value.trim().isEmpty();
+    }
+}
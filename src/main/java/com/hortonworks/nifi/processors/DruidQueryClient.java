@@ -0,0 +1,353 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hortonworks.nifi.processors;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.ObjectNode;
+
+/**
+ * Sends native queries to a Druid broker and hands back the response as a stream, so that results can be decoded
+ * while they arrive. Every query runs under a query id, which lets {@link #cancelAll()} stop the queries in flight
+ * on the broker as well as locally.
+ */
+class DruidQueryClient {
+
+    private final String queryUrl;
+    private final String authorization;
+    private final int connectTimeoutMillis;
+    private final int readTimeoutMillis;
+    private final Map<String, HttpURLConnection> running = new ConcurrentHashMap<>();
+
+    /**
+     * @param authorization the value of the Authorization header, or null to send none
+     */
+    DruidQueryClient(final String brokerUrl, final String authorization, final int connectTimeoutMillis, final int readTimeoutMillis) {
+        this.queryUrl = (brokerUrl.endsWith("/") ? brokerUrl.substring(0, brokerUrl.length() - 1) : brokerUrl) + "/druid/v2";
+        this.authorization = authorization;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+    }
+
+    /**
+     * Posts a query. Closing the returned stream ends the query, and cancels it on the broker if it was not read to
+     * the end.
+     *
+     * @param queryId the id the query carries in its context
+     */
+    InputStream query(final String queryId, final String query) throws IOException {
+        final HttpURLConnection connection = open(queryUrl, "POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "application/json");
+        running.put(queryId, connection);
+        try {
+            try (OutputStream os = connection.getOutputStream()) {
+                os.write(query.getBytes(StandardCharsets.UTF_8));
+            }
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Druid query " + queryId + " failed : HTTP error code : " + connection.getResponseCode() + " : "
+                        + readError(connection));
+            }
+            return new FilterInputStream(connection.getInputStream()) {
+                private boolean ended;
+
+                @Override
+                public int read() throws IOException {
+                    final int read = super.read();
+                    ended |= read < 0;
+                    return read;
+                }
+
+                @Override
+                public int read(final byte[] b, final int off, final int len) throws IOException {
+                    final int read = super.read(b, off, len);
+                    ended |= read < 0;
+                    return read;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    if (running.remove(queryId) != null && !ended) {
+                        cancel(queryId);
+                        connection.disconnect();
+                    }
+                    super.close();
+                }
+            };
+        } catch (IOException e) {
+            running.remove(queryId);
+            connection.disconnect();
+            throw e;
+        }
+    }
+
+    /**
+     * Receives the rows of a query as they are decoded.
+     */
+    interface RowHandler {
+        void row(JsonNode row) throws IOException;
+    }
+
+    /**
+     * Runs a scan query, which the broker streams in batches, and hands each row on as it is parsed.
+     *
+     * @return the number of rows handed on
+     */
+    long scan(final ObjectMapper mapper, final ObjectNode query, final String queryId, final int pageSize, final long maxRows,
+            final RowHandler rows) throws IOException {
+        query.put("batchSize", pageSize);
+        if (maxRows != Long.MAX_VALUE && (!query.path("limit").isNumber() || query.get("limit").getLongValue() > maxRows)) {
+            query.put("limit", maxRows);
+        }
+        long count = 0;
+        try (InputStream in = query(queryId, mapper.writeValueAsString(query));
+                JsonParser parser = mapper.getJsonFactory().createJsonParser(in)) {
+            expect(parser, JsonToken.START_ARRAY);
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                List<String> columns = null;
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    final String field = parser.getCurrentName();
+                    parser.nextToken();
+                    if ("columns".equals(field)) {
+                        columns = new ArrayList<>();
+                        for (JsonNode column : parser.readValueAsTree()) {
+                            columns.add(column.asText());
+                        }
+                    } else if ("events".equals(field)) {
+                        while (parser.nextToken() != JsonToken.END_ARRAY) {
+                            final JsonNode event = parser.readValueAsTree();
+                            rows.row(event.isArray() ? toObject(mapper, columns, (ArrayNode) event) : event);
+                            if (++count >= maxRows) {
+                                return count;
+                            }
+                        }
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            }
+            readToEnd(parser);
+        }
+        return count;
+    }
+
+    /**
+     * Runs a groupBy query and hands on the event of each result row as it is parsed, with the time bucket of the row
+     * added to it as timestamp.
+     *
+     * @return the number of rows handed on
+     */
+    long groupBy(final ObjectMapper mapper, final ObjectNode query, final String queryId, final long maxRows,
+            final RowHandler rows) throws IOException {
+        if (maxRows != Long.MAX_VALUE) {
+            final ObjectNode limitSpec = query.putObject("limitSpec");
+            limitSpec.put("type", "default");
+            limitSpec.put("limit", maxRows);
+        }
+        long count = 0;
+        try (InputStream in = query(queryId, mapper.writeValueAsString(query));
+                JsonParser parser = mapper.getJsonFactory().createJsonParser(in)) {
+            expect(parser, JsonToken.START_ARRAY);
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                final JsonNode result = parser.readValueAsTree();
+                final JsonNode event = result.get("event");
+                if (event instanceof ObjectNode) {
+                    ((ObjectNode) event).put("timestamp", result.get("timestamp"));
+                    rows.row(event);
+                    if (++count >= maxRows) {
+                        return count;
+                    }
+                }
+            }
+            readToEnd(parser);
+        }
+        return count;
+    }
+
+    /**
+     * Runs a select query page by page, passing the paging identifiers of each page on to the next, until a page is empty.
+     *
+     * @return the number of rows handed on
+     */
+    long select(final ObjectMapper mapper, final ObjectNode query, final String queryId, final int pageSize, final long maxRows,
+            final RowHandler rows) throws IOException {
+        final ObjectNode pagingSpec = mapper.createObjectNode();
+        pagingSpec.put("pagingIdentifiers", mapper.createObjectNode());
+        pagingSpec.put("fromNext", true);
+        query.put("pagingSpec", pagingSpec);
+        long count = 0;
+        int page = 0;
+        while (true) {
+            pagingSpec.put("threshold", (int) Math.min(pageSize, maxRows - count));
+            final String pageQueryId = queryId + "-" + page++;
+            ((ObjectNode) query.get("context")).put("queryId", pageQueryId);
+            final ObjectNode pagingIdentifiers = mapper.createObjectNode();
+            long pageCount = 0;
+            try (InputStream in = query(pageQueryId, mapper.writeValueAsString(query));
+                    JsonParser parser = mapper.getJsonFactory().createJsonParser(in)) {
+                expect(parser, JsonToken.START_ARRAY);
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        final String field = parser.getCurrentName();
+                        parser.nextToken();
+                        if (!"result".equals(field)) {
+                            parser.skipChildren();
+                            continue;
+                        }
+                        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                            final String resultField = parser.getCurrentName();
+                            parser.nextToken();
+                            if ("pagingIdentifiers".equals(resultField)) {
+                                pagingIdentifiers.putAll((ObjectNode) parser.readValueAsTree());
+                            } else if ("events".equals(resultField)) {
+                                while (parser.nextToken() != JsonToken.END_ARRAY) {
+                                    final JsonNode event = parser.readValueAsTree().get("event");
+                                    if (event != null) {
+                                        rows.row(event);
+                                    }
+                                    pageCount++;
+                                    if (++count >= maxRows) {
+                                        return count;
+                                    }
+                                }
+                            } else {
+                                parser.skipChildren();
+                            }
+                        }
+                    }
+                }
+                readToEnd(parser);
+            }
+            if (pageCount == 0 || pagingIdentifiers.size() == 0) {
+                return count;
+            }
+            pagingSpec.put("pagingIdentifiers", pagingIdentifiers);
+        }
+    }
+
+    /**
+     * Runs a query with a small result, such as a segmentMetadata query, and reads the whole response.
+     */
+    JsonNode fetch(final ObjectMapper mapper, final ObjectNode query, final String queryId) throws IOException {
+        if (!query.path("context").isObject()) {
+            query.put("context", mapper.createObjectNode());
+        }
+        ((ObjectNode) query.get("context")).put("queryId", queryId);
+        try (InputStream in = query(queryId, mapper.writeValueAsString(query));
+                JsonParser parser = mapper.getJsonFactory().createJsonParser(in)) {
+            parser.nextToken();
+            final JsonNode response = parser.readValueAsTree();
+            readToEnd(parser);
+            return response;
+        }
+    }
+
+    private static void expect(final JsonParser parser, final JsonToken token) throws IOException {
+        if (parser.nextToken() != token) {
+            throw new IOException("Unexpected Druid response: expected " + token + " but got " + parser.getCurrentToken());
+        }
+    }
+
+    /**
+     * Reads past the end of a response that was read completely, so that closing it does not cancel the query.
+     */
+    private static void readToEnd(final JsonParser parser) throws IOException {
+        while (parser.nextToken() != null) {
+            parser.skipChildren();
+        }
+    }
+
+    private static JsonNode toObject(final ObjectMapper mapper, final List<String> columns, final ArrayNode values) throws IOException {
+        if (columns == null) {
+            throw new IOException("Druid returned a compacted list without columns");
+        }
+        final ObjectNode row = mapper.createObjectNode();
+        for (int i = 0; i < columns.size() && i < values.size(); i++) {
+            row.put(columns.get(i), values.get(i));
+        }
+        return row;
+    }
+
+    /**
+     * Cancels every query in flight, on the broker and locally, so that threads reading their results fail promptly.
+     */
+    void cancelAll() {
+        for (String queryId : running.keySet()) {
+            final HttpURLConnection connection = running.remove(queryId);
+            if (connection != null) {
+                cancel(queryId);
+                connection.disconnect();
+            }
+        }
+    }
+
+    private void cancel(final String queryId) {
+        try {
+            final HttpURLConnection connection = open(queryUrl + "/" + URLEncoder.encode(queryId, "UTF-8"), "DELETE");
+            connection.getResponseCode();
+            connection.disconnect();
+        } catch (IOException e) {
+            // the broker drops the query on its own once the client is gone
+        }
+    }
+
+    private HttpURLConnection open(final String url, final String method) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(connectTimeoutMillis);
+        connection.setReadTimeout(readTimeoutMillis);
+        if (authorization != null) {
+            connection.setRequestProperty("Authorization", authorization);
+        }
+        return connection;
+    }
+
+    private static String readError(final HttpURLConnection connection) throws IOException {
+        final InputStream error = connection.getErrorStream();
+        if (error == null) {
+            return connection.getResponseMessage();
+        }
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try {
+            final byte[] buffer = new byte[4096];
+            int read;
+            while ((read = error.read(buffer)) != -1 && body.size() < 65536) {
+                body.write(buffer, 0, read);
+            }
+        } finally {
+            error.close();
+        }
+        return new String(body.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hortonworks.nifi.processors;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A least recently used cache of the rows of one tag in one aligned time bucket, bounded by the bytes it holds. A
+ * bucket expires once it has been cached for the maximum age, so that rows Druid received late, or segments it
+ * re-indexed, are eventually queried again.
+ *
+ * Thread safe.
+ */
+class DruidResultCache {
+
+    /**
+     * Accounts for the key and the map entry besides the rows themselves.
+     */
+    private static final int ENTRY_OVERHEAD = 128;
+
+    /**
+     * The rows of a tag in a bucket, one JSON object per line.
+     */
+    static class Bucket {
+        private final byte[] lines;
+        private final long count;
+
+        Bucket(final byte[] lines, final long count) {
+            this.lines = lines;
+            this.count = count;
+        }
+
+        byte[] getLines() {
+            return lines;
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        private long weight(final String key) {
+            return lines.length + 2L * key.length() + ENTRY_OVERHEAD;
+        }
+    }
+
+    private static class Entry {
+        private final Bucket bucket;
+        private final long cachedAt;
+
+        Entry(final Bucket bucket, final long cachedAt) {
+            this.bucket = bucket;
+            this.cachedAt = cachedAt;
+        }
+    }
+
+    private final long maxBytes;
+    private final long maxAgeMillis;
+    private final Map<String, Entry> buckets = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    private long hits;
+    private long misses;
+
+    DruidResultCache(final long maxBytes, final long maxAgeMillis) {
+        this.maxBytes = maxBytes;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    static String key(final String query, final String tag, final long bucketStart) {
+        return query + '\u0000' + tag + '\u0000' + bucketStart;
+    }
+
+    /**
+     * @return the cached rows, or null if the bucket is not cached or has expired
+     */
+    synchronized Bucket get(final String key) {
+        final Entry entry = buckets.get(key);
+        if (entry != null && System.currentTimeMillis() - entry.cachedAt < maxAgeMillis) {
+            hits++;
+            return entry.bucket;
+        }
+        if (entry != null) {
+            buckets.remove(key);
+            bytes -= entry.bucket.weight(key);
+        }
+        misses++;
+        return null;
+    }
+
+    /**
+     * Caches the rows of a bucket, evicting the least recently used buckets to stay within the size of the cache.
+     * A bucket larger than the whole cache is not cached.
+     */
+    synchronized void put(final String key, final Bucket bucket) {
+        final long weight = bucket.weight(key);
+        if (weight > maxBytes) {
+            return;
+        }
+        final Entry previous = buckets.put(key, new Entry(bucket, System.currentTimeMillis()));
+        if (previous != null) {
+            bytes -= previous.bucket.weight(key);
+        }
+        bytes += weight;
+        for (Iterator<Map.Entry<String, Entry>> eldest = buckets.entrySet().iterator(); bytes > maxBytes && eldest.hasNext();) {
+            final Map.Entry<String, Entry> entry = eldest.next();
+            bytes -= entry.getValue().bucket.weight(entry.getKey());
+            eldest.remove();
+        }
+    }
+
+    synchronized long getBytes() {
+        return bytes;
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+}
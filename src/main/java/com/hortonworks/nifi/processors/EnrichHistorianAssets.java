@@ -0,0 +1,225 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hortonworks.nifi.processors;
+
+import org.apache.nifi.annotation.behavior.EventDriven;
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.behavior.InputRequirement.Requirement;
+import org.apache.nifi.annotation.behavior.SupportsBatching;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.SeeAlso;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.io.StreamCallback;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ObjectNode;
+
+import com.hortonworks.nifi.controller.AssetPathSnapshot;
+import com.hortonworks.nifi.controller.HistorianMetadataIndexService;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+@EventDriven
+@SupportsBatching
+@Tags({"historian", "asset", "enrich", "druid"})
+@InputRequirement(Requirement.INPUT_REQUIRED)
+@CapabilityDescription("Adds the path of the asset each historian event was measured on to the event, one dimension per level of the asset hierarchy, "
+        + "so that Druid can filter and roll up by asset without expanding assets to their tags. The content is one JSON event per line. The asset "
+        + "paths come from a snapshot of the asset hierarchy held by a Historian Metadata Index Service, which is only rebuilt when the hierarchy changes. "
+        + "Events whose tag is not attached to any asset are passed on unchanged.")
+@WritesAttributes({
+    @WritesAttribute(attribute = "asset.snapshot.version", description = "The version of the asset hierarchy snapshot the events were enriched from."),
+    @WritesAttribute(attribute = "asset.enriched.count", description = "The number of events whose tag was attached to an asset."),
+    @WritesAttribute(attribute = "asset.unmatched.count", description = "The number of events whose tag was not attached to any asset.")
+})
+@SeeAlso(classNames = {"com.hortonworks.nifi.controller.StandardHistorianMetadataIndexService", "com.hortonworks.nifi.processors.LookupHistorianMetadata"})
+public class EnrichHistorianAssets extends AbstractProcessor {
+
+    public static final PropertyDescriptor PROP_METADATA_INDEX_SERVICE = new PropertyDescriptor.Builder()
+            .name("Historian Metadata Index Service")
+            .description("The Controller Service that holds the asset hierarchy.")
+            .required(true)
+            .identifiesControllerService(HistorianMetadataIndexService.class)
+            .build();
+
+    public static final PropertyDescriptor PROP_TAG_FIELD = new PropertyDescriptor.Builder()
+            .name("Tag Field")
+            .description("The field of each event holding the tag.")
+            .required(true)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .defaultValue("tag")
+            .build();
+
+    public static final PropertyDescriptor PROP_ASSET_LEVEL_DIMENSIONS = new PropertyDescriptor.Builder()
+            .name("Asset Level Dimensions")
+            .description("A comma-separated list of the fields to put the levels of the asset path in, from the root of the hierarchy down, "
+                    + "such as site,mine,truck. Levels beyond the last field are not added, and fields beyond the depth of the asset are left out.")
+            .required(true)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor PROP_ASSET_PATH_DIMENSION = new PropertyDescriptor.Builder()
+            .name("Asset Path Dimension")
+            .description("If set, the whole asset path, with the levels separated by periods, is put in this field as well.")
+            .required(false)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final Relationship REL_SUCCESS = new Relationship.Builder()
+            .name("success")
+            .description("FlowFiles whose events were enriched are routed to this relationship")
+            .build();
+    public static final Relationship REL_FAILURE = new Relationship.Builder()
+            .name("failure")
+            .description("FlowFiles with content that is not one JSON object per line are routed to this relationship")
+            .build();
+    private final Set<Relationship> relationships;
+
+    public EnrichHistorianAssets() {
+        final Set<Relationship> rels = new HashSet<>();
+        rels.add(REL_SUCCESS);
+        rels.add(REL_FAILURE);
+        relationships = Collections.unmodifiableSet(rels);
+    }
+
+    @Override
+    protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        final List<PropertyDescriptor> descriptors = new ArrayList<>();
+        descriptors.add(PROP_METADATA_INDEX_SERVICE);
+        descriptors.add(PROP_TAG_FIELD);
+        descriptors.add(PROP_ASSET_LEVEL_DIMENSIONS);
+        descriptors.add(PROP_ASSET_PATH_DIMENSION);
+        return descriptors;
+    }
+
+    @Override
+    public Set<Relationship> getRelationships() {
+        return relationships;
+    }
+
+    @Override
+    public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
+        FlowFile flowFile = session.get();
+        if (flowFile == null) {
+            return;
+        }
+
+        final ComponentLog logger = getLogger();
+        final AssetPathSnapshot snapshot = context.getProperty(PROP_METADATA_INDEX_SERVICE)
+                .asControllerService(HistorianMetadataIndexService.class).getAssetPathSnapshot();
+        final String tagField = context.getProperty(PROP_TAG_FIELD).getValue();
+        final String[] levelDimensions = context.getProperty(PROP_ASSET_LEVEL_DIMENSIONS).getValue().split("\\s*,\\s*");
+        final String pathDimension = context.getProperty(PROP_ASSET_PATH_DIMENSION).getValue();
+        final long[] counts = new long[2];
+
+        try {
+            flowFile = session.write(flowFile, new StreamCallback() {
+                @Override
+                public void process(final InputStream in, final OutputStream out) throws IOException {
+                    final ObjectMapper mapper = new ObjectMapper();
+                    final Map<String[], String> joinedPaths = new HashMap<>();
+                    final BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+                    final BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+                    String line;
+                    boolean first = true;
+                    while ((line = reader.readLine()) != null) {
+                        if (line.trim().isEmpty()) {
+                            continue;
+                        }
+                        if (!first) {
+                            writer.write('\n');
+                        }
+                        first = false;
+
+                        final JsonNode event = mapper.readTree(line);
+                        final JsonNode tag = event.get(tagField);
+                        final String[] path = tag == null || !(event instanceof ObjectNode) ? null : snapshot.getAssetPath(tag.asText());
+                        if (path == null) {
+                            counts[1]++;
+                            writer.write(line);
+                            continue;
+                        }
+                        counts[0]++;
+                        final ObjectNode enriched = (ObjectNode) event;
+                        for (int level = 0; level < levelDimensions.length && level < path.length; level++) {
+                            enriched.put(levelDimensions[level], path[level]);
+                        }
+                        if (pathDimension != null) {
+                            // snapshots share one path array per asset, so each path is joined once per FlowFile
+                            String joinedPath = joinedPaths.get(path);
+                            if (joinedPath == null) {
+                                joinedPath = join(path);
+                                joinedPaths.put(path, joinedPath);
+                            }
+                            enriched.put(pathDimension, joinedPath);
+                        }
+                        writer.write(mapper.writeValueAsString(enriched));
+                    }
+                    writer.flush();
+                }
+            });
+        } catch (final ProcessException e) {
+            logger.error("Unable to enrich the events of {} due to {}", new Object[]{flowFile, e});
+            flowFile = session.penalize(flowFile);
+            session.transfer(flowFile, REL_FAILURE);
+            return;
+        }
+
+        final Map<String, String> attributes = new HashMap<>();
+        attributes.put("asset.snapshot.version", String.valueOf(snapshot.getVersion()));
+        attributes.put("asset.enriched.count", String.valueOf(counts[0]));
+        attributes.put("asset.unmatched.count", String.valueOf(counts[1]));
+        flowFile = session.putAllAttributes(flowFile, attributes);
+        session.transfer(flowFile, REL_SUCCESS);
+    }
+
+    private static String join(final String[] path) {
+        final StringBuilder joined = new StringBuilder();
+        for (String level : path) {
+            if (joined.length() > 0) {
+                joined.append('.');
+            }
+            joined.append(level);
+        }
+        return joined.toString();
+    }
+}
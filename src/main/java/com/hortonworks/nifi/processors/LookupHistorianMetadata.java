@@ -0,0 +1,302 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hortonworks.nifi.processors;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.nifi.annotation.behavior.EventDriven;
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.behavior.InputRequirement.Requirement;
+import org.apache.nifi.annotation.behavior.SupportsBatching;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.SeeAlso;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.expression.AttributeExpression.ResultType;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import com.hortonworks.nifi.controller.HistorianMetadataIndexService;
+import com.hortonworks.nifi.controller.TagMetadata;
+import com.hortonworks.nifi.controller.TagNameIndex;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+@EventDriven
+@SupportsBatching
+@Tags({"historian", "metadata", "lookup", "atlas"})
+@InputRequirement(Requirement.INPUT_REQUIRED)
+@CapabilityDescription("Resolves a comma-separated list of historian tags to the column, table and Druid datasource they are stored in, using the "
+        + "in-memory index of a Historian Metadata Index Service instead of Atlas or the Distributed Map Cache. The result has the same layout as "
+        + "the result of BulkFetchDistributedMapCache: a JSON array with one object per tag found, keyed by the lower-cased tag and granularity, "
+        + "holding the tagName, function, columnName and tableName like the cache entries of the orchestrator flow. The column of the first tag "
+        + "found can also be written as a single object, in place of the FetchDistributedMapCache of the query metadata. "
+        + "If an asset is given, the tags of every asset below it are resolved as well, and can be written out as a Druid filter.")
+@WritesAttributes({
+    @WritesAttribute(attribute = "user-defined", description = "The attribute named by the 'Put Metadata In Attribute' property holds the JSON result."),
+    @WritesAttribute(attribute = "user-defined", description = "The attribute named by the 'Put Druid Filter In Attribute' property, if set, "
+            + "holds an or-filter of selector filters on the tag dimension for every tag resolved."),
+    @WritesAttribute(attribute = "user-defined", description = "The attribute named by the 'Put Column Metadata In Attribute' property, if set, "
+            + "holds the function, columnName and tableName of the column of the first tag resolved.")
+})
+@SeeAlso(classNames = {"com.hortonworks.nifi.controller.StandardHistorianMetadataIndexService", "com.hortonworks.nifi.processors.BulkFetchDistributedMapCache"})
+public class LookupHistorianMetadata extends AbstractProcessor {
+
+    public static final PropertyDescriptor PROP_METADATA_INDEX_SERVICE = new PropertyDescriptor.Builder()
+            .name("Historian Metadata Index Service")
+            .description("The Controller Service that holds the historian metadata index.")
+            .required(true)
+            .identifiesControllerService(HistorianMetadataIndexService.class)
+            .build();
+
+    public static final PropertyDescriptor PROP_TAG_NAMES = new PropertyDescriptor.Builder()
+            .name("Tag Names")
+            .description("A comma-separated list of the tags to resolve. A tag containing '*' or '?' is a pattern, matched case-insensitively "
+                    + "against the tag names and the business terms the tags are attached to. A tag ending in a single '*' completes "
+                    + "the prefix before it.")
+            .required(false)
+            .addValidator(StandardValidators.createAttributeExpressionLanguageValidator(ResultType.STRING, true))
+            .defaultValue("${function}")
+            .expressionLanguageSupported(true)
+            .build();
+
+    public static final PropertyDescriptor PROP_MAX_PATTERN_TAGS = new PropertyDescriptor.Builder()
+            .name("Max Tags Per Pattern")
+            .description("The maximum number of tags a tag name pattern expands to.")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("1000")
+            .build();
+
+    public static final PropertyDescriptor PROP_ASSET = new PropertyDescriptor.Builder()
+            .name("Asset")
+            .description("An asset whose tags, and the tags of every asset below it, are resolved in addition to the Tag Names. Either the "
+                    + "qualified name of the historian_asset or its path in the hierarchy, such as MineA.Pit1.")
+            .required(false)
+            .addValidator(StandardValidators.createAttributeExpressionLanguageValidator(ResultType.STRING, true))
+            .expressionLanguageSupported(true)
+            .build();
+
+    public static final PropertyDescriptor PROP_ASSET_DEPTH = new PropertyDescriptor.Builder()
+            .name("Asset Depth")
+            .description("The number of levels below the Asset to include. If empty, the whole subtree is included.")
+            .required(false)
+            .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor PROP_GRANULARITY = new PropertyDescriptor.Builder()
+            .name("Granularity")
+            .description("The granularity of the datasource to resolve the tags in. If empty, the tags are resolved in every datasource they were found in.")
+            .required(false)
+            .addValidator(StandardValidators.createAttributeExpressionLanguageValidator(ResultType.STRING, true))
+            .defaultValue("${granularity}")
+            .expressionLanguageSupported(true)
+            .build();
+
+    public static final PropertyDescriptor PROP_PUT_METADATA_IN_ATTRIBUTE = new PropertyDescriptor.Builder()
+            .name("Put Metadata In Attribute")
+            .description("The attribute to put the JSON result in.")
+            .required(true)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .defaultValue("tagMetaData")
+            .build();
+
+    public static final PropertyDescriptor PROP_PUT_COLUMN_METADATA_IN_ATTRIBUTE = new PropertyDescriptor.Builder()
+            .name("Put Column Metadata In Attribute")
+            .description("If set, the metadata of the column of the first tag resolved is put in this attribute as a single JSON object.")
+            .required(false)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .defaultValue("queryMetaData")
+            .build();
+
+    public static final PropertyDescriptor PROP_PUT_DRUID_FILTER_IN_ATTRIBUTE = new PropertyDescriptor.Builder()
+            .name("Put Druid Filter In Attribute")
+            .description("If set, an or-filter of selector filters on the Tag Dimension for every tag resolved is put in this attribute.")
+            .required(false)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor PROP_TAG_DIMENSION = new PropertyDescriptor.Builder()
+            .name("Tag Dimension")
+            .description("The Druid dimension holding the tags, used for the Druid filter.")
+            .required(true)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .defaultValue("function")
+            .build();
+
+    static final String ASSET_QUALIFIED_NAME_PREFIX = "historian_asset.";
+
+    public static final Relationship REL_SUCCESS = new Relationship.Builder()
+            .name("success")
+            .description("FlowFiles for which at least one tag was resolved are routed to this relationship")
+            .build();
+    public static final Relationship REL_NOT_FOUND = new Relationship.Builder()
+            .name("not-found")
+            .description("FlowFiles for which none of the tags is in the index are routed to this relationship")
+            .build();
+    public static final Relationship REL_FAILURE = new Relationship.Builder()
+            .name("failure")
+            .description("FlowFiles without tags to resolve are penalized and routed to this relationship")
+            .build();
+    private final Set<Relationship> relationships;
+
+    public LookupHistorianMetadata() {
+        final Set<Relationship> rels = new HashSet<>();
+        rels.add(REL_SUCCESS);
+        rels.add(REL_NOT_FOUND);
+        rels.add(REL_FAILURE);
+        relationships = Collections.unmodifiableSet(rels);
+    }
+
+    @Override
+    protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        final List<PropertyDescriptor> descriptors = new ArrayList<>();
+        descriptors.add(PROP_METADATA_INDEX_SERVICE);
+        descriptors.add(PROP_TAG_NAMES);
+        descriptors.add(PROP_MAX_PATTERN_TAGS);
+        descriptors.add(PROP_ASSET);
+        descriptors.add(PROP_ASSET_DEPTH);
+        descriptors.add(PROP_GRANULARITY);
+        descriptors.add(PROP_PUT_METADATA_IN_ATTRIBUTE);
+        descriptors.add(PROP_PUT_COLUMN_METADATA_IN_ATTRIBUTE);
+        descriptors.add(PROP_PUT_DRUID_FILTER_IN_ATTRIBUTE);
+        descriptors.add(PROP_TAG_DIMENSION);
+        return descriptors;
+    }
+
+    @Override
+    public Set<Relationship> getRelationships() {
+        return relationships;
+    }
+
+    @Override
+    public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
+        FlowFile flowFile = session.get();
+        if (flowFile == null) {
+            return;
+        }
+
+        final ComponentLog logger = getLogger();
+        final HistorianMetadataIndexService index = context.getProperty(PROP_METADATA_INDEX_SERVICE).asControllerService(HistorianMetadataIndexService.class);
+        final Set<String> tags = new LinkedHashSet<>();
+        final String tagNames = context.getProperty(PROP_TAG_NAMES).evaluateAttributeExpressions(flowFile).getValue();
+        if (!StringUtils.isBlank(tagNames)) {
+            final int maxPatternTags = context.getProperty(PROP_MAX_PATTERN_TAGS).asInteger();
+            for (String tag : tagNames.split(",")) {
+                tag = tag.trim();
+                final String prefix = tag.endsWith("*") ? tag.substring(0, tag.length() - 1) : null;
+                if (prefix != null && !TagNameIndex.isPattern(prefix)) {
+                    tags.addAll(index.completeTags(prefix, maxPatternTags));
+                } else if (TagNameIndex.isPattern(tag)) {
+                    tags.addAll(index.searchTags(tag, maxPatternTags));
+                } else if (!tag.isEmpty()) {
+                    tags.add(tag);
+                }
+            }
+        }
+        final String asset = context.getProperty(PROP_ASSET).evaluateAttributeExpressions(flowFile).getValue();
+        if (!StringUtils.isBlank(asset)) {
+            final String qualifiedName = asset.startsWith(ASSET_QUALIFIED_NAME_PREFIX) ? asset : ASSET_QUALIFIED_NAME_PREFIX + asset;
+            final Integer depth = context.getProperty(PROP_ASSET_DEPTH).asInteger();
+            tags.addAll(index.expandAssetTags(qualifiedName, depth == null ? -1 : depth));
+        }
+        if (StringUtils.isBlank(tagNames) && StringUtils.isBlank(asset)) {
+            logger.error("FlowFile {} has no tags or asset to resolve", new Object[]{flowFile});
+            flowFile = session.penalize(flowFile);
+            session.transfer(flowFile, REL_FAILURE);
+            return;
+        }
+        final String granularity = context.getProperty(PROP_GRANULARITY).evaluateAttributeExpressions(flowFile).getValue();
+
+        final List<Map<String, Object>> results = new ArrayList<>();
+        final List<String> resolvedTags = new ArrayList<>();
+        for (String tag : tags) {
+            final List<TagMetadata> found;
+            if (StringUtils.isBlank(granularity)) {
+                found = index.lookupTag(tag);
+            } else {
+                final TagMetadata metadata = index.lookupTag(tag, granularity);
+                found = metadata == null ? Collections.<TagMetadata>emptyList() : Collections.singletonList(metadata);
+            }
+            for (TagMetadata metadata : found) {
+                final Map<String, Object> result = new HashMap<>();
+                result.put(tag.toLowerCase() + String.valueOf(metadata.getGranularity()).toLowerCase(), metadata.toMap());
+                results.add(result);
+            }
+            if (!found.isEmpty()) {
+                resolvedTags.add(tag);
+            }
+        }
+
+        if (results.isEmpty()) {
+            logger.debug("None of the tags of {} is in the metadata index; routing to not-found", new Object[]{flowFile});
+            session.transfer(flowFile, REL_NOT_FOUND);
+            return;
+        }
+        try {
+            final ObjectMapper mapper = new ObjectMapper();
+            final String attributeName = context.getProperty(PROP_PUT_METADATA_IN_ATTRIBUTE).getValue();
+            flowFile = session.putAttribute(flowFile, attributeName, mapper.writeValueAsString(results));
+            if (context.getProperty(PROP_PUT_COLUMN_METADATA_IN_ATTRIBUTE).isSet()) {
+                final String columnAttributeName = context.getProperty(PROP_PUT_COLUMN_METADATA_IN_ATTRIBUTE).getValue();
+                flowFile = session.putAttribute(flowFile, columnAttributeName, mapper.writeValueAsString(results.get(0).values().iterator().next()));
+            }
+            if (context.getProperty(PROP_PUT_DRUID_FILTER_IN_ATTRIBUTE).isSet()) {
+                final String filterAttributeName = context.getProperty(PROP_PUT_DRUID_FILTER_IN_ATTRIBUTE).getValue();
+                final String tagDimension = context.getProperty(PROP_TAG_DIMENSION).getValue();
+                flowFile = session.putAttribute(flowFile, filterAttributeName, mapper.writeValueAsString(toDruidFilter(tagDimension, resolvedTags)));
+            }
+            session.transfer(flowFile, REL_SUCCESS);
+        } catch (final IOException e) {
+            flowFile = session.penalize(flowFile);
+            session.transfer(flowFile, REL_FAILURE);
+            logger.error("Unable to serialize the metadata of {} due to {}", new Object[]{flowFile, e});
+        }
+    }
+
+    static Map<String, Object> toDruidFilter(final String tagDimension, final List<String> tags) {
+        final List<Map<String, Object>> fields = new ArrayList<>(tags.size());
+        for (String tag : tags) {
+            final Map<String, Object> selector = new LinkedHashMap<>();
+            selector.put("type", "selector");
+            selector.put("dimension", tagDimension);
+            selector.put("value", tag);
+            fields.add(selector);
+        }
+        final Map<String, Object> filter = new LinkedHashMap<>();
+        filter.put("type", "or");
+        filter.put("fields", fields);
+        return filter;
+    }
+}
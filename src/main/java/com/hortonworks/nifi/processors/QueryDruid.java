@@ -0,0 +1,400 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hortonworks.nifi.processors;
+
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.behavior.InputRequirement.Requirement;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnUnscheduled;
+import org.apache.nifi.components.AllowableValue;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.expression.AttributeExpression.ResultType;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.io.OutputStreamCallback;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ObjectNode;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+@Tags({"historian", "druid", "query", "scan", "select", "stream"})
+@InputRequirement(Requirement.INPUT_ALLOWED)
+@CapabilityDescription("Runs a Druid scan or select query against the broker and writes the rows to the content of a FlowFile as they arrive, one "
+        + "JSON object per line or as CSV, so that large time ranges are read with constant memory. Select queries are paged automatically: the "
+        + "paging identifiers of each page are fed into the next query until a page comes back empty. Reading stops at the Max Rows limit, and "
+        + "stopping the processor cancels the queries in flight on the broker. If the processor has an incoming connection, the query is evaluated "
+        + "against each incoming FlowFile, which is routed to original once the result is written.")
+@WritesAttributes({
+    @WritesAttribute(attribute = "druid.query.id", description = "The id the query ran under, which names it in the Druid request logs."),
+    @WritesAttribute(attribute = "druid.row.count", description = "The number of rows written."),
+    @WritesAttribute(attribute = "druid.query.millis", description = "The time the query took, from sending it to reading its last row."),
+    @WritesAttribute(attribute = "druid.truncated", description = "Whether reading stopped at the Max Rows limit."),
+    @WritesAttribute(attribute = "mime.type", description = "application/json for JSON lines, text/csv for CSV.")
+})
+public class QueryDruid extends AbstractProcessor {
+
+    public static final AllowableValue FORMAT_JSON_LINES = new AllowableValue("JSON Lines", "JSON Lines", "One JSON object per row and line.");
+    public static final AllowableValue FORMAT_CSV = new AllowableValue("CSV", "CSV", "Comma-separated values with a header line.");
+
+    public static final PropertyDescriptor PROP_BROKER_URL = new PropertyDescriptor.Builder()
+            .name("Druid Broker URL")
+            .description("The HTTP endpoint of the Druid broker, such as http://druid-broker:8082.")
+            .required(true)
+            .addValidator(StandardValidators.URL_VALIDATOR)
+            .expressionLanguageSupported(true)
+            .build();
+
+    public static final PropertyDescriptor PROP_QUERY = new PropertyDescriptor.Builder()
+            .name("Druid Query")
+            .description("The native Druid query to run, of query type scan or select. The pagingSpec of a select query and the limit of a scan "
+                    + "query are set by this processor.")
+            .required(true)
+            .addValidator(StandardValidators.createAttributeExpressionLanguageValidator(ResultType.STRING, true))
+            .expressionLanguageSupported(true)
+            .build();
+
+    public static final PropertyDescriptor PROP_PAGE_SIZE = new PropertyDescriptor.Builder()
+            .name("Page Size")
+            .description("The number of rows a select query returns per page, and a scan query per batch.")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("5000")
+            .build();
+
+    public static final PropertyDescriptor PROP_MAX_ROWS = new PropertyDescriptor.Builder()
+            .name("Max Rows")
+            .description("The maximum number of rows to write. If empty, all rows are written.")
+            .required(false)
+            .addValidator(StandardValidators.POSITIVE_LONG_VALIDATOR)
+            .expressionLanguageSupported(true)
+            .build();
+
+    public static final PropertyDescriptor PROP_OUTPUT_FORMAT = new PropertyDescriptor.Builder()
+            .name("Output Format")
+            .description("How the rows are written.")
+            .required(true)
+            .allowableValues(FORMAT_JSON_LINES, FORMAT_CSV)
+            .defaultValue(FORMAT_JSON_LINES.getValue())
+            .build();
+
+    public static final PropertyDescriptor PROP_CSV_COLUMNS = new PropertyDescriptor.Builder()
+            .name("CSV Columns")
+            .description("A comma-separated list of the columns to write as CSV, in order. If empty, the columns of the first row are written.")
+            .required(false)
+            .addValidator(StandardValidators.createAttributeExpressionLanguageValidator(ResultType.STRING, true))
+            .expressionLanguageSupported(true)
+            .build();
+
+    public static final PropertyDescriptor PROP_USERNAME = new PropertyDescriptor.Builder()
+            .name("Username")
+            .description("The user to authenticate to the broker with, using basic authentication.")
+            .required(false)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor PROP_PASSWORD = new PropertyDescriptor.Builder()
+            .name("Password")
+            .description("The password of the user.")
+            .required(false)
+            .sensitive(true)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor PROP_CONNECT_TIMEOUT = new PropertyDescriptor.Builder()
+            .name("Connection Timeout")
+            .description("How long to wait to connect to the broker.")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("10 secs")
+            .build();
+
+    public static final PropertyDescriptor PROP_READ_TIMEOUT = new PropertyDescriptor.Builder()
+            .name("Read Timeout")
+            .description("How long to wait for the next part of a response from the broker.")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("5 mins")
+            .build();
+
+    public static final Relationship REL_SUCCESS = new Relationship.Builder()
+            .name("success")
+            .description("FlowFiles holding the rows of a query are routed to this relationship")
+            .build();
+    public static final Relationship REL_ORIGINAL = new Relationship.Builder()
+            .name("original")
+            .description("Incoming FlowFiles are routed to this relationship once their query succeeded")
+            .build();
+    public static final Relationship REL_FAILURE = new Relationship.Builder()
+            .name("failure")
+            .description("Incoming FlowFiles whose query could not be run or read are routed to this relationship")
+            .build();
+    private final Set<Relationship> relationships;
+
+    private volatile DruidQueryClient client;
+
+    public QueryDruid() {
+        final Set<Relationship> rels = new HashSet<>();
+        rels.add(REL_SUCCESS);
+        rels.add(REL_ORIGINAL);
+        rels.add(REL_FAILURE);
+        relationships = Collections.unmodifiableSet(rels);
+    }
+
+    @Override
+    protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        final List<PropertyDescriptor> descriptors = new ArrayList<>();
+        descriptors.add(PROP_BROKER_URL);
+        descriptors.add(PROP_QUERY);
+        descriptors.add(PROP_PAGE_SIZE);
+        descriptors.add(PROP_MAX_ROWS);
+        descriptors.add(PROP_OUTPUT_FORMAT);
+        descriptors.add(PROP_CSV_COLUMNS);
+        descriptors.add(PROP_USERNAME);
+        descriptors.add(PROP_PASSWORD);
+        descriptors.add(PROP_CONNECT_TIMEOUT);
+        descriptors.add(PROP_READ_TIMEOUT);
+        return descriptors;
+    }
+
+    @Override
+    public Set<Relationship> getRelationships() {
+        return relationships;
+    }
+
+    @OnScheduled
+    public void createClient(final ProcessContext context) {
+        client = new DruidQueryClient(context.getProperty(PROP_BROKER_URL).evaluateAttributeExpressions().getValue(),
+                basicAuthorization(context.getProperty(PROP_USERNAME).getValue(), context.getProperty(PROP_PASSWORD).getValue()),
+                context.getProperty(PROP_CONNECT_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS).intValue(),
+                context.getProperty(PROP_READ_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS).intValue());
+    }
+
+    @OnUnscheduled
+    public void cancelQueries() {
+        if (client != null) {
+            client.cancelAll();
+        }
+    }
+
+    static String basicAuthorization(final String username, final String password) {
+        if (username == null) {
+            return null;
+        }
+        final String credentials = username + ":" + (password == null ? "" : password);
+        return "Basic " + Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
+        final FlowFile original = session.get();
+        if (original == null && context.hasIncomingConnection()) {
+            return;
+        }
+
+        final ComponentLog logger = getLogger();
+        final ObjectMapper mapper = new ObjectMapper();
+        final ObjectNode query;
+        final long maxRows;
+        try {
+            final JsonNode parsed = mapper.readTree(context.getProperty(PROP_QUERY).evaluateAttributeExpressions(original).getValue());
+            final String queryType = parsed.path("queryType").getTextValue();
+            if (!"scan".equals(queryType) && !"select".equals(queryType)) {
+                throw new IOException("Expected a scan or select query but got queryType " + queryType);
+            }
+            query = (ObjectNode) parsed;
+            final String maxRowsValue = context.getProperty(PROP_MAX_ROWS).evaluateAttributeExpressions(original).getValue();
+            maxRows = maxRowsValue == null || maxRowsValue.trim().isEmpty() ? Long.MAX_VALUE : Long.parseLong(maxRowsValue.trim());
+        } catch (IOException | RuntimeException e) {
+            logger.error("Invalid Druid query for {} due to {}", new Object[]{original, e});
+            if (original != null) {
+                session.transfer(session.penalize(original), REL_FAILURE);
+            } else {
+                context.yield();
+            }
+            return;
+        }
+
+        final int pageSize = context.getProperty(PROP_PAGE_SIZE).asInteger();
+        final String csvColumns = context.getProperty(PROP_CSV_COLUMNS).evaluateAttributeExpressions(original).getValue();
+        final boolean csv = FORMAT_CSV.getValue().equals(context.getProperty(PROP_OUTPUT_FORMAT).getValue());
+        final String queryId = query.path("context").path("queryId").isTextual()
+                ? query.path("context").path("queryId").getTextValue() : UUID.randomUUID().toString();
+        if (!query.path("context").isObject()) {
+            query.put("context", mapper.createObjectNode());
+        }
+        ((ObjectNode) query.get("context")).put("queryId", queryId);
+
+        final long[] rowCount = new long[1];
+        final long start = System.nanoTime();
+        FlowFile result = original == null ? session.create() : session.create(original);
+        try {
+            result = session.write(result, new OutputStreamCallback() {
+                @Override
+                public void process(final OutputStream out) throws IOException {
+                    final Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+                    final DruidQueryClient.RowHandler output = csv ? new CsvRowWriter(writer, csvColumns) : new JsonLinesRowWriter(writer, mapper);
+                    final DruidQueryClient.RowHandler rows = new DruidQueryClient.RowHandler() {
+                        @Override
+                        public void row(final JsonNode row) throws IOException {
+                            checkScheduled(queryId);
+                            output.row(row);
+                        }
+                    };
+                    if ("scan".equals(query.get("queryType").getTextValue())) {
+                        rowCount[0] = client.scan(mapper, query, queryId, pageSize, maxRows, rows);
+                    } else {
+                        rowCount[0] = client.select(mapper, query, queryId, pageSize, maxRows, rows);
+                    }
+                    writer.flush();
+                }
+            });
+        } catch (final ProcessException e) {
+            session.remove(result);
+            if (!isScheduled()) {
+                logger.info("Druid query {} was cancelled", new Object[]{queryId});
+                session.rollback();
+                return;
+            }
+            logger.error("Unable to run Druid query {} for {} due to {}", new Object[]{queryId, original, e});
+            if (original != null) {
+                session.transfer(session.penalize(original), REL_FAILURE);
+            } else {
+                context.yield();
+            }
+            return;
+        }
+
+        final Map<String, String> attributes = new HashMap<>();
+        attributes.put("druid.query.id", queryId);
+        attributes.put("druid.row.count", String.valueOf(rowCount[0]));
+        attributes.put("druid.query.millis", String.valueOf(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+        attributes.put("druid.truncated", String.valueOf(rowCount[0] >= maxRows));
+        attributes.put(CoreAttributes.MIME_TYPE.key(), csv ? "text/csv" : "application/json");
+        result = session.putAllAttributes(result, attributes);
+        session.getProvenanceReporter().receive(result, context.getProperty(PROP_BROKER_URL).evaluateAttributeExpressions().getValue() + "/druid/v2");
+        session.transfer(result, REL_SUCCESS);
+        if (original != null) {
+            session.transfer(original, REL_ORIGINAL);
+        }
+    }
+
+    private void checkScheduled(final String queryId) throws IOException {
+        if (!isScheduled()) {
+            throw new IOException("Druid query " + queryId + " was cancelled");
+        }
+    }
+
+    private static class JsonLinesRowWriter implements DruidQueryClient.RowHandler {
+        private final Writer writer;
+        private final ObjectMapper mapper;
+        private boolean first = true;
+
+        JsonLinesRowWriter(final Writer writer, final ObjectMapper mapper) {
+            this.writer = writer;
+            this.mapper = mapper;
+        }
+
+        @Override
+        public void row(final JsonNode row) throws IOException {
+            if (!first) {
+                writer.write('\n');
+            }
+            first = false;
+            writer.write(mapper.writeValueAsString(row));
+        }
+    }
+
+    private static class CsvRowWriter implements DruidQueryClient.RowHandler {
+        private final Writer writer;
+        private List<String> columns;
+        private boolean headerWritten;
+
+        /**
+         * @param columns the comma-separated columns to write, or null to take them from the first row
+         */
+        CsvRowWriter(final Writer writer, final String columns) {
+            this.writer = writer;
+            this.columns = columns == null || columns.trim().isEmpty() ? null : Arrays.asList(columns.trim().split("\\s*,\\s*"));
+        }
+
+        @Override
+        public void row(final JsonNode row) throws IOException {
+            if (columns == null) {
+                columns = new ArrayList<>();
+                for (Iterator<String> names = row.getFieldNames(); names.hasNext();) {
+                    columns.add(names.next());
+                }
+            }
+            if (!headerWritten) {
+                writeLine(columns);
+                headerWritten = true;
+            }
+            final List<String> values = new ArrayList<>(columns.size());
+            for (String column : columns) {
+                final JsonNode value = row.get(column);
+                values.add(value == null || value.isNull() ? "" : value.isValueNode() ? value.asText() : value.toString());
+            }
+            writeLine(values);
+        }
+
+        private void writeLine(final List<String> values) throws IOException {
+            for (int i = 0; i < values.size(); i++) {
+                if (i > 0) {
+                    writer.write(',');
+                }
+                writer.write(escape(values.get(i)));
+            }
+            writer.write('\n');
+        }
+
+        static String escape(final String value) {
+            if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+                return value;
+            }
+            return '"' + value.replace("\"", "\"\"") + '"';
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hortonworks.nifi.processors;
+
+/**
+ * Estimates how long a query engine takes to answer a query over a number of rows, as a startup time plus a time per
+ * row, and refines both from the latencies it observes.
+ *
+ * The observations are fitted with an exponentially weighted least-squares line, so that recent queries count most
+ * and the model follows changes in cluster load. Until the observed row counts vary enough to fit a slope, the
+ * configured time per row is kept and only the startup time is fitted.
+ */
+class QueryEngineCostModel {
+
+    static final double MIN_OBSERVATIONS = 3;
+
+    private final double initialStartupMillis;
+    private final double initialMillisPerRow;
+    private final double smoothing;
+
+    private double weight;
+    private double sumRows;
+    private double sumMillis;
+    private double sumRowsSquared;
+    private double sumRowsMillis;
+    private long observations;
+
+    /**
+     * @param smoothing the weight of each new observation, between 0 and 1
+     */
+    QueryEngineCostModel(final double initialStartupMillis, final double initialMillisPerRow, final double smoothing) {
+        this.initialStartupMillis = initialStartupMillis;
+        this.initialMillisPerRow = initialMillisPerRow;
+        this.smoothing = smoothing;
+    }
+
+    /**
+     * @return the estimated latency in milliseconds of a query over the given number of rows
+     */
+    synchronized double estimate(final double rows) {
+        final double[] line = fit();
+        return line[0] + line[1] * rows;
+    }
+
+    /**
+     * Adds the latency of a query that ran on the engine.
+     */
+    synchronized void observe(final double rows, final double millis) {
+        final double decay = 1 - smoothing;
+        weight = weight * decay + 1;
+        sumRows = sumRows * decay + rows;
+        sumMillis = sumMillis * decay + millis;
+        sumRowsSquared = sumRowsSquared * decay + rows * rows;
+        sumRowsMillis = sumRowsMillis * decay + rows * millis;
+        observations++;
+    }
+
+    synchronized long getObservations() {
+        return observations;
+    }
+
+    /**
+     * @return the startup time and the time per row
+     */
+    private double[] fit() {
+        if (observations == 0) {
+            return new double[] {initialStartupMillis, initialMillisPerRow};
+        }
+        final double meanRows = sumRows / weight;
+        final double meanMillis = sumMillis / weight;
+        final double variance = sumRowsSquared / weight - meanRows * meanRows;
+        double millisPerRow = initialMillisPerRow;
+        // a slope needs observations over different row counts, otherwise it only reflects noise
+        if (observations >= MIN_OBSERVATIONS && variance > meanRows * meanRows * 0.01) {
+            millisPerRow = Math.max(0, (sumRowsMillis / weight - meanRows * meanMillis) / variance);
+        }
+        final double startupMillis = meanMillis - millisPerRow * meanRows;
+        if (startupMillis < 0) {
+            // the rows alone explain more than the observed time, so the time per row is too high
+            return new double[] {0, meanRows > 0 ? meanMillis / meanRows : millisPerRow};
+        }
+        return new double[] {startupMillis, millisPerRow};
+    }
+}
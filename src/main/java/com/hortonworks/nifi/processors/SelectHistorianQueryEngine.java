@@ -0,0 +1,612 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hortonworks.nifi.processors;
+
+import org.apache.nifi.annotation.behavior.EventDriven;
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.behavior.InputRequirement.Requirement;
+import org.apache.nifi.annotation.behavior.ReadsAttribute;
+import org.apache.nifi.annotation.behavior.ReadsAttributes;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.SeeAlso;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnUnscheduled;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.expression.AttributeExpression.ResultType;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.ObjectNode;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Period;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+@EventDriven
+@Tags({"historian", "druid", "hive", "spark", "query", "route", "cost"})
+@InputRequirement(Requirement.INPUT_REQUIRED)
+@CapabilityDescription("Routes a historian query to the engine expected to answer it fastest, so that callers do not have to pick one. The "
+        + "function of the request decides which engines can answer it: aggregations go to Druid, Hive or Spark, windowed functions to Hive "
+        + "or Spark, and analytic functions to Spark only. Among those, the engine with the lowest estimated latency is chosen, estimated "
+        + "from the number of rows the request covers: the row count of the datasource from a cached segmentMetadata query, scaled to the "
+        + "interval and the tags of the request and bounded by its granularity. Each engine's estimate starts from a configured startup time "
+        + "and throughput, and is refined with the query durations the engines report for requests routed back to this processor once "
+        + "they are answered, which are recognized by the query.engine.planned.at attribute this processor adds. A small share of the "
+        + "requests is routed to another able engine than the cheapest, so that the estimates of every engine keep being refined.")
+@ReadsAttributes({
+    @ReadsAttribute(attribute = "query.engine.planned.at", description = "Marks a FlowFile routed back after its query was answered, "
+            + "whose Query Duration is added to the cost model of its engine."),
+    @ReadsAttribute(attribute = "druid.query.millis", description = "The time the Druid processors spent querying Druid, read by the "
+            + "default Query Duration."),
+    @ReadsAttribute(attribute = "query.engine.estimated.rows", description = "The rows the measured query was estimated to cover.")
+})
+@WritesAttributes({
+    @WritesAttribute(attribute = "query.engine", description = "The engine the request was routed to: druid, hive or spark."),
+    @WritesAttribute(attribute = "query.engine.estimated.rows", description = "The estimated number of rows the request covers."),
+    @WritesAttribute(attribute = "query.engine.estimated.millis", description = "The estimated latency of the chosen engine, in milliseconds."),
+    @WritesAttribute(attribute = "query.engine.costs", description = "The estimated latency of every engine able to answer the request."),
+    @WritesAttribute(attribute = "query.engine.explored", description = "Whether the engine was picked at random among the able engines "
+            + "other than the cheapest, to measure it."),
+    @WritesAttribute(attribute = "query.engine.planned.at", description = "The time the request was routed, in milliseconds since the epoch.")
+})
+@SeeAlso(classNames = {"com.hortonworks.nifi.processors.BatchQueryDruidTags", "com.hortonworks.nifi.processors.QueryDruid"})
+public class SelectHistorianQueryEngine extends AbstractProcessor {
+
+    static final String ENGINE_DRUID = "druid";
+    static final String ENGINE_HIVE = "hive";
+    static final String ENGINE_SPARK = "spark";
+
+    static final String ATTR_ENGINE = "query.engine";
+    static final String ATTR_ESTIMATED_ROWS = "query.engine.estimated.rows";
+    static final String ATTR_ESTIMATED_MILLIS = "query.engine.estimated.millis";
+    static final String ATTR_COSTS = "query.engine.costs";
+    static final String ATTR_PLANNED_AT = "query.engine.planned.at";
+    static final String ATTR_EXPLORED = "query.engine.explored";
+
+    static final double LATENCY_SMOOTHING = 0.1;
+
+    public static final PropertyDescriptor PROP_FUNCTION = new PropertyDescriptor.Builder()
+            .name("Function")
+            .description("The function the request applies to the rows. An empty function asks for the raw rows, which counts as an aggregation.")
+            .required(false)
+            .addValidator(StandardValidators.createAttributeExpressionLanguageValidator(ResultType.STRING, true))
+            .defaultValue("${requestedFunction}")
+            .expressionLanguageSupported(true)
+            .build();
+
+    public static final PropertyDescriptor PROP_REQUESTED_ENGINE = new PropertyDescriptor.Builder()
+            .name("Requested Engine")
+            .description("The engine the request asks for, if any, such as ${http.request.uri:contains('/hive/'):ifElse('hive','')}. If it "
+                    + "evaluates to druid, hive or spark, the request is routed there whatever the estimates are.")
+            .required(false)
+            .addValidator(StandardValidators.createAttributeExpressionLanguageValidator(ResultType.STRING, true))
+            .expressionLanguageSupported(true)
+            .build();
+
+    public static final PropertyDescriptor PROP_GRANULARITY = new PropertyDescriptor.Builder()
+            .name("Granularity")
+            .description("The granularity of the request, such as minute or hour. It bounds the rows of each tag when the datasource is not "
+                    + "rolled up to a coarser granularity.")
+            .required(false)
+            .addValidator(StandardValidators.createAttributeExpressionLanguageValidator(ResultType.STRING, true))
+            .defaultValue("${granularity}")
+            .expressionLanguageSupported(true)
+            .build();
+
+    public static final PropertyDescriptor PROP_AGGREGATION_FUNCTIONS = new PropertyDescriptor.Builder()
+            .name("Aggregation Functions")
+            .description("A comma-separated list of the functions Druid answers natively, which Hive and Spark can answer as well.")
+            .required(true)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .defaultValue("raw,avg,sum,min,max,count,first,last")
+            .build();
+
+    public static final PropertyDescriptor PROP_WINDOW_FUNCTIONS = new PropertyDescriptor.Builder()
+            .name("Windowed Functions")
+            .description("A comma-separated list of the functions that need SQL window functions, which Hive and Spark can answer.")
+            .required(true)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .defaultValue("mov_avg,lag,lead,rank,cumsum,delta")
+            .build();
+
+    public static final PropertyDescriptor PROP_ANALYTIC_FUNCTIONS = new PropertyDescriptor.Builder()
+            .name("Analytic Functions")
+            .description("A comma-separated list of the functions only Spark can answer. Functions in none of the lists are answered by Hive "
+                    + "or Spark.")
+            .required(true)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .defaultValue("regression,correlation,fft,forecast,anomaly,cluster")
+            .build();
+
+    public static final PropertyDescriptor PROP_BROKER_URL = new PropertyDescriptor.Builder()
+            .name("Druid Broker URL")
+            .description("The HTTP endpoint of the Druid broker to read the row counts of datasources from, such as http://druid-broker:8082. "
+                    + "If empty, the rows are estimated from the interval, the tags and the granularity of the request only.")
+            .required(false)
+            .addValidator(StandardValidators.URL_VALIDATOR)
+            .expressionLanguageSupported(true)
+            .build();
+
+    public static final PropertyDescriptor PROP_METADATA_REFRESH = new PropertyDescriptor.Builder()
+            .name("Metadata Refresh Interval")
+            .description("How long the segment metadata of a datasource is used before it is queried again.")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("10 mins")
+            .build();
+
+    public static final PropertyDescriptor PROP_QUERY_DURATION = new PropertyDescriptor.Builder()
+            .name("Query Duration")
+            .description("The milliseconds the engine spent answering a request routed back to this processor, as recorded by the engine's own "
+                    + "processors, so that the time the request spent queued is not counted. The Druid processors write druid.query.millis "
+                    + "and ExecuteSQL writes executesql.query.duration. Requests without a duration are not measured.")
+            .required(false)
+            .addValidator(StandardValidators.createAttributeExpressionLanguageValidator(ResultType.STRING, true))
+            .defaultValue("${druid.query.millis:replaceNull(${executesql.query.duration})}")
+            .expressionLanguageSupported(true)
+            .build();
+
+    public static final PropertyDescriptor PROP_EXPLORATION_RATE = new PropertyDescriptor.Builder()
+            .name("Exploration Rate")
+            .description("The share of the requests, between 0 and 1, routed to an able engine other than the cheapest, picked at random, so "
+                    + "that engines that are not chosen still get measured. Requests that ask for an engine are never explored.")
+            .required(true)
+            .addValidator(StandardValidators.createRegexMatchingValidator(Pattern.compile("0(\\.\\d+)?|1(\\.0+)?")))
+            .defaultValue("0.05")
+            .build();
+
+    public static final PropertyDescriptor PROP_DRUID_STARTUP = startupTime("Druid", "100 millis");
+    public static final PropertyDescriptor PROP_DRUID_THROUGHPUT = throughput("Druid", "20000000");
+    public static final PropertyDescriptor PROP_HIVE_STARTUP = startupTime("Hive", "5 secs");
+    public static final PropertyDescriptor PROP_HIVE_THROUGHPUT = throughput("Hive", "2000000");
+    public static final PropertyDescriptor PROP_SPARK_STARTUP = startupTime("Spark", "15 secs");
+    public static final PropertyDescriptor PROP_SPARK_THROUGHPUT = throughput("Spark", "10000000");
+
+    public static final Relationship REL_DRUID = new Relationship.Builder()
+            .name(ENGINE_DRUID)
+            .description("Requests to answer with Druid are routed to this relationship")
+            .build();
+    public static final Relationship REL_HIVE = new Relationship.Builder()
+            .name(ENGINE_HIVE)
+            .description("Requests to answer with Hive are routed to this relationship")
+            .build();
+    public static final Relationship REL_SPARK = new Relationship.Builder()
+            .name(ENGINE_SPARK)
+            .description("Requests to answer with Spark are routed to this relationship")
+            .build();
+    public static final Relationship REL_MEASURED = new Relationship.Builder()
+            .name("measured")
+            .description("Answered requests whose latency was added to the cost model are routed to this relationship")
+            .build();
+    public static final Relationship REL_FAILURE = new Relationship.Builder()
+            .name("failure")
+            .description("Requests without a valid interval are routed to this relationship")
+            .build();
+    private final Set<Relationship> relationships;
+
+    static final Map<String, Long> GRANULARITY_MILLIS = new HashMap<>();
+    static {
+        GRANULARITY_MILLIS.put("second", 1000L);
+        GRANULARITY_MILLIS.put("minute", 60000L);
+        GRANULARITY_MILLIS.put("five_minute", 300000L);
+        GRANULARITY_MILLIS.put("ten_minute", 600000L);
+        GRANULARITY_MILLIS.put("fifteen_minute", 900000L);
+        GRANULARITY_MILLIS.put("thirty_minute", 1800000L);
+        GRANULARITY_MILLIS.put("hour", 3600000L);
+        GRANULARITY_MILLIS.put("six_hour", 21600000L);
+        GRANULARITY_MILLIS.put("day", 86400000L);
+        GRANULARITY_MILLIS.put("week", 604800000L);
+        GRANULARITY_MILLIS.put("month", 2592000000L);
+        GRANULARITY_MILLIS.put("quarter", 7776000000L);
+        GRANULARITY_MILLIS.put("year", 31536000000L);
+    }
+
+    /**
+     * The size of a datasource as reported by a merged segmentMetadata query.
+     */
+    private static class DataSourceStatistics {
+        private final long rows;
+        private final List<long[]> intervals;
+        private final long tagCardinality;
+        private final long granularityMillis;
+        private final long fetchedAt;
+
+        DataSourceStatistics(final long rows, final List<long[]> intervals, final long tagCardinality, final long granularityMillis,
+                final long fetchedAt) {
+            this.rows = rows;
+            this.intervals = intervals;
+            this.tagCardinality = tagCardinality;
+            this.granularityMillis = granularityMillis;
+            this.fetchedAt = fetchedAt;
+        }
+    }
+
+    private final Map<String, DataSourceStatistics> statistics = new ConcurrentHashMap<>();
+    private volatile Map<String, QueryEngineCostModel> costModels;
+    private volatile DruidQueryClient client;
+
+    public SelectHistorianQueryEngine() {
+        final Set<Relationship> rels = new HashSet<>();
+        rels.add(REL_DRUID);
+        rels.add(REL_HIVE);
+        rels.add(REL_SPARK);
+        rels.add(REL_MEASURED);
+        rels.add(REL_FAILURE);
+        relationships = Collections.unmodifiableSet(rels);
+    }
+
+    private static PropertyDescriptor startupTime(final String engine, final String defaultValue) {
+        return new PropertyDescriptor.Builder()
+                .name(engine + " Startup Time")
+                .description("The time " + engine + " takes to answer a query over no rows, until latencies have been measured.")
+                .required(true)
+                .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+                .defaultValue(defaultValue)
+                .build();
+    }
+
+    private static PropertyDescriptor throughput(final String engine, final String defaultValue) {
+        return new PropertyDescriptor.Builder()
+                .name(engine + " Rows Per Second")
+                .description("The number of rows per second " + engine + " reads for a query, until latencies have been measured.")
+                .required(true)
+                .addValidator(StandardValidators.POSITIVE_LONG_VALIDATOR)
+                .defaultValue(defaultValue)
+                .build();
+    }
+
+    @Override
+    protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        final List<PropertyDescriptor> descriptors = new ArrayList<>();
+        descriptors.add(PROP_FUNCTION);
+        descriptors.add(PROP_REQUESTED_ENGINE);
+        descriptors.add(BatchQueryDruidTags.PROP_DATA_SOURCE);
+        descriptors.add(BatchQueryDruidTags.PROP_INTERVAL);
+        descriptors.add(PROP_GRANULARITY);
+        descriptors.add(BatchQueryDruidTags.PROP_TAG_DIMENSION);
+        descriptors.add(BatchQueryDruidTags.PROP_TAG_NAMES);
+        descriptors.add(PROP_AGGREGATION_FUNCTIONS);
+        descriptors.add(PROP_WINDOW_FUNCTIONS);
+        descriptors.add(PROP_ANALYTIC_FUNCTIONS);
+        descriptors.add(PROP_BROKER_URL);
+        descriptors.add(QueryDruid.PROP_USERNAME);
+        descriptors.add(QueryDruid.PROP_PASSWORD);
+        descriptors.add(QueryDruid.PROP_CONNECT_TIMEOUT);
+        descriptors.add(QueryDruid.PROP_READ_TIMEOUT);
+        descriptors.add(PROP_METADATA_REFRESH);
+        descriptors.add(PROP_QUERY_DURATION);
+        descriptors.add(PROP_EXPLORATION_RATE);
+        descriptors.add(PROP_DRUID_STARTUP);
+        descriptors.add(PROP_DRUID_THROUGHPUT);
+        descriptors.add(PROP_HIVE_STARTUP);
+        descriptors.add(PROP_HIVE_THROUGHPUT);
+        descriptors.add(PROP_SPARK_STARTUP);
+        descriptors.add(PROP_SPARK_THROUGHPUT);
+        return descriptors;
+    }
+
+    @Override
+    public Set<Relationship> getRelationships() {
+        return relationships;
+    }
+
+    @Override
+    public void onPropertyModified(final PropertyDescriptor descriptor, final String oldValue, final String newValue) {
+        // the measured latencies outlive restarts of the processor, but not a change of the initial costs
+        if (descriptor.getName().endsWith(" Startup Time") || descriptor.getName().endsWith(" Rows Per Second")) {
+            costModels = null;
+        }
+        if (descriptor.equals(PROP_BROKER_URL)) {
+            statistics.clear();
+        }
+    }
+
+    @OnScheduled
+    public void setup(final ProcessContext context) {
+        if (costModels == null) {
+            final Map<String, QueryEngineCostModel> models = new LinkedHashMap<>();
+            models.put(ENGINE_DRUID, costModel(context, PROP_DRUID_STARTUP, PROP_DRUID_THROUGHPUT));
+            models.put(ENGINE_HIVE, costModel(context, PROP_HIVE_STARTUP, PROP_HIVE_THROUGHPUT));
+            models.put(ENGINE_SPARK, costModel(context, PROP_SPARK_STARTUP, PROP_SPARK_THROUGHPUT));
+            costModels = models;
+        }
+        final String brokerUrl = context.getProperty(PROP_BROKER_URL).evaluateAttributeExpressions().getValue();
+        client = brokerUrl == null || brokerUrl.trim().isEmpty() ? null : new DruidQueryClient(brokerUrl.trim(),
+                QueryDruid.basicAuthorization(context.getProperty(QueryDruid.PROP_USERNAME).getValue(),
+                        context.getProperty(QueryDruid.PROP_PASSWORD).getValue()),
+                context.getProperty(QueryDruid.PROP_CONNECT_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS).intValue(),
+                context.getProperty(QueryDruid.PROP_READ_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS).intValue());
+    }
+
+    private static QueryEngineCostModel costModel(final ProcessContext context, final PropertyDescriptor startup,
+            final PropertyDescriptor throughput) {
+        return new QueryEngineCostModel(context.getProperty(startup).asTimePeriod(TimeUnit.MILLISECONDS),
+                1000.0 / context.getProperty(throughput).asLong(), LATENCY_SMOOTHING);
+    }
+
+    @OnUnscheduled
+    public void cancelQueries() {
+        if (client != null) {
+            client.cancelAll();
+        }
+    }
+
+    @Override
+    public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
+        final List<FlowFile> flowFiles = session.get(100);
+        if (flowFiles.isEmpty()) {
+            return;
+        }
+
+        final ComponentLog logger = getLogger();
+        final ObjectMapper mapper = new ObjectMapper();
+        final Set<String> aggregations = toSet(context.getProperty(PROP_AGGREGATION_FUNCTIONS).getValue());
+        final Set<String> windowed = toSet(context.getProperty(PROP_WINDOW_FUNCTIONS).getValue());
+        final Set<String> analytic = toSet(context.getProperty(PROP_ANALYTIC_FUNCTIONS).getValue());
+        final long refreshMillis = context.getProperty(PROP_METADATA_REFRESH).asTimePeriod(TimeUnit.MILLISECONDS);
+        final double explorationRate = Double.parseDouble(context.getProperty(PROP_EXPLORATION_RATE).getValue());
+
+        for (FlowFile flowFile : flowFiles) {
+            final String plannedAt = flowFile.getAttribute(ATTR_PLANNED_AT);
+            if (plannedAt != null) {
+                measure(flowFile, context.getProperty(PROP_QUERY_DURATION).evaluateAttributeExpressions(flowFile).getValue());
+                session.transfer(flowFile, REL_MEASURED);
+                continue;
+            }
+
+            final long[] range = BatchQueryDruidTags.parseInterval(
+                    context.getProperty(BatchQueryDruidTags.PROP_INTERVAL).evaluateAttributeExpressions(flowFile).getValue());
+            if (range == null) {
+                logger.error("Routing {} to failure because its interval is missing or invalid", new Object[]{flowFile});
+                session.transfer(flowFile, REL_FAILURE);
+                continue;
+            }
+            final String dataSource = context.getProperty(BatchQueryDruidTags.PROP_DATA_SOURCE).evaluateAttributeExpressions(flowFile).getValue();
+            final String tagDimension = context.getProperty(BatchQueryDruidTags.PROP_TAG_DIMENSION).evaluateAttributeExpressions(flowFile).getValue();
+            final int tagCount = BatchQueryDruidTags.parseList(mapper,
+                    context.getProperty(BatchQueryDruidTags.PROP_TAG_NAMES).evaluateAttributeExpressions(flowFile).getValue()).size();
+            final String granularity = context.getProperty(PROP_GRANULARITY).evaluateAttributeExpressions(flowFile).getValue();
+            final DataSourceStatistics stats = isEmpty(dataSource) ? null : getStatistics(mapper, dataSource, tagDimension, refreshMillis);
+            final long rows = estimateRows(stats, range, tagCount, granularityMillis(granularity));
+
+            final String function = context.getProperty(PROP_FUNCTION).evaluateAttributeExpressions(flowFile).getValue();
+            final String normalized = isEmpty(function) ? "raw" : function.trim().toLowerCase(Locale.ROOT);
+            final List<String> candidates = new ArrayList<>();
+            if (aggregations.contains(normalized)) {
+                candidates.add(ENGINE_DRUID);
+            }
+            if (!analytic.contains(normalized) || windowed.contains(normalized)) {
+                candidates.add(ENGINE_HIVE);
+            }
+            candidates.add(ENGINE_SPARK);
+
+            final Map<String, QueryEngineCostModel> models = costModels;
+            final StringBuilder costs = new StringBuilder();
+            String engine = null;
+            double engineMillis = Double.MAX_VALUE;
+            for (String candidate : candidates) {
+                final double millis = models.get(candidate).estimate(rows);
+                costs.append(costs.length() == 0 ? "" : ",").append(candidate).append('=').append(Math.round(millis));
+                if (millis < engineMillis) {
+                    engine = candidate;
+                    engineMillis = millis;
+                }
+            }
+            final String requested = context.getProperty(PROP_REQUESTED_ENGINE).evaluateAttributeExpressions(flowFile).getValue();
+            boolean explored = false;
+            if (!isEmpty(requested) && models.containsKey(requested.trim().toLowerCase(Locale.ROOT))) {
+                engine = requested.trim().toLowerCase(Locale.ROOT);
+                engineMillis = models.get(engine).estimate(rows);
+            } else if (candidates.size() > 1 && ThreadLocalRandom.current().nextDouble() < explorationRate) {
+                candidates.remove(engine);
+                engine = candidates.get(ThreadLocalRandom.current().nextInt(candidates.size()));
+                engineMillis = models.get(engine).estimate(rows);
+                explored = true;
+            }
+
+            final Map<String, String> attributes = new HashMap<>();
+            attributes.put(ATTR_ENGINE, engine);
+            attributes.put(ATTR_ESTIMATED_ROWS, String.valueOf(rows));
+            attributes.put(ATTR_ESTIMATED_MILLIS, String.valueOf(Math.round(engineMillis)));
+            attributes.put(ATTR_COSTS, costs.toString());
+            attributes.put(ATTR_EXPLORED, String.valueOf(explored));
+            attributes.put(ATTR_PLANNED_AT, String.valueOf(System.currentTimeMillis()));
+            flowFile = session.putAllAttributes(flowFile, attributes);
+            logger.debug("Routing {} over about {} rows to {}, estimated {}", new Object[]{flowFile, rows, engine, costs});
+            session.transfer(flowFile, ENGINE_DRUID.equals(engine) ? REL_DRUID : ENGINE_HIVE.equals(engine) ? REL_HIVE : REL_SPARK);
+        }
+    }
+
+    /**
+     * Adds the duration the engine reported for the request to its cost model. The time since the request was routed is
+     * not used, as it includes the time the request spent queued before and after the engine.
+     */
+    private void measure(final FlowFile flowFile, final String duration) {
+        if (isEmpty(duration)) {
+            getLogger().debug("Not measuring {} because its engine reported no query duration", new Object[]{flowFile});
+            return;
+        }
+        final QueryEngineCostModel model = costModels.get(String.valueOf(flowFile.getAttribute(ATTR_ENGINE)));
+        try {
+            final long millis = Long.parseLong(duration.trim());
+            final long rows = Long.parseLong(flowFile.getAttribute(ATTR_ESTIMATED_ROWS));
+            if (model != null && millis >= 0 && rows >= 0) {
+                model.observe(rows, millis);
+            }
+        } catch (NumberFormatException e) {
+            getLogger().warn("Unable to measure the latency of {} due to {}", new Object[]{flowFile, e});
+        }
+    }
+
+    /**
+     * @return the rows the request covers: the rows of the datasource that fall into its interval, in proportion to
+     * its share of the tags, and at most one row per tag and granularity period
+     */
+    private static long estimateRows(final DataSourceStatistics stats, final long[] range, final int tagCount, final long requestedGranularityMillis) {
+        final long granularityMillis = stats != null && stats.granularityMillis > 0 ? stats.granularityMillis : requestedGranularityMillis;
+        final double bound = granularityMillis > 0 ? (double) Math.max(1, tagCount) * (range[1] - range[0]) / granularityMillis : Double.MAX_VALUE;
+        if (stats == null || stats.rows < 0) {
+            return bound == Double.MAX_VALUE ? 0 : (long) Math.ceil(bound);
+        }
+        long extent = 0;
+        long overlap = 0;
+        for (long[] interval : stats.intervals) {
+            extent += interval[1] - interval[0];
+            overlap += Math.max(0, Math.min(interval[1], range[1]) - Math.max(interval[0], range[0]));
+        }
+        double rows = extent > 0 ? (double) stats.rows * overlap / extent : stats.rows;
+        if (tagCount > 0 && stats.tagCardinality > tagCount) {
+            rows = rows * tagCount / stats.tagCardinality;
+        }
+        return (long) Math.ceil(Math.min(rows, bound));
+    }
+
+    private DataSourceStatistics getStatistics(final ObjectMapper mapper, final String dataSource, final String tagDimension,
+            final long refreshMillis) {
+        final DruidQueryClient druid = client;
+        if (druid == null) {
+            return null;
+        }
+        final String key = dataSource + "\u0000" + (tagDimension == null ? "" : tagDimension);
+        final long now = System.currentTimeMillis();
+        DataSourceStatistics stats = statistics.get(key);
+        if (stats != null && now - stats.fetchedAt < refreshMillis) {
+            return stats;
+        }
+
+        final ObjectNode query = mapper.createObjectNode();
+        query.put("queryType", "segmentMetadata");
+        query.put("dataSource", dataSource);
+        query.putArray("intervals").add("1000-01-01/3000-01-01");
+        query.put("merge", true);
+        query.put("lenientAggregatorMerge", true);
+        final ObjectNode toInclude = query.putObject("toInclude");
+        toInclude.put("type", "list");
+        final ArrayNode columns = toInclude.putArray("columns");
+        final ArrayNode analysisTypes = query.putArray("analysisTypes");
+        if (!isEmpty(tagDimension)) {
+            columns.add(tagDimension.trim());
+            analysisTypes.add("cardinality");
+        }
+        analysisTypes.add("interval");
+        analysisTypes.add("queryGranularity");
+        try {
+            final JsonNode response = druid.fetch(mapper, query, UUID.randomUUID().toString());
+            final JsonNode analysis = response.path(0);
+            final List<long[]> intervals = new ArrayList<>();
+            for (JsonNode interval : analysis.path("intervals")) {
+                final long[] parsed = BatchQueryDruidTags.parseInterval(interval.asText());
+                if (parsed != null) {
+                    intervals.add(parsed);
+                }
+            }
+            final long tagCardinality = isEmpty(tagDimension) ? -1
+                    : analysis.path("columns").path(tagDimension.trim()).path("cardinality").asLong(-1);
+            stats = new DataSourceStatistics(analysis.path("numRows").asLong(-1), intervals, tagCardinality,
+                    granularityMillis(analysis.get("queryGranularity")), now);
+        } catch (IOException e) {
+            getLogger().warn("Unable to read the segment metadata of {} due to {}", new Object[]{dataSource, e});
+            // remember the failure as well, so that an unknown datasource is not queried for every request
+            stats = new DataSourceStatistics(-1, Collections.<long[]>emptyList(), -1, 0, now);
+        }
+        statistics.put(key, stats);
+        return stats;
+    }
+
+    /**
+     * @return the length of a granularity given by name, as an ISO-8601 period or as a Druid granularity spec, or 0
+     * for none, all or an unknown granularity
+     */
+    static long granularityMillis(final JsonNode granularity) {
+        if (granularity == null || granularity.isNull()) {
+            return 0;
+        }
+        if (granularity.isTextual()) {
+            return granularityMillis(granularity.getTextValue());
+        }
+        if (granularity.path("duration").isNumber()) {
+            return granularity.get("duration").asLong();
+        }
+        if (granularity.path("period").isTextual()) {
+            return granularityMillis(granularity.get("period").getTextValue());
+        }
+        return granularityMillis(granularity.path("type").asText());
+    }
+
+    static long granularityMillis(final String granularity) {
+        if (isEmpty(granularity)) {
+            return 0;
+        }
+        final String name = granularity.trim().toLowerCase(Locale.ROOT);
+        final Long millis = GRANULARITY_MILLIS.get(name);
+        if (millis != null) {
+            return millis;
+        }
+        if (!name.startsWith("p")) {
+            return 0;
+        }
+        try {
+            final int time = name.indexOf('t');
+            final Period period = Period.parse(time < 0 ? name : name.substring(0, time).equals("p") ? "p0d" : name.substring(0, time));
+            final long periodMillis = period.getYears() * GRANULARITY_MILLIS.get("year") + period.getMonths() * GRANULARITY_MILLIS.get("month")
+                    + period.getDays() * GRANULARITY_MILLIS.get("day");
+            return periodMillis + (time < 0 ? 0 : Duration.parse("p" + name.substring(time)).toMillis());
+        } catch (DateTimeParseException e) {
+            return 0;
+        }
+    }
+
+    private static Set<String> toSet(final String list) {
+        final Set<String> values = new HashSet<>();
+        for (String value : list.split(",")) {
+            if (!value.trim().isEmpty()) {
+                values.add(value.trim().toLowerCase(Locale.ROOT));
+            }
+        }
+        return values;
+    }
+
+    private static boolean isEmpty(final String value) {
+        return value == null || value.trim().isEmpty();
+    }
+}